@@ -35,8 +35,7 @@ public final class AccelerometerListener {
     private static final boolean DEBUG = true;
     private static final boolean VDEBUG = false;
 
-    private SensorManager mSensorManager;
-    private Sensor mSensor;
+    private InCallSensorHub mSensorHub;
 
     // mOrientation is the orientation value most recently reported to the client.
     private int mOrientation;
@@ -59,14 +58,16 @@ public final class AccelerometerListener {
     private static final int HORIZONTAL_DEBOUNCE = 500;
     private static final double VERTICAL_ANGLE = 50.0;
 
+    // Events are debounced anyway, so let the sensor batch them for up to this long.
+    private static final int MAX_REPORT_LATENCY_US = VERTICAL_DEBOUNCE * 1000;
+
     public interface OrientationListener {
         public void orientationChanged(int orientation);
     }
 
     public AccelerometerListener(Context context, OrientationListener listener) {
         mListener = listener;
-        mSensorManager = (SensorManager)context.getSystemService(Context.SENSOR_SERVICE);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        mSensorHub = InCallSensorHub.getInstance(context);
     }
 
     public void enable(boolean enable) {
@@ -75,10 +76,10 @@ public final class AccelerometerListener {
             if (enable) {
                 mOrientation = ORIENTATION_UNKNOWN;
                 mPendingOrientation = ORIENTATION_UNKNOWN;
-                mSensorManager.registerListener(mSensorListener, mSensor,
-                        SensorManager.SENSOR_DELAY_NORMAL);
+                mSensorHub.subscribe(Sensor.TYPE_ACCELEROMETER, mSensorListener,
+                        SensorManager.SENSOR_DELAY_NORMAL, MAX_REPORT_LATENCY_US);
             } else {
-                mSensorManager.unregisterListener(mSensorListener);
+                mSensorHub.unsubscribe(Sensor.TYPE_ACCELEROMETER, mSensorListener);
                 mHandler.removeMessages(ORIENTATION_CHANGED);
             }
         }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Debug;
+
+/**
+ * Shares the process wide allocation counting of {@link Debug} between the statistics that
+ * need it. Counting starts when the first user acquires it and stops when the last one
+ * releases it, so that it doesn't slow down allocations once no statistics are collected.
+ */
+public final class AllocCounter {
+
+    private static int sUsers;
+
+    private AllocCounter() {
+    }
+
+    public static synchronized void acquire() {
+        if (sUsers++ == 0) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    public static synchronized void release() {
+        if (sUsers == 0) {
+            Log.wtf(AllocCounter.class.getSimpleName(), "Released more often than acquired");
+            return;
+        }
+        if (--sUsers == 0) {
+            Debug.stopAllocCounting();
+        }
+    }
+}
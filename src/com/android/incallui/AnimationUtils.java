@@ -19,14 +19,19 @@ package com.android.incallui;
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ObjectAnimator;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
 import android.view.View;
 import android.view.ViewPropertyAnimator;
 import android.widget.ImageView;
 
+import java.util.WeakHashMap;
+
 /**
  * Utilities for Animation.
  */
@@ -44,6 +49,13 @@ public class AnimationUtils {
      */
     public static final int ANIMATION_DURATION = 250;
 
+    // Pixel samples taken along each side of a bitmap for its hash in areSameImage().
+    private static final int IMAGE_HASH_SAMPLES = 16;
+
+    // Hashes of the immutable bitmaps compared by areSameImage(); only used on the main thread.
+    private static final WeakHashMap<Bitmap, Integer> sImageHashes =
+            new WeakHashMap<Bitmap, Integer>();
+
     private AnimationUtils() {
     }
 
@@ -146,16 +158,46 @@ public class AnimationUtils {
 
     }
 
+    /**
+     * View tag holding the {@link CrossFadeDrawable} of an ImageView, so that it can be reused for
+     * the next cross-fade of the same view.
+     */
+    private static final int CROSS_FADE_KEY = R.id.crossFadeDrawable;
+
     /**
      * Drawable achieving cross-fade, just like TransitionDrawable. We can have
      * call-backs via animator object (see also {@link CrossFadeDrawable#getAnimator()}).
+     *
+     * One instance is kept per ImageView and reused with new layers for every cross-fade.
      */
     private static class CrossFadeDrawable extends LayerDrawable {
+        private static final int LAYER_FROM = 1;
+        private static final int LAYER_TO = 2;
+
         private final ObjectAnimator mAnimator;
+        // Stands in for the layers between cross-fades, so that they don't keep old images alive.
+        private final Drawable mEmpty = new ColorDrawable(Color.TRANSPARENT);
 
-        public CrossFadeDrawable(Drawable[] layers) {
-            super(layers);
+        public CrossFadeDrawable(final ImageView imageView, Drawable from, Drawable to) {
+            super(new Drawable[] { from, to });
+            setId(0, LAYER_FROM);
+            setId(1, LAYER_TO);
             mAnimator = ObjectAnimator.ofInt(this, "crossFadeAlpha", 0xff, 0);
+            mAnimator.setDuration(ANIMATION_DURATION);
+            mAnimator.addListener(new AnimatorListenerAdapter() {
+                @Override
+                public void onAnimationEnd(Animator animation) {
+                    if (FADE_DBG) {
+                        log("cross-fade animation ended for " + imageView);
+                    }
+                    // Workaround for issue 6300562; this will force the drawable to the
+                    // resultant one regardless of animation glitch. The layers are cleared
+                    // first, so that the target isn't detached from the view afterwards.
+                    final Drawable target = getTarget();
+                    setLayers(mEmpty, mEmpty);
+                    imageView.setImageDrawable(target);
+                }
+            });
         }
 
         private int mCrossFadeAlpha;
@@ -175,6 +217,22 @@ public class AnimationUtils {
             return mAnimator;
         }
 
+        /**
+         * Replaces the layers for the next cross-fade.
+         */
+        public void setLayers(Drawable from, Drawable to) {
+            setDrawableByLayerId(LAYER_FROM, from);
+            setDrawableByLayerId(LAYER_TO, to);
+            onBoundsChange(getBounds());
+        }
+
+        /**
+         * @return the drawable the cross-fade ends on.
+         */
+        public Drawable getTarget() {
+            return getDrawable(1);
+        }
+
         @Override
         public void draw(Canvas canvas) {
             Drawable first = getDrawable(0);
@@ -194,64 +252,45 @@ public class AnimationUtils {
         }
     }
 
-    private static CrossFadeDrawable newCrossFadeDrawable(Drawable first, Drawable second) {
-        Drawable[] layers = new Drawable[2];
-        layers[0] = first;
-        layers[1] = second;
-        return new CrossFadeDrawable(layers);
-    }
-
     /**
      * Starts cross-fade animation using TransitionDrawable. Nothing will happen if "from" and "to"
-     * are the same.
+     * are the same image, or if a running cross-fade already ends on "to".
      */
     public static void startCrossFade(
-            final ImageView imageView, final Drawable from, final Drawable to) {
-        // We skip the cross-fade when those two Drawables are equal, or they are BitmapDrawables
-        // pointing to the same Bitmap.
-        final boolean drawableIsEqual = (from != null && to != null && from.equals(to));
+            final ImageView imageView, Drawable from, final Drawable to) {
+        CrossFadeDrawable crossFadeDrawable = (CrossFadeDrawable) imageView.getTag(CROSS_FADE_KEY);
+        if (crossFadeDrawable != null && from == crossFadeDrawable) {
+            // A cross-fade is running, what is displayed is the image it ends on.
+            from = crossFadeDrawable.getTarget();
+            if (areSameImage(from, to)) {
+                if (FADE_DBG) {
+                    log("*Not* restart cross-fade. " + imageView);
+                }
+                return;
+            }
+            crossFadeDrawable.getAnimator().end();
+        }
+
         final boolean hasFromImage = ((from instanceof BitmapDrawable) &&
                 ((BitmapDrawable) from).getBitmap() != null);
         final boolean hasToImage = ((to instanceof BitmapDrawable) &&
                 ((BitmapDrawable) to).getBitmap() != null);
-        final boolean areSameImage = drawableIsEqual || (hasFromImage && hasToImage &&
-                ((BitmapDrawable) from).getBitmap().equals(((BitmapDrawable) to).getBitmap()));
 
-        if (!areSameImage) {
+        if (!areSameImage(from, to)) {
             if (FADE_DBG) {
                 log("Start cross-fade animation for " + imageView
                         + "(" + Integer.toHexString(from.hashCode()) + " -> "
                         + Integer.toHexString(to.hashCode()) + ")");
             }
 
-            CrossFadeDrawable crossFadeDrawable = newCrossFadeDrawable(from, to);
-            ObjectAnimator animator = crossFadeDrawable.getAnimator();
+            if (crossFadeDrawable == null) {
+                crossFadeDrawable = new CrossFadeDrawable(imageView, from, to);
+                imageView.setTag(CROSS_FADE_KEY, crossFadeDrawable);
+            } else {
+                crossFadeDrawable.setLayers(from, to);
+            }
             imageView.setImageDrawable(crossFadeDrawable);
-            animator.setDuration(ANIMATION_DURATION);
-            animator.addListener(new AnimatorListenerAdapter() {
-                @Override
-                public void onAnimationStart(Animator animation) {
-                    if (FADE_DBG) {
-                        log("cross-fade animation start ("
-                                + Integer.toHexString(from.hashCode()) + " -> "
-                                + Integer.toHexString(to.hashCode()) + ")");
-                    }
-                }
-
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    if (FADE_DBG) {
-                        log("cross-fade animation ended ("
-                                + Integer.toHexString(from.hashCode()) + " -> "
-                                + Integer.toHexString(to.hashCode()) + ")");
-                    }
-                    animation.removeAllListeners();
-                    // Workaround for issue 6300562; this will force the drawable to the
-                    // resultant one regardless of animation glitch.
-                    imageView.setImageDrawable(to);
-                }
-            });
-            animator.start();
+            crossFadeDrawable.getAnimator().start();
 
             /* We could use TransitionDrawable here, but it may cause some weird animation in
              * some corner cases. See issue 6300562
@@ -276,7 +315,72 @@ public class AnimationUtils {
         }
     }
 
-    // Debugging / testing code
+    /**
+     * Returns whether two drawables show the same image: they are equal, or they are
+     * BitmapDrawables pointing to the same Bitmap or to Bitmaps with the same pixels. The same
+     * photo is often decoded more than once, e.g. by the contact info and image loads.
+     *
+     * Different bitmaps are first told apart by a hash of a few sampled pixels, kept per
+     * bitmap, so that the pixels are only compared in full when the hashes match.
+     */
+    private static boolean areSameImage(Drawable from, Drawable to) {
+        if (from == null || to == null) {
+            return false;
+        }
+        if (from.equals(to)) {
+            return true;
+        }
+        if (!(from instanceof BitmapDrawable) || !(to instanceof BitmapDrawable)) {
+            return false;
+        }
+        final Bitmap fromBitmap = ((BitmapDrawable) from).getBitmap();
+        final Bitmap toBitmap = ((BitmapDrawable) to).getBitmap();
+        if (fromBitmap == null || toBitmap == null) {
+            return false;
+        }
+        if (fromBitmap == toBitmap) {
+            return true;
+        }
+        if (fromBitmap.isRecycled() || toBitmap.isRecycled()) {
+            return false;
+        }
+        if (getImageHash(fromBitmap) != getImageHash(toBitmap)) {
+            return false;
+        }
+        // sameAs() compares the dimensions and configuration before any pixel.
+        return fromBitmap.sameAs(toBitmap);
+    }
+
+    /**
+     * @return a hash of the size, configuration and a grid of sampled pixels of the bitmap.
+     * Equal images have equal hashes.
+     */
+    private static int getImageHash(Bitmap bitmap) {
+        final Integer cached = sImageHashes.get(bitmap);
+        if (cached != null) {
+            return cached;
+        }
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        int hash = 31 * width + height;
+        hash = 31 * hash + (bitmap.getConfig() != null ? bitmap.getConfig().ordinal() : -1);
+        if (width > 0 && height > 0) {
+            for (int i = 0; i < IMAGE_HASH_SAMPLES; i++) {
+                final int y = i * (height - 1) / (IMAGE_HASH_SAMPLES - 1);
+                for (int j = 0; j < IMAGE_HASH_SAMPLES; j++) {
+                    final int x = j * (width - 1) / (IMAGE_HASH_SAMPLES - 1);
+                    hash = 31 * hash + bitmap.getPixel(x, y);
+                }
+            }
+        }
+
+        // The pixels of a mutable bitmap can change after it was hashed.
+        if (!bitmap.isMutable()) {
+            sImageHashes.put(bitmap, hash);
+        }
+        return hash;
+    }
 
     private static void log(String msg) {
         Log.d(LOG_TAG, msg);
@@ -100,12 +100,16 @@ public class AnswerPresenter extends Presenter<AnswerPresenter.AnswerUi>
 
         if(CallUtils.isVideoCall(call)) {
             getUi().showVideoButtons();
+            // The video targets replace the text button targets.
+            invalidateBinds("showTextButton");
             if (textMsgs != null)
                 getUi().configureMessageDialog(textMsgs);
         } else if (call.can(Call.Capabilities.RESPOND_VIA_TEXT) && textMsgs != null) {
-            getUi().showTextButton(true);
+            if (shouldBind("showTextButton", true)) {
+                getUi().showTextButton(true);
+            }
             getUi().configureMessageDialog(textMsgs);
-        } else {
+        } else if (shouldBind("showTextButton", false)) {
             getUi().showTextButton(false);
         }
     }
@@ -286,7 +286,11 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
                     mStateBeforeDisconnect.isConnectingOrConnected();
         }
 
-        ui.setEnabled(isEnabled, isVisible);
+        if (shouldBind("setEnabled", isEnabled, isVisible)) {
+            ui.setEnabled(isEnabled, isVisible);
+            // setEnabled() overrides the enabled state of these buttons.
+            invalidateBinds("enableMute", "enableHold", "enableAddCall");
+        }
 
         Log.d(this, "Updating call UI for call: ", call);
 
@@ -308,12 +312,22 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
             final boolean showMerge = !isGenericConference && canMerge;
 
             if (showMerge) {
-                ui.showMerge(true);
-                ui.showAddCall(false);
+                if (shouldBind("showMerge", true)) {
+                    ui.showMerge(true);
+                }
+                if (shouldBind("showAddCall", false)) {
+                    ui.showAddCall(false);
+                }
             } else {
-                ui.showMerge(false);
-                ui.showAddCall(true);
-                ui.enableAddCall(canAdd);
+                if (shouldBind("showMerge", false)) {
+                    ui.showMerge(false);
+                }
+                if (shouldBind("showAddCall", true)) {
+                    ui.showAddCall(true);
+                }
+                if (shouldBind("enableAddCall", canAdd)) {
+                    ui.enableAddCall(canAdd);
+                }
             }
 
             final boolean canHold = call.can(Capabilities.HOLD);
@@ -321,13 +335,23 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
             final boolean supportHold = call.can(Capabilities.SUPPORT_HOLD);
 
             if (canHold) {
-                ui.showHold(true);
+                if (shouldBind("showHold", true)) {
+                    ui.showHold(true);
+                }
                 ui.setHold(call.getState() == Call.State.ONHOLD);
-                ui.enableHold(true);
-                ui.showSwap(false);
+                if (shouldBind("enableHold", true)) {
+                    ui.enableHold(true);
+                }
+                if (shouldBind("showSwap", false)) {
+                    ui.showSwap(false);
+                }
             } else if (canSwap) {
-                ui.showHold(false);
-                ui.showSwap(true);
+                if (shouldBind("showHold", false)) {
+                    ui.showHold(false);
+                }
+                if (shouldBind("showSwap", true)) {
+                    ui.showSwap(true);
+                }
             } else {
                 // Neither "Hold" nor "Swap" is available.  This can happen for two
                 // reasons:
@@ -340,22 +364,42 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
                 // will only have 4 buttons on some devices.)
 
                 if (supportHold) {
-                    ui.showHold(true);
-                    ui.enableHold(false);
+                    if (shouldBind("showHold", true)) {
+                        ui.showHold(true);
+                    }
+                    if (shouldBind("enableHold", false)) {
+                        ui.enableHold(false);
+                    }
                     ui.setHold(call.getState() == Call.State.ONHOLD);
-                    ui.showSwap(false);
+                    if (shouldBind("showSwap", false)) {
+                        ui.showSwap(false);
+                    }
                 } else {
-                    ui.showHold(false);
-                    ui.showSwap(false);
+                    if (shouldBind("showHold", false)) {
+                        ui.showHold(false);
+                    }
+                    if (shouldBind("showSwap", false)) {
+                        ui.showSwap(false);
+                    }
                 }
             }
 
-            ui.enableAddParticipant(call.can(Capabilities.ADD_PARTICIPANT));
+            final boolean canAddParticipant = call.can(Capabilities.ADD_PARTICIPANT);
+            if (shouldBind("enableAddParticipant", canAddParticipant)) {
+                ui.enableAddParticipant(canAddParticipant);
+            }
 
-            ui.enableMute(call.can(Capabilities.MUTE));
+            final boolean canMute = call.can(Capabilities.MUTE);
+            if (shouldBind("enableMute", canMute)) {
+                ui.enableMute(canMute);
+            }
 
-            ui.enableModifyCall(canModifyCall);
-            ui.showModifyCall(canModifyCall);
+            if (shouldBind("enableModifyCall", canModifyCall)) {
+                ui.enableModifyCall(canModifyCall);
+            }
+            if (shouldBind("showModifyCall", canModifyCall)) {
+                ui.showModifyCall(canModifyCall);
+            }
 
             // Finally, update the "extra button row": It's displayed above the
             // "End" button, but only if necessary.  Also, it's never displayed
@@ -373,10 +417,16 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
 
             boolean canRecord = CallRecorder.getInstance().isEnabled() &&
                 CallList.getInstance().getActiveCall() != null;
-            ui.showRecording(canRecord);
+            if (shouldBind("showRecording", canRecord)) {
+                ui.showRecording(canRecord);
+            }
         } else {
-            ui.enableAddParticipant(false);
-            ui.showModifyCall(false);
+            if (shouldBind("enableAddParticipant", false)) {
+                ui.enableAddParticipant(false);
+            }
+            if (shouldBind("showModifyCall", false)) {
+                ui.showModifyCall(false);
+            }
         }
     }
 
@@ -387,6 +437,10 @@ public class CallButtonPresenter extends Presenter<CallButtonPresenter.CallButto
         Log.d(this, "isGeneric: " + mShowGenericMerge);
         Log.d(this, "mShowManageConference : " + mShowManageConference);
         Log.d(this, "mShowGenericMerge: " + mShowGenericMerge);
+        if (!shouldBind("extraButtonRow", showExtraButtonRow, mShowGenericMerge,
+                mShowManageConference)) {
+            return;
+        }
         if (showExtraButtonRow) {
             if (mShowGenericMerge) {
                 getUi().showGenericMergeButton();
@@ -29,8 +29,6 @@ import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.os.Bundle;
 import static android.telephony.TelephonyManager.SIM_STATE_ABSENT;
-import android.telephony.MSimTelephonyManager;
-import android.telephony.TelephonyManager;
 import android.os.SystemProperties;
 import android.provider.Settings;
 import android.text.TextUtils;
@@ -225,9 +223,6 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
         mVideoCallPanel = (VideoCallPanel) view.findViewById(R.id.videoCallPanel);
         mCallRecordingTimer = (TextView) view.findViewById(R.id.callRecordingTimer);
 
-        CallRecorder recorder = CallRecorder.getInstance();
-        recorder.addRecordingProgressListener(mRecordingProgressListener);
-
         ViewGroup photoContainer = (ViewGroup) view.findViewById(R.id.photo_container);
         LayoutTransition transition = photoContainer.getLayoutTransition();
         transition.enableTransitionType(LayoutTransition.CHANGING);
@@ -251,6 +246,20 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
             mVideoCallPanel.onDestroy();
             mVideoCallPanel = null;
         }
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+
+        // Only listen for recording progress while we're visible.
+        CallRecorder recorder = CallRecorder.getInstance();
+        recorder.addRecordingProgressListener(mRecordingProgressListener);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
 
         CallRecorder recorder = CallRecorder.getInstance();
         recorder.removeRecordingProgressListener(mRecordingProgressListener);
@@ -333,15 +342,13 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
         setPrimaryLabel(label);
 
         showCallTypeLabel(isSipCall, isForwarded);
-        MSimTelephonyManager tm = MSimTelephonyManager.getDefault();
+        final SimTopology simTopology = SimTopology.getInstance();
 
-        if (tm.isMultiSimEnabled() && !(tm.getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA)) {
+        if (simTopology.isMultiSimEnabled && !simTopology.isDsda) {
             int subscription = getPresenter().getActiveSubscription();
 
             if ((subscription != -1) && (!isSipCall)
-                    && MSimTelephonyManager.getDefault().getSimState(subscription)
-                            != TelephonyManager.SIM_STATE_ABSENT) {
+                    && simTopology.isSimPresent(subscription)) {
                 final String simName = Settings.Global.getSimNameForSubscription(getActivity(),
                         subscription, null);
                 showSubscriptionInfo(simName);
@@ -478,7 +485,9 @@ public class CallCardFragment extends BaseFragment<CallCardPresenter, CallCardPr
             if (mElapsedTime.getVisibility() != View.VISIBLE) {
                 AnimationUtils.Fade.show(mElapsedTime);
             }
-            mElapsedTime.setText(callTimeElapsed);
+            if (!TextUtils.equals(mElapsedTime.getText(), callTimeElapsed)) {
+                mElapsedTime.setText(callTimeElapsed);
+            }
         } else {
             // hide() animation has no effect if it is already hidden.
             AnimationUtils.Fade.hide(mElapsedTime, View.INVISIBLE);
@@ -53,23 +53,22 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         implements InCallStateListener, AudioModeListener, IncomingCallListener {
 
     private static final String TAG = CallCardPresenter.class.getSimpleName();
-    private static final long CALL_TIME_UPDATE_INTERVAL = 1000; // in milliseconds
 
     private Call mPrimary;
     private Call mSecondary;
     private ContactCacheEntry mPrimaryContactInfo;
     private ContactCacheEntry mSecondaryContactInfo;
-    private CallTimer mCallTimer;
     private Context mContext;
 
+    private final CallDurationClock.Listener mCallTimeListener =
+            new CallDurationClock.Listener() {
+        @Override
+        public void onElapsedTimeChanged(long elapsedSeconds) {
+            updateCallTime(elapsedSeconds);
+        }
+    };
+
     public CallCardPresenter() {
-        // create the call timer
-        mCallTimer = new CallTimer(new Runnable() {
-            @Override
-            public void run() {
-                updateCallTime();
-            }
-        });
     }
 
 
@@ -117,6 +116,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         InCallPresenter.getInstance().removeIncomingCallListener(this);
 
         AudioModeProvider.getInstance().removeListener(this);
+        CallDurationClock.getInstance().unsubscribe(mCallTimeListener);
 
         mPrimary = null;
         mPrimaryContactInfo = null;
@@ -201,11 +201,12 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         // Start/Stop the call time update timer
         if (mPrimary != null && mPrimary.getState() == Call.State.ACTIVE) {
             Log.d(this, "Starting the calltime timer");
-            mCallTimer.start(CALL_TIME_UPDATE_INTERVAL);
+            CallDurationClock.getInstance().subscribe(mCallTimeListener,
+                    mPrimary.getConnectTime());
         } else {
             Log.d(this, "Canceling the calltime timer");
-            mCallTimer.cancel();
-            ui.setPrimaryCallElapsedTime(false, null);
+            CallDurationClock.getInstance().unsubscribe(mCallTimeListener);
+            setPrimaryCallElapsedTime(ui, false, null);
         }
 
         // Set the call state
@@ -230,7 +231,7 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
     private void updateCallState(Call call, int audioMode) {
         final int callType = CallUtils.getCallType(call);
         if (call == null) {
-            getUi().setCallState(Call.State.IDLE, Call.DisconnectCause.UNKNOWN,
+            setCallState(Call.State.IDLE, Call.DisconnectCause.UNKNOWN,
                     false, null, null, false, callType);
             return;
         }
@@ -240,22 +241,36 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
         final boolean isWaitingForRemoteSide =
                 (state == Call.State.ACTIVE && call.isHeldRemotely()) ||
                 (state == Call.State.DIALING && call.isDialingWaiting());
-        getUi().setCallState(call.getState(), call.getDisconnectCause(), bluetoothOn,
+        setCallState(call.getState(), call.getDisconnectCause(), bluetoothOn,
                 getGatewayLabel(), getGatewayNumber(), isWaitingForRemoteSide, callType);
     }
 
-    public void updateCallTime() {
+    private void setCallState(int state, Call.DisconnectCause cause, boolean bluetoothOn,
+            String gatewayLabel, String gatewayNumber, boolean isWaitingForRemoteSide,
+            int callType) {
+        if (shouldBind("setCallState", state, cause, bluetoothOn, gatewayLabel, gatewayNumber,
+                isWaitingForRemoteSide, callType)) {
+            getUi().setCallState(state, cause, bluetoothOn, gatewayLabel, gatewayNumber,
+                    isWaitingForRemoteSide, callType);
+        }
+    }
+
+    private void setPrimaryCallElapsedTime(CallCardUi ui, boolean show, String duration) {
+        if (shouldBind("setPrimaryCallElapsedTime", show, duration)) {
+            ui.setPrimaryCallElapsedTime(show, duration);
+        }
+    }
+
+    private void updateCallTime(long elapsedSeconds) {
         final CallCardUi ui = getUi();
 
         if (ui == null || mPrimary == null || mPrimary.getState() != Call.State.ACTIVE) {
             if (ui != null) {
-                ui.setPrimaryCallElapsedTime(false, null);
+                setPrimaryCallElapsedTime(ui, false, null);
             }
-            mCallTimer.cancel();
+            CallDurationClock.getInstance().unsubscribe(mCallTimeListener);
         } else {
-            final long callStart = mPrimary.getConnectTime();
-            final long duration = System.currentTimeMillis() - callStart;
-            ui.setPrimaryCallElapsedTime(true, DateUtils.formatElapsedTime(duration / 1000));
+            setPrimaryCallElapsedTime(ui, true, DateUtils.formatElapsedTime(elapsedSeconds));
         }
     }
 
@@ -325,8 +340,10 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
                         if (mPrimary != null && !CallUtils.isVideoCall(mPrimary) &&
                                 callId == mPrimary.getCallId()) {
                             getUi().setPrimaryImage(entry.photo);
+                            invalidateBinds("setPrimary");
                         } else if (mSecondary != null && callId == mSecondary.getCallId()) {
                             getUi().setSecondaryImage(entry.photo);
+                            invalidateBinds("setSecondary");
                         }
                     }
                 }
@@ -415,10 +432,14 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
             final String name = getNameForCall(entry);
             final String number = getNumberForCall(entry);
             final boolean nameIsNumber = name != null && name.equals(entry.number);
-            ui.setPrimary(number, name, nameIsNumber, entry.label,
-                    entry.photo, isConference, isGenericConf,
-                    entry.isSipCall, isForwarded, isVideo);
-        } else {
+            if (shouldBind("setPrimary", number, name, nameIsNumber, entry.label, entry.photo,
+                    isConference, isGenericConf, entry.isSipCall, isForwarded, isVideo)) {
+                ui.setPrimary(number, name, nameIsNumber, entry.label,
+                        entry.photo, isConference, isGenericConf,
+                        entry.isSipCall, isForwarded, isVideo);
+            }
+        } else if (shouldBind("setPrimary", null, null, false, null, null, isConference,
+                isGenericConf, false, isForwarded, isVideo)) {
             ui.setPrimary(null, null, false, null, null, isConference,
                     isGenericConf, false, isForwarded, isVideo);
         }
@@ -439,9 +460,14 @@ public class CallCardPresenter extends Presenter<CallCardPresenter.CallCardUi>
 
             final boolean nameIsNumber = nameForCall != null && nameForCall.equals(
                     mSecondaryContactInfo.number);
-            ui.setSecondary(true, nameForCall, nameIsNumber, mSecondaryContactInfo.label,
-                    mSecondaryContactInfo.photo, isConference, isGenericConf);
-        } else {
+            if (shouldBind("setSecondary", true, nameForCall, nameIsNumber,
+                    mSecondaryContactInfo.label, mSecondaryContactInfo.photo, isConference,
+                    isGenericConf)) {
+                ui.setSecondary(true, nameForCall, nameIsNumber, mSecondaryContactInfo.label,
+                        mSecondaryContactInfo.photo, isConference, isGenericConf);
+            }
+        } else if (shouldBind("setSecondary", false, null, false, null, null, isConference,
+                isGenericConf)) {
             // reset to nothing so that it starts off blank next time we use it.
             ui.setSecondary(false, null, false, null, null, isConference, isGenericConf);
         }
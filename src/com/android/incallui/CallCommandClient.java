@@ -16,8 +16,13 @@
 
 package com.android.incallui;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.telephony.PhoneNumberUtils;
 
 import com.android.internal.telephony.MSimConstants;
 
@@ -25,11 +30,29 @@ import com.android.services.telephony.common.AudioMode;
 import com.android.services.telephony.common.ICallCommandService;
 import com.android.services.telephony.common.Call;
 
+import java.util.HashMap;
+
 /**
  * Main interface for phone related commands.
+ *
+ * Commands are sent to the {@link ICallCommandService} in order on a dedicated worker thread
+ * so that a slow telephony process never blocks the caller (usually the UI thread). Commands
+ * that only set a state, like mute or the audio mode, replace the payload of any pending command
+ * of the same kind that has not been sent yet. The pending command keeps its place in the queue,
+ * so the state is still set in the order it was first asked for relative to other commands.
  */
 public class CallCommandClient {
 
+    // Commands that spend longer than this in the binder call are logged.
+    private static final long SLOW_COMMAND_THRESHOLD_MS = 100;
+
+    // Timing for queued DTMF tones: each tone plays for at least DTMF_TONE_DURATION_MS,
+    // followed by DTMF_TONE_GAP_MS of silence before the next queued tone starts.
+    private static final long DTMF_TONE_DURATION_MS = 120;
+    private static final long DTMF_TONE_GAP_MS = 80;
+    // Silence for a pause character in a queued sequence, as telephony uses for post-dial pauses.
+    private static final long DTMF_PAUSE_MS = 3000;
+
     private static CallCommandClient sInstance;
 
     public static synchronized CallCommandClient getInstance() {
@@ -39,389 +62,641 @@ public class CallCommandClient {
         return sInstance;
     }
 
-    private ICallCommandService mCommandService;
+    private volatile ICallCommandService mCommandService;
+
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Pending commands which can be replaced by a newer command with the same key.
+    private final HashMap<String, Command> mPendingCoalescedCommands =
+            new HashMap<String, Command>();
+
+    // Latency statistics per command name; only accessed on the worker thread.
+    private final HashMap<String, CommandStats> mCommandStats =
+            new HashMap<String, CommandStats>();
+
+    // Subscription set by the last queued command that changes the active subscription, and
+    // the number of such commands not sent yet. Guarded by mPendingActiveSubLock.
+    private final Object mPendingActiveSubLock = new Object();
+    private int mPendingActiveSub;
+    private int mPendingActiveSubCommands;
+
+    // DTMF sequencer state; only accessed on the worker thread.
+    private final StringBuilder mDtmfQueue = new StringBuilder();
+    // Call the queued and playing tones were requested for.
+    private int mDtmfCallId = Call.INVALID_CALL_ID;
+    private boolean mDtmfBusy;
+    private boolean mDtmfToneHeld;
+    private long mDtmfToneStartTime;
+
+    private final Runnable mStopDtmfToneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendStopDtmfTone();
+            mWorkerHandler.postDelayed(mPlayNextDtmfToneRunnable, DTMF_TONE_GAP_MS);
+        }
+    };
+
+    private final Runnable mPlayNextDtmfToneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            playNextDtmfTone();
+        }
+    };
 
     private CallCommandClient() {
+        HandlerThread thread = new HandlerThread("CallCommandWorker");
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
     }
 
     public void setService(ICallCommandService service) {
         mCommandService = service;
     }
 
-    public void answerCall(int callId) {
+    /**
+     * Runs the callback on the main thread once every command queued before this call has
+     * been sent to the {@link ICallCommandService}.
+     */
+    public void runAfterPendingCommands(final Runnable callback) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMainHandler.post(callback);
+            }
+        });
+    }
+
+    public void answerCall(final int callId) {
         Log.i(this, "answerCall: " + callId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot answer call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.answerCall(callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error answering call.", e);
-        }
+        enqueue(new Command("answerCall") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.answerCall(callId);
+            }
+        });
     }
 
-    public void rejectCall(Call call, boolean rejectWithMessage, String message) {
+    public void rejectCall(final Call call, final boolean rejectWithMessage,
+            final String message) {
         Log.i(this, "rejectCall: " + call.getCallId() +
                 ", with rejectMessage? " + rejectWithMessage);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot reject call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.rejectCall(call, rejectWithMessage, message);
-        } catch (RemoteException e) {
-            Log.e(this, "Error rejecting call.", e);
-        }
+        enqueue(new Command("rejectCall") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.rejectCall(call, rejectWithMessage, message);
+            }
+        });
     }
 
-    public void disconnectCall(int callId) {
+    public void disconnectCall(final int callId) {
         Log.i(this, "disconnect Call: " + callId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot disconnect call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.disconnectCall(callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error disconnecting call.", e);
-        }
+        // Pending digits are meaningless once their call is gone.
+        cancelDtmfSequence(callId);
+        enqueue(new Command("disconnectCall") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.disconnectCall(callId);
+            }
+        });
     }
 
-    public void separateCall(int callId) {
+    public void separateCall(final int callId) {
         Log.i(this, "separate Call: " + callId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot separate call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.separateCall(callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error separating call.", e);
-        }
+        enqueue(new Command("separateCall") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.separateCall(callId);
+            }
+        });
     }
 
-    public void mute(boolean onOff) {
+    public void mute(final boolean onOff) {
         Log.i(this, "mute: " + onOff);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot mute call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.mute(onOff);
-        } catch (RemoteException e) {
-            Log.e(this, "Error muting phone.", e);
-        }
+        enqueue(new Command("mute", "mute") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.mute(onOff);
+            }
+        });
     }
 
-    public void muteInternal(boolean onOff) {
+    public void muteInternal(final boolean onOff) {
         Log.i(this, "muteInternal: " + onOff);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot mute call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.muteInternal(onOff);
-        } catch (RemoteException e) {
-            Log.e(this, "Error muting phone.", e);
-        }
+        enqueue(new Command("muteInternal", "muteInternal") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.muteInternal(onOff);
+            }
+        });
      }
 
-    public void updateMuteState(int sub, boolean muted) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot updateMuteState; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.updateMuteState(sub, muted);
-        } catch (RemoteException e) {
-            Log.e(this, "Error updateMuteState.", e);
-        }
+    public void updateMuteState(final int sub, final boolean muted) {
+        enqueue(new Command("updateMuteState", "updateMuteState:" + sub) {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.updateMuteState(sub, muted);
+            }
+        });
     }
 
-    public void hold(int callId, boolean onOff) {
+    public void hold(final int callId, final boolean onOff) {
         Log.i(this, "hold call(" + onOff + "): " + callId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot hold call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.hold(callId, onOff);
-        } catch (RemoteException e) {
-            Log.e(this, "Error holding call.", e);
-        }
+        enqueue(new Command("hold") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.hold(callId, onOff);
+            }
+        });
     }
 
     public void merge() {
         Log.i(this, "merge calls");
-        if (mCommandService == null) {
-            Log.e(this, "Cannot merge call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.merge();
-        } catch (RemoteException e) {
-            Log.e(this, "Error merging calls.", e);
-        }
+        enqueue(new Command("merge") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.merge();
+            }
+        });
     }
 
     public void swap() {
         Log.i(this, "swap active/hold calls");
-        if (mCommandService == null) {
-            Log.e(this, "Cannot swap call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.swap();
-        } catch (RemoteException e) {
-            Log.e(this, "Error merging calls.", e);
-        }
+        enqueue(new Command("swap") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.swap();
+            }
+        });
     }
 
     public void addCall() {
         Log.i(this, "add a new call");
-        if (mCommandService == null) {
-            Log.e(this, "Cannot add call; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.addCall();
-        } catch (RemoteException e) {
-            Log.e(this, "Error merging calls.", e);
-        }
+        enqueue(new Command("addCall") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.addCall();
+            }
+        });
     }
 
-    public void setAudioMode(int mode) {
+    public void setAudioMode(final int mode) {
         Log.i(this, "Set Audio Mode: " + AudioMode.toString(mode));
-        if (mCommandService == null) {
-            Log.e(this, "Cannot set audio mode; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.setAudioMode(mode);
-        } catch (RemoteException e) {
-            Log.e(this, "Error setting speaker.", e);
-        }
+        enqueue(new Command("setAudioMode", "setAudioMode") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.setAudioMode(mode);
+            }
+        });
     }
 
-    public void playDtmfTone(char digit, boolean timedShortTone) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot start dtmf tone; CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "Sending dtmf tone " + digit);
-            mCommandService.playDtmfTone(digit, timedShortTone);
-        } catch (RemoteException e) {
-            Log.e(this, "Error setting speaker.", e);
-        }
-
+    public void playDtmfTone(final char digit, final boolean timedShortTone) {
+        enqueue(new Command("playDtmfTone") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "Sending dtmf tone " + digit);
+                service.playDtmfTone(digit, timedShortTone);
+            }
+        });
     }
 
     public void stopDtmfTone() {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot stop dtmf tone; CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "Stop dtmf tone ");
-            mCommandService.stopDtmfTone();
-        } catch (RemoteException e) {
-            Log.e(this, "Error setting speaker.", e);
-        }
+        enqueue(new Command("stopDtmfTone") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "Stop dtmf tone ");
+                service.stopDtmfTone();
+            }
+        });
     }
 
-    public void postDialWaitContinue(int callId) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot postDialWaitContinue(); CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "postDialWaitContinue()");
-            mCommandService.postDialWaitContinue(callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on postDialWaitContinue().", e);
-        }
+    /**
+     * Starts the DTMF tone for a key pressed during the given call. If no other tone is playing,
+     * the tone plays until {@link #releaseDtmfTone()}, but at least for the minimum tone
+     * duration. If a tone is already playing, the digit is queued and played as a timed tone
+     * so that fast typing never merges or drops digits.
+     */
+    public void startDtmfTone(final int callId, final char digit) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDtmfCallId = callId;
+                if (!mDtmfBusy) {
+                    mDtmfBusy = true;
+                    mDtmfToneHeld = true;
+                    mDtmfToneStartTime = SystemClock.elapsedRealtime();
+                    sendPlayDtmfTone(digit);
+                } else {
+                    mDtmfQueue.append(digit);
+                }
+            }
+        });
     }
 
-    public void postDialCancel(int callId) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot postDialCancel(); CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "postDialCancel()");
-            mCommandService.postDialCancel(callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on postDialCancel().", e);
-        }
+    /**
+     * Releases the tone started by {@link #startDtmfTone(int, char)}, once it has played for the
+     * minimum tone duration. Queued digits then continue to play.
+     */
+    public void releaseDtmfTone() {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mDtmfToneHeld) {
+                    // The released key was queued as a timed tone.
+                    return;
+                }
+                mDtmfToneHeld = false;
+                final long elapsed = SystemClock.elapsedRealtime() - mDtmfToneStartTime;
+                if (elapsed >= DTMF_TONE_DURATION_MS) {
+                    mStopDtmfToneRunnable.run();
+                } else {
+                    mWorkerHandler.postDelayed(mStopDtmfToneRunnable,
+                            DTMF_TONE_DURATION_MS - elapsed);
+                }
+            }
+        });
     }
 
-    public void hangupWithReason(int callId, String userUri, boolean mpty,
-            int failCause, String errorInfo) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot hangupWithReason(); CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "hangupWithReason() ");
-            mCommandService.hangupWithReason(callId, userUri, mpty,
-                    failCause, errorInfo);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on hangupWithReason().", e);
-        }
+    /**
+     * Queues a sequence of DTMF digits for the given call, to be played as timed tones with
+     * the standard tone and gap durations. A {@link PhoneNumberUtils#PAUSE} in the sequence
+     * holds off the digits after it for the post-dial pause duration.
+     */
+    public void playDtmfSequence(final int callId, final String digits) {
+        Log.v(this, "playDtmfSequence: " + digits.length() + " digits");
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDtmfCallId = callId;
+                mDtmfQueue.append(digits);
+                if (!mDtmfBusy) {
+                    playNextDtmfTone();
+                }
+            }
+        });
     }
 
-    public void answerCallWithCallType(int callId,int callType){
-        if (mCommandService == null) {
-            Log.e(this, "Cannot acceptCall(); CallCommandService == null");
-            return;
-        }
-        try {
-            /*
-             * To test call deflection this property has to be set with the
-             * number to which the call should be deflected. If this property is
-             * set to a number, on pressing the UI answer button, call deflect
-             * request will be sent. This is done to provide hooks to test call
-             * deflection through the UI answer button. For commercialization UI
-             * should be customized to call this API through the Call deflect UI
-             * button By default this property is not set and Answer button will
-             * work as expected
-             * Example:
-             * To deflect call to number 12345
-             * adb shell setprop persist.radio.deflect.number 12345
-             *
-             * Toggle above property and to invoke answerCallWithCallType
-             * adb shell setprop persist.radio.deflect.number ""
-             */
-            String deflectcall = SystemProperties.get("persist.radio.deflect.number");
-            if (deflectcall != null && !deflectcall.isEmpty()) {
-                mCommandService.deflectCall(callId, deflectcall);
-            } else {
-                Log.v(this, "acceptCall() ");
-                mCommandService.answerCallWithCallType(callId, callType);
+    /**
+     * Drops all queued DTMF digits and stops the tone being played, if any, when they were
+     * requested for the given call.
+     */
+    public void cancelDtmfSequence(final int callId) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (callId != mDtmfCallId) {
+                    return;
+                }
+                mDtmfCallId = Call.INVALID_CALL_ID;
+                mDtmfQueue.setLength(0);
+                mWorkerHandler.removeCallbacks(mStopDtmfToneRunnable);
+                mWorkerHandler.removeCallbacks(mPlayNextDtmfToneRunnable);
+                if (mDtmfBusy) {
+                    sendStopDtmfTone();
+                }
+                mDtmfBusy = false;
+                mDtmfToneHeld = false;
             }
-        } catch (RemoteException e) {
-            Log.e(this, "Error on acceptCall().", e);
-        }
+        });
     }
 
-    public void deflectCall(int callId, String number) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot deflectCall(); CallCommandService == null");
-            return;
-        }
-        try{
-            Log.v(this, "deflectCall() ");
-            mCommandService.deflectCall(callId, number);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on deflectCall().", e);
-        }
+    public void postDialWaitContinue(final int callId) {
+        enqueue(new Command("postDialWaitContinue") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "postDialWaitContinue()");
+                service.postDialWaitContinue(callId);
+            }
+        });
     }
 
-    public void modifyCallInitiate(int callId, int callType) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot modifyCall(); CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "modifyCall(), callId=" + callId + " callType=" + callType);
-            mCommandService.modifyCallInitiate(callId, callType);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on modifyCall().");
-        }
+    public void postDialCancel(final int callId) {
+        enqueue(new Command("postDialCancel") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "postDialCancel()");
+                service.postDialCancel(callId);
+            }
+        });
     }
 
-    public void modifyCallConfirm(boolean responseType, int callId) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot modifyCallConfirm(); CallCommandService == null" + responseType);
-            return;
-        }
-        try {
-            Log.v(this, "modifyCallConfirm() ");
-            mCommandService.modifyCallConfirm(responseType, callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on modifyCallConfirm().");
-        }
+    public void hangupWithReason(final int callId, final String userUri, final boolean mpty,
+            final int failCause, final String errorInfo) {
+        enqueue(new Command("hangupWithReason") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "hangupWithReason() ");
+                service.hangupWithReason(callId, userUri, mpty, failCause, errorInfo);
+            }
+        });
     }
 
-    public void setSystemBarNavigationEnabled(boolean enable) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot setSystemBarNavigationEnabled(); CallCommandService == null");
-            return;
-        }
-        try {
-            Log.v(this, "setSystemBarNavigationEnabled() enabled = " + enable);
-            mCommandService.setSystemBarNavigationEnabled(enable);
-        } catch (RemoteException e) {
-            Log.d(this, "Error on setSystemBarNavigationEnabled().");
-        }
+    public void answerCallWithCallType(final int callId, final int callType) {
+        enqueue(new Command("answerCallWithCallType") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                /*
+                 * To test call deflection this property has to be set with the
+                 * number to which the call should be deflected. If this property is
+                 * set to a number, on pressing the UI answer button, call deflect
+                 * request will be sent. This is done to provide hooks to test call
+                 * deflection through the UI answer button. For commercialization UI
+                 * should be customized to call this API through the Call deflect UI
+                 * button By default this property is not set and Answer button will
+                 * work as expected
+                 * Example:
+                 * To deflect call to number 12345
+                 * adb shell setprop persist.radio.deflect.number 12345
+                 *
+                 * Toggle above property and to invoke answerCallWithCallType
+                 * adb shell setprop persist.radio.deflect.number ""
+                 */
+                String deflectcall = SystemProperties.get("persist.radio.deflect.number");
+                if (deflectcall != null && !deflectcall.isEmpty()) {
+                    service.deflectCall(callId, deflectcall);
+                } else {
+                    Log.v(CallCommandClient.this, "acceptCall() ");
+                    service.answerCallWithCallType(callId, callType);
+                }
+            }
+        });
     }
 
-    public void blacklistAndHangup(int callId) {
-        if (mCommandService == null) {
-            Log.e(this, "Cannot blacklistAndHangup(); CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.blacklistAndHangup(callId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error on blacklistAndHangup().", e);
-        }
+    public void deflectCall(final int callId, final String number) {
+        enqueue(new Command("deflectCall") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "deflectCall() ");
+                service.deflectCall(callId, number);
+            }
+        });
+    }
+
+    public void modifyCallInitiate(final int callId, final int callType) {
+        enqueue(new Command("modifyCallInitiate") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "modifyCall(), callId=" + callId
+                        + " callType=" + callType);
+                service.modifyCallInitiate(callId, callType);
+            }
+        });
     }
 
-    public void setActiveSubscription(int subscriptionId) {
+    public void modifyCallConfirm(final boolean responseType, final int callId) {
+        enqueue(new Command("modifyCallConfirm") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "modifyCallConfirm() ");
+                service.modifyCallConfirm(responseType, callId);
+            }
+        });
+    }
+
+    public void setSystemBarNavigationEnabled(final boolean enable) {
+        enqueue(new Command("setSystemBarNavigationEnabled", "setSystemBarNavigationEnabled") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this,
+                        "setSystemBarNavigationEnabled() enabled = " + enable);
+                service.setSystemBarNavigationEnabled(enable);
+            }
+        });
+    }
+
+    public void blacklistAndHangup(final int callId) {
+        enqueue(new Command("blacklistAndHangup") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.blacklistAndHangup(callId);
+            }
+        });
+    }
+
+    public void setActiveSubscription(final int subscriptionId) {
         Log.i(this, "set active sub = " + subscriptionId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot set active Sub; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.setActiveSubscription(subscriptionId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error setActiveSub.", e);
-        }
+        enqueue(new ActiveSubCommand("setActiveSubscription", subscriptionId) {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.setActiveSubscription(subscriptionId);
+            }
+        });
     }
 
-    public void setSubInConversation(int subscriptionId) {
+    public void setSubInConversation(final int subscriptionId) {
         Log.i(this, "set conversation sub = " + subscriptionId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot set conversation Sub; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.setSubInConversation(subscriptionId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error setSubInConversation.", e);
-        }
+        enqueue(new Command("setSubInConversation") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.setSubInConversation(subscriptionId);
+            }
+        });
     }
 
-    public void setActiveAndConversationSub(int subscriptionId) {
+    public void setActiveAndConversationSub(final int subscriptionId) {
         Log.i(this, "setActiveAndConversationSub = " + subscriptionId);
-        if (mCommandService == null) {
-            Log.e(this, "Cannot set active Sub; CallCommandService == null");
-            return;
-        }
-        try {
-            mCommandService.setActiveAndConversationSub(subscriptionId);
-        } catch (RemoteException e) {
-            Log.e(this, "Error setActiveSub.", e);
-        }
+        enqueue(new ActiveSubCommand("setActiveAndConversationSub", subscriptionId) {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                service.setActiveAndConversationSub(subscriptionId);
+            }
+        });
     }
 
+    /**
+     * Queries the active subscription. Unlike the other commands this is a synchronous call,
+     * since the caller needs the result.
+     *
+     * While a command changing the active subscription is still queued, the subscription it
+     * sets is returned instead, so that callers never read back a value older than their own
+     * last change.
+     */
     public int getActiveSubscription() {
+        synchronized (mPendingActiveSubLock) {
+            if (mPendingActiveSubCommands > 0) {
+                Log.i(this, "get active sub " + mPendingActiveSub + " (pending)");
+                return mPendingActiveSub;
+            }
+        }
+
         int subscriptionId = MSimConstants.INVALID_SUBSCRIPTION;
 
-        if (mCommandService == null) {
+        final ICallCommandService service = mCommandService;
+        if (service == null) {
             Log.e(this, "Cannot get active sub; CallCommandService == null");
             return subscriptionId;
         }
         try {
-            subscriptionId = mCommandService.getActiveSubscription();
+            subscriptionId = service.getActiveSubscription();
         } catch (RemoteException e) {
             Log.e(this, "Error getActiveSub.", e);
         }
         Log.i(this, "get active sub " + subscriptionId);
         return subscriptionId;
     }
+
+    private void enqueue(Command command) {
+        if (command.mCoalesceKey != null) {
+            synchronized (mPendingCoalescedCommands) {
+                final Command pending = mPendingCoalescedCommands.get(command.mCoalesceKey);
+                if (pending != null) {
+                    Log.v(this, "Replacing payload of pending command " + pending.mName);
+                    pending.mLatest = command;
+                    return;
+                }
+                mPendingCoalescedCommands.put(command.mCoalesceKey, command);
+            }
+        }
+        mWorkerHandler.post(command);
+    }
+
+    /**
+     * Plays the next queued DTMF digit as a timed tone. Runs on the worker thread.
+     */
+    private void playNextDtmfTone() {
+        if (mDtmfQueue.length() == 0) {
+            mDtmfBusy = false;
+            return;
+        }
+        final char digit = mDtmfQueue.charAt(0);
+        mDtmfQueue.deleteCharAt(0);
+        mDtmfBusy = true;
+        if (digit == PhoneNumberUtils.PAUSE) {
+            mWorkerHandler.postDelayed(mPlayNextDtmfToneRunnable, DTMF_PAUSE_MS);
+            return;
+        }
+        sendPlayDtmfTone(digit);
+        mWorkerHandler.postDelayed(mStopDtmfToneRunnable, DTMF_TONE_DURATION_MS);
+    }
+
+    private void sendPlayDtmfTone(final char digit) {
+        new Command("playDtmfTone") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "Sending dtmf tone " + digit);
+                service.playDtmfTone(digit, false);
+            }
+        }.run();
+    }
+
+    private void sendStopDtmfTone() {
+        new Command("stopDtmfTone") {
+            @Override
+            void execute(ICallCommandService service) throws RemoteException {
+                Log.v(CallCommandClient.this, "Stop dtmf tone ");
+                service.stopDtmfTone();
+            }
+        }.run();
+    }
+
+    private void recordLatency(String name, long queuedMillis, long binderMillis) {
+        CommandStats stats = mCommandStats.get(name);
+        if (stats == null) {
+            stats = new CommandStats();
+            mCommandStats.put(name, stats);
+        }
+        stats.mCount++;
+        stats.mTotalQueuedMillis += queuedMillis;
+        stats.mTotalBinderMillis += binderMillis;
+        stats.mMaxBinderMillis = Math.max(stats.mMaxBinderMillis, binderMillis);
+
+        if (binderMillis > SLOW_COMMAND_THRESHOLD_MS) {
+            Log.w(this, "Slow command " + name + ": " + binderMillis + "ms in binder, "
+                    + queuedMillis + "ms queued; " + stats);
+        }
+    }
+
+    /**
+     * A single command for the {@link ICallCommandService}, run on the worker thread.
+     */
+    private abstract class Command implements Runnable {
+        final String mName;
+        final String mCoalesceKey;
+        final long mEnqueueTime = SystemClock.elapsedRealtime();
+        // Newest command with the same coalesce key, which is sent in place of this one.
+        // Guarded by mPendingCoalescedCommands.
+        Command mLatest = this;
+
+        Command(String name) {
+            this(name, null);
+        }
+
+        /**
+         * @param coalesceKey If not null, a newer command with the same key is sent in place of
+         * this one while it is still pending.
+         */
+        Command(String name, String coalesceKey) {
+            mName = name;
+            mCoalesceKey = coalesceKey;
+        }
+
+        abstract void execute(ICallCommandService service) throws RemoteException;
+
+        @Override
+        public void run() {
+            Command command = this;
+            if (mCoalesceKey != null) {
+                synchronized (mPendingCoalescedCommands) {
+                    if (mPendingCoalescedCommands.get(mCoalesceKey) == this) {
+                        mPendingCoalescedCommands.remove(mCoalesceKey);
+                    }
+                    command = mLatest;
+                }
+            }
+
+            final ICallCommandService service = mCommandService;
+            if (service == null) {
+                Log.e(CallCommandClient.this, "Cannot " + mName
+                        + "(); CallCommandService == null");
+                return;
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                command.execute(service);
+            } catch (RemoteException e) {
+                Log.e(CallCommandClient.this, "Error on " + mName + "().", e);
+            }
+            recordLatency(mName, start - mEnqueueTime, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * A command that changes the active subscription; see {@link #getActiveSubscription}.
+     */
+    private abstract class ActiveSubCommand extends Command {
+        ActiveSubCommand(String name, int subscriptionId) {
+            super(name);
+            synchronized (mPendingActiveSubLock) {
+                mPendingActiveSub = subscriptionId;
+                mPendingActiveSubCommands++;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                synchronized (mPendingActiveSubLock) {
+                    mPendingActiveSubCommands--;
+                }
+            }
+        }
+    }
+
+    private static class CommandStats {
+        int mCount;
+        long mTotalQueuedMillis;
+        long mTotalBinderMillis;
+        long mMaxBinderMillis;
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + ", avgQueued=" + (mTotalQueuedMillis / mCount) + "ms"
+                    + ", avgBinder=" + (mTotalBinderMillis / mCount) + "ms"
+                    + ", maxBinder=" + mMaxBinderMillis + "ms";
+        }
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Shared clock for the elapsed time displays of the in-call UI (call duration, recording time).
+ *
+ * Subscribers are told the elapsed whole seconds since their start time, only when that value
+ * changes. Elapsed time is always computed from the absolute start time, so it never drifts
+ * no matter how late a tick runs. Ticks are aligned to display frames and are only scheduled
+ * while the in-call UI is showing and the display isn't covered (screen turned off by the
+ * proximity sensor); when the UI becomes visible again all subscribers are refreshed at once.
+ *
+ * This class is only used from the main thread.
+ */
+public class CallDurationClock {
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private static CallDurationClock sInstance;
+
+    public static synchronized CallDurationClock getInstance() {
+        if (sInstance == null) {
+            sInstance = new CallDurationClock();
+        }
+        return sInstance;
+    }
+
+    public interface Listener {
+        /**
+         * Called when the whole number of seconds elapsed since the subscribed start time
+         * changes.
+         */
+        public void onElapsedTimeChanged(long elapsedSeconds);
+    }
+
+    /**
+     * The wall clock and the display frames the clock ticks on. Tests replace them to simulate
+     * long calls without waiting for them.
+     */
+    interface Timing {
+        long currentTimeMillis();
+
+        /**
+         * Runs the callback on the first display frame after the delay.
+         */
+        void postFrameCallbackDelayed(Choreographer.FrameCallback callback, long delayMillis);
+
+        void removeFrameCallback(Choreographer.FrameCallback callback);
+    }
+
+    private static class ChoreographerTiming implements Timing {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void postFrameCallbackDelayed(Choreographer.FrameCallback callback,
+                long delayMillis) {
+            mChoreographer.postFrameCallbackDelayed(callback, delayMillis);
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            mChoreographer.removeFrameCallback(callback);
+        }
+    }
+
+    private final ArrayList<Subscription> mSubscriptions = new ArrayList<Subscription>();
+    private final Timing mTiming;
+    private boolean mUiShowing;
+    private boolean mDisplayCovered;
+    private boolean mTickScheduled;
+
+    private final Choreographer.FrameCallback mTickCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mTickScheduled = false;
+            tick();
+        }
+    };
+
+    private CallDurationClock() {
+        this(new ChoreographerTiming());
+    }
+
+    CallDurationClock(Timing timing) {
+        mTiming = timing;
+    }
+
+    /**
+     * Subscribes a listener, or changes the start time of an existing subscription. The
+     * listener is called right away if the clock is running.
+     *
+     * @param startTimeMillis start time in the {@link System#currentTimeMillis()} time base.
+     */
+    public void subscribe(Listener listener, long startTimeMillis) {
+        Subscription subscription = find(listener);
+        if (subscription == null) {
+            subscription = new Subscription(listener);
+            mSubscriptions.add(subscription);
+        } else if (subscription.startTimeMillis == startTimeMillis) {
+            return;
+        }
+        subscription.startTimeMillis = startTimeMillis;
+        subscription.lastElapsedSeconds = -1;
+        tick();
+    }
+
+    public void unsubscribe(Listener listener) {
+        final Subscription subscription = find(listener);
+        if (subscription != null) {
+            mSubscriptions.remove(subscription);
+        }
+        if (mSubscriptions.isEmpty()) {
+            cancelTick();
+        }
+    }
+
+    /**
+     * Called when the in-call UI goes in and out of the foreground.
+     */
+    public void setUiShowing(boolean showing) {
+        mUiShowing = showing;
+        tick();
+    }
+
+    /**
+     * Called when the proximity sensor covers or uncovers the display.
+     */
+    public void setDisplayCovered(boolean covered) {
+        if (mDisplayCovered != covered) {
+            mDisplayCovered = covered;
+            tick();
+        }
+    }
+
+    private boolean isRunning() {
+        return mUiShowing && !mDisplayCovered && !mSubscriptions.isEmpty();
+    }
+
+    private void tick() {
+        if (!isRunning()) {
+            cancelTick();
+            return;
+        }
+
+        final long now = mTiming.currentTimeMillis();
+        long nextTickDelay = MILLIS_PER_SECOND;
+        for (int i = mSubscriptions.size() - 1; i >= 0 && i < mSubscriptions.size(); i--) {
+            final Subscription subscription = mSubscriptions.get(i);
+            final long elapsedMillis = Math.max(0, now - subscription.startTimeMillis);
+            final long elapsedSeconds = elapsedMillis / MILLIS_PER_SECOND;
+            nextTickDelay = Math.min(nextTickDelay,
+                    MILLIS_PER_SECOND - elapsedMillis % MILLIS_PER_SECOND);
+            if (elapsedSeconds != subscription.lastElapsedSeconds) {
+                subscription.lastElapsedSeconds = elapsedSeconds;
+                subscription.listener.onElapsedTimeChanged(elapsedSeconds);
+            }
+        }
+
+        if (isRunning()) {
+            cancelTick();
+            mTiming.postFrameCallbackDelayed(mTickCallback, nextTickDelay);
+            mTickScheduled = true;
+        }
+    }
+
+    private void cancelTick() {
+        if (mTickScheduled) {
+            mTiming.removeFrameCallback(mTickCallback);
+            mTickScheduled = false;
+        }
+    }
+
+    private Subscription find(Listener listener) {
+        for (int i = 0; i < mSubscriptions.size(); i++) {
+            if (mSubscriptions.get(i).listener == listener) {
+                return mSubscriptions.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static class Subscription {
+        final Listener listener;
+        long startTimeMillis;
+        long lastElapsedSeconds = -1;
+
+        Subscription(Listener listener) {
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.services.telephony.common.Call;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Records the events CallHandlerService receives from the telephony service into a trace file,
+ * so that the traffic behind a problem can be replayed later with {@link CallEventReplayer}.
+ *
+ * Recording is off unless the debug.incallui.trace system property is set when the service is
+ * created. Each service instance starts a new trace; the previous one is kept next to it.
+ *
+ * The trace is a header followed by one record per event: the time since the start of the
+ * trace in milliseconds, the event type, and the event arguments as marshalled parcel data.
+ * Parcel data is only readable by builds with the same Call parcel format, which is fine for
+ * replaying against builds of the same branch.
+ *
+ * Events are recorded from the binder threads; the file is written by a worker thread.
+ */
+class CallEventRecorder {
+    private static final String TAG = "CallEventRecorder";
+
+    static final String PROPERTY_ENABLED = "debug.incallui.trace";
+
+    static final String TRACE_FILE = "call_events.trace";
+    private static final String PREVIOUS_TRACE_FILE = "call_events.trace.old";
+
+    static final int MAGIC = 0x49435452; // "ICTR"
+    static final int VERSION = 1;
+
+    static final int EVENT_UPDATE = 1;
+    static final int EVENT_INCOMING = 2;
+    static final int EVENT_DISCONNECT = 3;
+    static final int EVENT_AUDIO_MODE = 4;
+    static final int EVENT_SUPPORTED_AUDIO_MODE = 5;
+    static final int EVENT_MODIFY_CALL = 6;
+    static final int EVENT_ACTIVE_SUB_CHANGED = 7;
+    static final int EVENT_SUPP_SERVICE_FAILED = 8;
+
+    private final boolean mEnabled;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private Handler mHandler;
+    private DataOutputStream mOut;
+    private volatile boolean mSuspended;
+
+    static boolean isTracingEnabled() {
+        return SystemProperties.getBoolean(PROPERTY_ENABLED, false);
+    }
+
+    public CallEventRecorder(final Context context) {
+        mEnabled = isTracingEnabled();
+        if (!mEnabled) {
+            return;
+        }
+
+        final File trace = new File(context.getFilesDir(), TRACE_FILE);
+        HandlerThread thread = new HandlerThread("CallEventRecorder");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                open(trace, new File(context.getFilesDir(), PREVIOUS_TRACE_FILE));
+            }
+        });
+    }
+
+    /**
+     * Stops recording while a trace is replayed, so that the replayed events don't end up in
+     * the trace.
+     */
+    public void setSuspended(boolean suspended) {
+        mSuspended = suspended;
+    }
+
+    public void onUpdate(List<Call> calls) {
+        if (isRecording()) {
+            final Parcel parcel = Parcel.obtain();
+            parcel.writeTypedList(calls);
+            record(EVENT_UPDATE, parcel);
+        }
+    }
+
+    public void onIncoming(Call call, List<String> textResponses) {
+        if (isRecording()) {
+            final Parcel parcel = Parcel.obtain();
+            parcel.writeParcelable(call, 0);
+            parcel.writeStringList(textResponses);
+            record(EVENT_INCOMING, parcel);
+        }
+    }
+
+    public void onDisconnect(Call call) {
+        recordCall(EVENT_DISCONNECT, call);
+    }
+
+    public void onModifyCall(Call call) {
+        recordCall(EVENT_MODIFY_CALL, call);
+    }
+
+    public void onAudioModeChange(int mode, boolean muted) {
+        recordInts(EVENT_AUDIO_MODE, mode, muted ? 1 : 0);
+    }
+
+    public void onSupportedAudioModeChange(int modeMask) {
+        recordInts(EVENT_SUPPORTED_AUDIO_MODE, modeMask, 0);
+    }
+
+    public void onActiveSubChanged(int activeSub) {
+        recordInts(EVENT_ACTIVE_SUB_CHANGED, activeSub, 0);
+    }
+
+    public void onSuppServiceFailed(int service) {
+        recordInts(EVENT_SUPP_SERVICE_FAILED, service, 0);
+    }
+
+    /**
+     * Flushes and closes the trace.
+     */
+    public void close() {
+        if (!mEnabled) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOut != null) {
+                    try {
+                        mOut.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close the trace", e);
+                    }
+                    mOut = null;
+                }
+                mHandler.getLooper().quit();
+            }
+        });
+    }
+
+    private boolean isRecording() {
+        return mEnabled && !mSuspended;
+    }
+
+    private void recordCall(int event, Call call) {
+        if (isRecording()) {
+            final Parcel parcel = Parcel.obtain();
+            parcel.writeParcelable(call, 0);
+            record(event, parcel);
+        }
+    }
+
+    private void recordInts(int event, int arg1, int arg2) {
+        if (isRecording()) {
+            final Parcel parcel = Parcel.obtain();
+            parcel.writeInt(arg1);
+            parcel.writeInt(arg2);
+            record(event, parcel);
+        }
+    }
+
+    /**
+     * Queues a record for writing. The parcel is marshalled on the calling thread, since the
+     * arguments can change once the binder call returns, and recycled.
+     */
+    private void record(final int event, Parcel parcel) {
+        final int time = (int) (SystemClock.elapsedRealtime() - mStartTime);
+        final byte[] data;
+        try {
+            data = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(time, event, data);
+            }
+        });
+    }
+
+    private void open(File trace, File previousTrace) {
+        if (trace.exists() && !trace.renameTo(previousTrace)) {
+            Log.w(TAG, "Could not keep the previous trace");
+        }
+        try {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(trace)));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            Log.i(TAG, "Recording call events to " + trace);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open the trace", e);
+            mOut = null;
+        }
+    }
+
+    private void write(int time, int event, byte[] data) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeInt(time);
+            mOut.writeByte(event);
+            mOut.writeInt(data.length);
+            mOut.write(data);
+            // Keep the trace usable if the process dies during the call.
+            mOut.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write to the trace, stopping", e);
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+                // ignore
+            }
+            mOut = null;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.services.telephony.common.Call;
+import com.android.services.telephony.common.ICallHandlerService;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Feeds a trace written by {@link CallEventRecorder} back into a CallHandlerService, with the
+ * original timing or sped up.
+ *
+ * Events go through the same binder entry points as live events, so they take the same path
+ * through the main thread. Commands the UI sends in reaction still go to the telephony service
+ * the call service is bound to, so traces should only be replayed on test devices.
+ *
+ * The trace is read and the events are dispatched on a worker thread.
+ */
+class CallEventReplayer {
+    private static final String TAG = "CallEventReplayer";
+
+    // Magic and version.
+    private static final int TRACE_HEADER_SIZE = 8;
+    // Time, event type and data length.
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    public interface Listener {
+        public void onReplayFinished(int eventCount);
+    }
+
+    private final ICallHandlerService mTarget;
+    private final File mTrace;
+    private final float mSpeed;
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    /**
+     * @param speed how much faster than recorded to replay; 1 keeps the original timing.
+     */
+    public CallEventReplayer(ICallHandlerService target, File trace, float speed,
+            Listener listener) {
+        mTarget = target;
+        mTrace = trace;
+        mSpeed = speed > 0 ? speed : 1.0f;
+        mListener = listener;
+
+        HandlerThread thread = new HandlerThread("CallEventReplayer");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        });
+    }
+
+    /**
+     * Stops the replay and drops the events not dispatched yet. The listener isn't called.
+     */
+    public void stop() {
+        mHandler.getLooper().quit();
+    }
+
+    private void replay() {
+        final ArrayList<Event> events = new ArrayList<Event>();
+        try {
+            readTrace(events);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + mTrace + ", replaying the first "
+                    + events.size() + " events", e);
+        }
+        Log.i(TAG, "Replaying " + events.size() + " events from " + mTrace + " at " + mSpeed
+                + "x");
+
+        final long start = SystemClock.uptimeMillis();
+        final long duration = events.isEmpty() ? 0 : events.get(events.size() - 1).time;
+        for (final Event event : events) {
+            mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(event);
+                }
+            }, start + (long) (event.time / mSpeed));
+        }
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "Replay finished");
+                mListener.onReplayFinished(events.size());
+                mHandler.getLooper().quit();
+            }
+        }, start + (long) (duration / mSpeed));
+    }
+
+    private void readTrace(ArrayList<Event> events) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mTrace)));
+        try {
+            if (in.readInt() != CallEventRecorder.MAGIC) {
+                throw new IOException("Not a call event trace");
+            }
+            final int version = in.readInt();
+            if (version != CallEventRecorder.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            long remaining = mTrace.length() - TRACE_HEADER_SIZE;
+            while (true) {
+                final int time;
+                try {
+                    time = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final int type = in.readByte();
+                final int length = in.readInt();
+                remaining -= RECORD_HEADER_SIZE;
+                // Don't trust the length of a truncated or corrupt record for an allocation.
+                if (length < 0 || length > remaining) {
+                    throw new IOException("Invalid record length " + length);
+                }
+                final byte[] data = new byte[length];
+                in.readFully(data);
+                remaining -= length;
+                events.add(new Event(time, type, data));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void dispatch(Event event) {
+        final ClassLoader loader = Call.class.getClassLoader();
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(event.data, 0, event.data.length);
+            parcel.setDataPosition(0);
+            switch (event.type) {
+                case CallEventRecorder.EVENT_UPDATE:
+                    mTarget.onUpdate(parcel.createTypedArrayList(Call.CREATOR));
+                    break;
+                case CallEventRecorder.EVENT_INCOMING:
+                    final Call call = parcel.readParcelable(loader);
+                    mTarget.onIncoming(call, parcel.createStringArrayList());
+                    break;
+                case CallEventRecorder.EVENT_DISCONNECT:
+                    mTarget.onDisconnect((Call) parcel.readParcelable(loader));
+                    break;
+                case CallEventRecorder.EVENT_MODIFY_CALL:
+                    mTarget.onModifyCall((Call) parcel.readParcelable(loader));
+                    break;
+                case CallEventRecorder.EVENT_AUDIO_MODE:
+                    mTarget.onAudioModeChange(parcel.readInt(), parcel.readInt() != 0);
+                    break;
+                case CallEventRecorder.EVENT_SUPPORTED_AUDIO_MODE:
+                    mTarget.onSupportedAudioModeChange(parcel.readInt());
+                    break;
+                case CallEventRecorder.EVENT_ACTIVE_SUB_CHANGED:
+                    mTarget.onActiveSubChanged(parcel.readInt());
+                    break;
+                case CallEventRecorder.EVENT_SUPP_SERVICE_FAILED:
+                    mTarget.onSuppServiceFailed(parcel.readInt());
+                    break;
+                default:
+                    Log.w(TAG, "Skipping unknown event type " + event.type);
+                    break;
+            }
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to replay event " + event.type, e);
+        } catch (RuntimeException e) {
+            // Parcel data from another build can be unreadable.
+            Log.w(TAG, "Failed to read event " + event.type, e);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static class Event {
+        final int time;
+        final int type;
+        final byte[] data;
+
+        Event(int time, int type, byte[] data) {
+            this.time = time;
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
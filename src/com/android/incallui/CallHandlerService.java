@@ -20,6 +20,7 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -29,6 +30,9 @@ import com.android.services.telephony.common.Call;
 import com.android.services.telephony.common.ICallCommandService;
 import com.android.services.telephony.common.ICallHandlerService;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.AbstractMap;
 import java.util.List;
 import java.util.Map;
@@ -56,8 +60,28 @@ public class CallHandlerService extends Service {
 
     private static final int LARGEST_MSG_ID = ON_SUPP_SERVICE_FAIL;
 
+    // Names of the messages, indexed by message id.
+    private static final String[] MESSAGE_NAMES = {
+        "UNKNOWN",
+        "ON_UPDATE_CALL",
+        "ON_UPDATE_MULTI_CALL",
+        "ON_UPDATE_CALL_WITH_TEXT_RESPONSES",
+        "ON_AUDIO_MODE",
+        "ON_SUPPORTED_AUDIO_MODE",
+        "ON_DISCONNECT_CALL",
+        "ON_BRING_TO_FOREGROUND",
+        "ON_POST_CHAR_WAIT",
+        "ON_START",
+        "ON_DESTROY",
+        "ON_ACTIVE_SUB_CHANGE",
+        "ON_UNSOL_CALLMODIFY",
+        "ON_SUPP_SERVICE_FAIL",
+    };
+
     private static final String VOLUME_BOOST = "volume_boost";
 
+    private static final long CALL_CHECK_TIMEOUT_MS = 1000;
+
     private AudioManager mAudioManager;
     private CallList mCallList;
     private Handler mMainHandler;
@@ -65,6 +89,8 @@ public class CallHandlerService extends Service {
     private InCallPresenter mInCallPresenter;
     private AudioModeProvider mAudioModeProvider;
     private boolean mServiceStarted = false;
+    private CallEventRecorder mEventRecorder;
+    private CallEventReplayer mEventReplayer;
 
     private final String LOG_TAG = "CallHandlerService";
 
@@ -73,6 +99,7 @@ public class CallHandlerService extends Service {
         Log.i(TAG, "onCreate");
         super.onCreate();
         mAudioManager = (AudioManager) getSystemService (Context.AUDIO_SERVICE);
+        mEventRecorder = new CallEventRecorder(this);
 
         synchronized(mHandlerInitLock) {
             if (mMainHandler == null) {
@@ -95,8 +122,96 @@ public class CallHandlerService extends Service {
         // Thats okay since in both cases we want to end all calls and let the UI know it can tear
         // itself down when it's ready. Start the destruction sequence.
         mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_DESTROY));
+        synchronized (this) {
+            if (mEventReplayer != null) {
+                mEventReplayer.stop();
+                mEventReplayer = null;
+            }
+        }
+        mEventRecorder.close();
+    }
+
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length >= 2 && "replay".equals(args[0])) {
+            startReplay(pw, new File(args[1]), args.length >= 3 ? args[2] : null);
+            return;
+        }
+        ControlPlaneStats.getInstance().dump(pw);
+    }
+
+    /**
+     * Replays a call event trace, e.g. with
+     * "adb shell dumpsys activity service CallHandlerService replay <trace> [speed]".
+     *
+     * Replayed events drive the real UI and its commands go to the real telephony service, so
+     * replaying is only allowed on debuggable builds with call event tracing turned on, and
+     * never while there are calls.
+     */
+    private void startReplay(PrintWriter pw, File trace, String speed) {
+        if (!Build.IS_DEBUGGABLE || !CallEventRecorder.isTracingEnabled()) {
+            pw.println("Replaying needs a debuggable build with "
+                    + CallEventRecorder.PROPERTY_ENABLED + " set");
+            return;
+        }
+        if (hasCalls()) {
+            pw.println("Cannot replay while there are calls");
+            return;
+        }
+        if (!trace.canRead()) {
+            pw.println("Cannot read " + trace);
+            return;
+        }
+        float replaySpeed = 1.0f;
+        if (speed != null) {
+            try {
+                replaySpeed = Float.parseFloat(speed);
+            } catch (NumberFormatException e) {
+                pw.println("Invalid speed " + speed);
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (mEventReplayer != null) {
+                pw.println("A replay is already running");
+                return;
+            }
+            mEventRecorder.setSuspended(true);
+            mEventReplayer = new CallEventReplayer(mBinder, trace, replaySpeed,
+                    new CallEventReplayer.Listener() {
+                        @Override
+                        public void onReplayFinished(int eventCount) {
+                            synchronized (CallHandlerService.this) {
+                                mEventReplayer = null;
+                            }
+                            mEventRecorder.setSuspended(false);
+                        }
+                    });
+            mEventReplayer.start();
+        }
+        pw.println("Replaying " + trace + " at " + replaySpeed + "x");
+    }
+
+    /**
+     * @return whether the call list has any calls, or if that couldn't be checked in time. The
+     * call list is read on the main thread, which owns it.
+     */
+    private boolean hasCalls() {
+        final boolean[] hasCalls = { true };
+        final boolean checked = mMainHandler.runWithScissors(new Runnable() {
+            @Override
+            public void run() {
+                hasCalls[0] = CallList.getInstance().getPresentCallStates() != 0;
+            }
+        }, CALL_CHECK_TIMEOUT_MS);
+        return !checked || hasCalls[0];
     }
 
+    static String[] getMessageNames() {
+        return MESSAGE_NAMES;
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -130,6 +245,7 @@ public class CallHandlerService extends Service {
         public void onDisconnect(Call call) {
             try {
                 Log.i(TAG, "onDisconnected: " + call);
+                mEventRecorder.onDisconnect(call);
                 mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_DISCONNECT_CALL, call));
             } catch (Exception e) {
                 Log.e(TAG, "Error processing onDisconnect() call.", e);
@@ -140,6 +256,7 @@ public class CallHandlerService extends Service {
         public void onIncoming(Call call, List<String> textResponses) {
             try {
                 Log.i(TAG, "onIncomingCall: " + call);
+                mEventRecorder.onIncoming(call, textResponses);
                 Map.Entry<Call, List<String>> incomingCall
                         = new AbstractMap.SimpleEntry<Call, List<String>>(call, textResponses);
                 mMainHandler.sendMessage(mMainHandler.obtainMessage(
@@ -153,6 +270,7 @@ public class CallHandlerService extends Service {
         public void onUpdate(List<Call> calls) {
             try {
                 Log.i(TAG, "onUpdate: " + calls);
+                mEventRecorder.onUpdate(calls);
                 mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_UPDATE_MULTI_CALL, calls));
             } catch (Exception e) {
                 Log.e(TAG, "Error processing onUpdate() call.", e);
@@ -164,6 +282,7 @@ public class CallHandlerService extends Service {
             try {
                 Log.i(TAG, "onAudioModeChange : " +
                         AudioMode.toString(mode));
+                mEventRecorder.onAudioModeChange(mode, muted);
                 mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_AUDIO_MODE, mode,
                             muted ? 1 : 0, null));
             } catch (Exception e) {
@@ -176,6 +295,7 @@ public class CallHandlerService extends Service {
             try {
                 Log.i(TAG, "onSupportedAudioModeChange : " +
                         AudioMode.toString(modeMask));
+                mEventRecorder.onSupportedAudioModeChange(modeMask);
                 mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_SUPPORTED_AUDIO_MODE,
                         modeMask, 0, null));
             } catch (Exception e) {
@@ -199,6 +319,7 @@ public class CallHandlerService extends Service {
         public void onModifyCall(Call call) {
             try {
                 Log.i(TAG, "onModifyCallResponse: " + call);
+                mEventRecorder.onModifyCall(call);
                 mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_UNSOL_CALLMODIFY, call));
             } catch (Exception e) {
                 Log.e(TAG, "Error processing onDisconnect() call.", e);
@@ -207,11 +328,13 @@ public class CallHandlerService extends Service {
 
         @Override
         public void onActiveSubChanged(int activeSub) {
+            mEventRecorder.onActiveSubChanged(activeSub);
             mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_ACTIVE_SUB_CHANGE, activeSub));
         }
 
         @Override
         public void onSuppServiceFailed(int service) {
+            mEventRecorder.onSuppServiceFailed(service);
             mMainHandler.sendMessage(mMainHandler.obtainMessage(ON_SUPP_SERVICE_FAIL, service));
         }
 
@@ -230,6 +353,8 @@ public class CallHandlerService extends Service {
             doStop();
         }
 
+        ControlPlaneStats.getInstance().reset();
+
         mCallList = CallList.getInstance();
         mAudioModeProvider = AudioModeProvider.getInstance();
         mInCallPresenter = InCallPresenter.getInstance();
@@ -283,7 +408,10 @@ public class CallHandlerService extends Service {
 
         @Override
         public void handleMessage(Message msg) {
+            final ControlPlaneStats stats = ControlPlaneStats.getInstance();
+            stats.beginMessage();
             executeMessage(msg);
+            stats.endMessage(msg.what);
         }
     }
 
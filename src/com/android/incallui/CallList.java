@@ -24,8 +24,9 @@ import com.google.common.base.Preconditions;
 import android.os.Handler;
 import android.os.Message;
 import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
-import android.telephony.MSimTelephonyManager;
 import com.android.internal.telephony.MSimConstants;
 import com.android.services.telephony.common.Call;
 import com.android.services.telephony.common.Call.DisconnectCause;
@@ -52,13 +53,29 @@ public class CallList {
 
     private static CallList sInstance = new CallList();
 
+    // All calls, for sub-agnostic callers. Every call is also in the SubscriptionCalls of its
+    // subscription.
     private final HashMap<Integer, Call> mCallMap = Maps.newHashMap();
+    private final SparseArray<SubscriptionCalls> mSubscriptionCalls =
+            new SparseArray<SubscriptionCalls>();
+    // The subscription each call is filed under, by call id.
+    private final SparseIntArray mCallSubscriptions = new SparseIntArray();
+    // Bit (1 << subscription) is set for every subscription with a live call.
+    private int mLiveSubscriptionMask;
     private final HashMap<Integer, ArrayList<String>> mCallTextReponsesMap =
             Maps.newHashMap();
     private final Set<Listener> mListeners = Sets.newArraySet();
+    private final Set<NewOutgoingCallListener> mNewOutgoingCallListeners = Sets.newArraySet();
     private final HashMap<Integer, List<CallUpdateListener>> mCallUpdateListenerMap = Maps
             .newHashMap();
 
+    // Last snapshot published, and whether the calls changed since. The snapshot is written on
+    // the main thread and read on any thread.
+    private volatile CallListSnapshot mSnapshot = CallListSnapshot.EMPTY;
+    private boolean mSnapshotDirty;
+    // Number of registered snapshot consumers; snapshots are only published while there are any.
+    private int mSnapshotConsumers;
+
     private int mSubscription = 0;
     private final ArrayList<ActiveSubChangeListener> mActiveSubChangeListeners =
             Lists.newArrayList();
@@ -84,7 +101,11 @@ public class CallList {
 
         updateActiveSuscription();
 
+        final boolean isNew = !mCallMap.containsKey(call.getCallId());
         updateCallInMap(call);
+        if (isNew) {
+            maybeNotifyNewOutgoingCall(call);
+        }
         notifyListenersOfChange();
     }
 
@@ -97,6 +118,8 @@ public class CallList {
         boolean updated = updateCallInMap(call);
 
         if (updated) {
+            publishSnapshotIfNeeded();
+
             // notify those listening for changes on this specific change
             notifyCallUpdateListeners(call);
 
@@ -113,21 +136,23 @@ public class CallList {
 
         // ensure the ringing call is active subscription, since phone state
         // changed is notified before new incoming call ringing, and the event
-        // will switch active sub to a wrong sub(which is not ringing)
-        if (MSimTelephonyManager.getDefault().isMultiSimEnabled())
-            CallCommandClient.getInstance().setActiveSubscription(call.getSubscription());
-        // will switch active sub to to a incorrect sub(which is not ringing)
-        if (MSimTelephonyManager.getDefault().isMultiSimEnabled()) {
+        // will switch active sub to a wrong sub(which is not ringing).
+        // The command is queued, so take the subscription over directly instead of
+        // reading it back from the telephony service.
+        if (SimTopology.getInstance().isMultiSimEnabled) {
             CallCommandClient.getInstance().setActiveSubscription(call.getSubscription());
+            setActiveSubscription(call.getSubscription());
         }
-        updateActiveSuscription();
 
         updateCallInMap(call);
         updateCallTextMap(call, textMessages);
+        publishSnapshotIfNeeded();
 
+        ControlPlaneStats.getInstance().beginFanOut();
         for (Listener listener : mListeners) {
             listener.onIncomingCall(call);
         }
+        ControlPlaneStats.getInstance().endFanOut();
     }
 
     /**
@@ -142,8 +167,12 @@ public class CallList {
         for (Call call : callsToUpdate) {
             Log.d(this, "\t" + call);
 
+            final boolean isNew = !mCallMap.containsKey(call.getCallId());
             updateCallInMap(call);
             updateCallTextMap(call, null);
+            if (isNew) {
+                maybeNotifyNewOutgoingCall(call);
+            }
 
             notifyCallUpdateListeners(call);
         }
@@ -151,6 +180,30 @@ public class CallList {
         notifyListenersOfChange();
     }
 
+    /**
+     * Tells the new outgoing call listeners about a call that was just added to the list, if it
+     * is a dialing call. This happens before the call list listeners are notified, so that work
+     * for the outgoing call screen can start before the UI does.
+     */
+    private void maybeNotifyNewOutgoingCall(Call call) {
+        if (mNewOutgoingCallListeners.isEmpty() || !Call.State.isDialing(call.getState())
+                || !mCallMap.containsKey(call.getCallId())) {
+            return;
+        }
+        for (NewOutgoingCallListener listener : mNewOutgoingCallListeners) {
+            listener.onNewOutgoingCall(call);
+        }
+    }
+
+    public void addNewOutgoingCallListener(NewOutgoingCallListener listener) {
+        Preconditions.checkNotNull(listener);
+        mNewOutgoingCallListeners.add(listener);
+    }
+
+    public void removeNewOutgoingCallListener(NewOutgoingCallListener listener) {
+        mNewOutgoingCallListeners.remove(listener);
+    }
+
     public void notifyCallUpdateListeners(Call call) {
         final List<CallUpdateListener> listeners = mCallUpdateListenerMap.get(call.getCallId());
         if (listeners != null) {
@@ -282,18 +335,73 @@ public class CallList {
     }
 
     public boolean existsLiveCall() {
-        for (Call call : mCallMap.values()) {
-            if (!isCallDead(call)) {
+        for (int i = 0; i < mSubscriptionCalls.size(); i++) {
+            if (mSubscriptionCalls.valueAt(i).hasLiveCall()) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Returns the last published snapshot of the calls. Unlike the other getters this can be
+     * called on any thread.
+     *
+     * A new snapshot is published after each batch of updates, but only while a snapshot
+     * consumer is registered; without one this returns whatever was last published.
+     */
+    public CallListSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Registers a reader of {@link #getSnapshot()}, and publishes a snapshot of the calls as they
+     * are now. Must be called on the main thread, and paired with
+     * {@link #removeSnapshotConsumer()}.
+     */
+    public void addSnapshotConsumer() {
+        mSnapshotConsumers++;
+        publishSnapshotIfNeeded();
+    }
+
+    public void removeSnapshotConsumer() {
+        Preconditions.checkState(mSnapshotConsumers > 0);
+        mSnapshotConsumers--;
+    }
+
+    /**
+     * Publishes a new snapshot if the calls changed since the last one and anyone reads them.
+     * Called once the call list is consistent again after a batch of updates.
+     */
+    private void publishSnapshotIfNeeded() {
+        if (mSnapshotDirty && mSnapshotConsumers > 0) {
+            mSnapshotDirty = false;
+            mSnapshot = CallListSnapshot.create(mSnapshot.getVersion() + 1, mSubscription,
+                    mCallMap.values());
+            Log.v(this, "Published ", mSnapshot);
+        }
+    }
+
     public ArrayList<String> getTextResponses(int callId) {
         return mCallTextReponsesMap.get(callId);
     }
 
+    /**
+     * Returns the states of the calls that the getters for a state would consider, as a
+     * bitmask with bit (1 << state) set for every state present.
+     */
+    public int getPresentCallStates() {
+        if (SimTopology.getInstance().isDsda) {
+            final SubscriptionCalls calls = mSubscriptionCalls.get(getActiveSubscription());
+            return calls != null ? calls.getPresentStates() : 0;
+        }
+        int states = 0;
+        for (int i = 0; i < mSubscriptionCalls.size(); i++) {
+            states |= mSubscriptionCalls.valueAt(i).getPresentStates();
+        }
+        return states;
+    }
+
     /**
      * Returns first call found in the call map with the specified state.
      */
@@ -306,8 +414,7 @@ public class CallList {
      * TODO: Improve this logic to sort by call time.
      */
     public Call getCallWithState(int state, int positionToFind) {
-        if (MSimTelephonyManager.getDefault().getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA) {
+        if (SimTopology.getInstance().isDsda) {
             return getCallWithState(state, positionToFind, getActiveSubscription());
         }
 
@@ -353,15 +460,21 @@ public class CallList {
      * It is up to the listeners to call back to determine what changed.
      */
     private void notifyListenersOfChange() {
+        publishSnapshotIfNeeded();
+
+        ControlPlaneStats.getInstance().beginFanOut();
         for (Listener listener : mListeners) {
             listener.onCallListChange(this);
         }
+        ControlPlaneStats.getInstance().endFanOut();
     }
 
     private void notifyListenersOfDisconnect(Call call) {
+        ControlPlaneStats.getInstance().beginFanOut();
         for (Listener listener : mListeners) {
             listener.onDisconnect(call);
         }
+        ControlPlaneStats.getInstance().endFanOut();
     }
 
     /**
@@ -384,7 +497,7 @@ public class CallList {
                     Log.d(this, "SRVCC call so silently removing call entry");
                     //silently remove the call entry
                     call.setState(Call.State.IDLE);
-                    mCallMap.remove(id);
+                    removeCall(id);
                     updated = false;
                 } else {
 
@@ -396,21 +509,74 @@ public class CallList {
                     final Message msg = mHandler.obtainMessage(EVENT_DISCONNECTED_TIMEOUT, call);
                     mHandler.sendMessageDelayed(msg, getDelayForDisconnect(call));
 
-                    mCallMap.put(id, call);
+                    putCall(id, call);
                     updated = true;
                }
             }
         } else if (!isCallDead(call)) {
-            mCallMap.put(id, call);
+            putCall(id, call);
             updated = true;
         } else if (mCallMap.containsKey(id)) {
-            mCallMap.remove(id);
+            removeCall(id);
             updated = true;
         }
 
         return updated;
     }
 
+    /**
+     * Adds or replaces a call, in the call map and in the calls of its subscription.
+     */
+    private void putCall(Integer id, Call call) {
+        mCallMap.put(id, call);
+        mSnapshotDirty = true;
+
+        final int subscription = call.getSubscription();
+        final int index = mCallSubscriptions.indexOfKey(id);
+        if (index >= 0 && mCallSubscriptions.valueAt(index) != subscription) {
+            final int oldSubscription = mCallSubscriptions.valueAt(index);
+            mSubscriptionCalls.get(oldSubscription).remove(id);
+            updateLiveSubscription(oldSubscription);
+        }
+
+        SubscriptionCalls calls = mSubscriptionCalls.get(subscription);
+        if (calls == null) {
+            calls = new SubscriptionCalls();
+            mSubscriptionCalls.put(subscription, calls);
+        }
+        calls.put(call);
+        mCallSubscriptions.put(id, subscription);
+        updateLiveSubscription(subscription);
+    }
+
+    /**
+     * Removes a call from the call map and from the calls of its subscription.
+     */
+    private void removeCall(Integer id) {
+        mCallMap.remove(id);
+        mSnapshotDirty = true;
+
+        final int index = mCallSubscriptions.indexOfKey(id);
+        if (index >= 0) {
+            final int subscription = mCallSubscriptions.valueAt(index);
+            mCallSubscriptions.removeAt(index);
+            mSubscriptionCalls.get(subscription).remove(id);
+            updateLiveSubscription(subscription);
+        }
+    }
+
+    private void updateLiveSubscription(int subscription) {
+        if (subscription < 0 || subscription >= Integer.SIZE) {
+            return;
+        }
+        final SubscriptionCalls calls = mSubscriptionCalls.get(subscription);
+        if (calls != null && calls.hasLiveCall()) {
+            mLiveSubscriptionMask |= 1 << subscription;
+        } else {
+            mLiveSubscriptionMask &= ~(1 << subscription);
+        }
+    }
+
     private int getDelayForDisconnect(Call call) {
         Preconditions.checkState(call.getState() == Call.State.DISCONNECTED);
 
@@ -453,7 +619,10 @@ public class CallList {
     }
 
     private boolean isCallDead(Call call) {
-        final int state = call.getState();
+        return isDeadState(call.getState());
+    }
+
+    private static boolean isDeadState(int state) {
         return Call.State.IDLE == state || Call.State.INVALID == state;
     }
 
@@ -520,6 +689,13 @@ public class CallList {
         public void onDisconnect(Call call);
     }
 
+    /**
+     * Listener for dialing calls the first time they are seen by the call list.
+     */
+    public interface NewOutgoingCallListener {
+        public void onNewOutgoingCall(Call call);
+    }
+
     public interface CallUpdateListener {
         // TODO: refactor and limit arg to be call state.  Caller info is not needed.
         public void onCallStateChanged(Call call);
@@ -547,31 +723,23 @@ public class CallList {
         if (subscription != mSubscription) {
             Log.i(this, "setActiveSubscription, old = " + mSubscription + " new = " + subscription);
             mSubscription = subscription;
+            mSnapshotDirty = true;
             final Message msg = mHandler.obtainMessage(EVENT_NOTIFY_CHANGE, null);
             mHandler.sendMessage(msg);
         }
     }
 
     public boolean existsConnectedCall(int subscription) {
-        for (Call call : mCallMap.values()) {
-            if (!isCallDead(call) && call.getState() != Call.State.DISCONNECTED
-                    && call.getSubscription() == subscription) {
-                return true;
-            }
-        }
-        return false;
+        final SubscriptionCalls calls = mSubscriptionCalls.get(subscription);
+        return calls != null && calls.hasConnectedCall();
     }
 
     /**
      * Returns true, if any voice call in ACTIVE on the provided subscription.
      */
     public boolean existsLiveCall(int subscription) {
-        for (Call call : mCallMap.values()) {
-            if (!isCallDead(call) && (call.getSubscription() == subscription)) {
-                return true;
-            }
-        }
-        return false;
+        final SubscriptionCalls calls = mSubscriptionCalls.get(subscription);
+        return calls != null && calls.hasLiveCall();
     }
 
     /**
@@ -581,26 +749,23 @@ public class CallList {
      * @param retainLch  whether to retain the LCH state of the other active sub
      */
     public boolean switchToOtherActiveSubscription(boolean retainLch) {
-        int activeSub = getActiveSubscription();
-        boolean subSwitched = false;
-
-        for (int i = 0; i < MSimTelephonyManager.getDefault().getPhoneCount(); i++) {
-            if ((i != activeSub) && existsLiveCall(i)) {
-                Log.i(this, "switchToOtherActiveSubscription, sub = " + i +
-                        " retainLch = " + retainLch);
-                subSwitched = true;
-                if (retainLch) {
-                    CallCommandClient.getInstance().setSubInConversation(
-                            MSimConstants.INVALID_SUBSCRIPTION);
-                    CallCommandClient.getInstance().setActiveSubscription(i);
-                } else {
-                    CallCommandClient.getInstance().setActiveAndConversationSub(i);
-                }
-                setActiveSubscription(i);
-                break;
-            }
+        final int otherSubs = getOtherLiveSubscriptions(getActiveSubscription());
+        if (otherSubs == 0) {
+            return false;
         }
-        return subSwitched;
+
+        final int sub = Integer.numberOfTrailingZeros(otherSubs);
+        Log.i(this, "switchToOtherActiveSubscription, sub = " + sub +
+                " retainLch = " + retainLch);
+        if (retainLch) {
+            CallCommandClient.getInstance().setSubInConversation(
+                    MSimConstants.INVALID_SUBSCRIPTION);
+            CallCommandClient.getInstance().setActiveSubscription(sub);
+        } else {
+            CallCommandClient.getInstance().setActiveAndConversationSub(sub);
+        }
+        setActiveSubscription(sub);
+        return true;
     }
 
     /**
@@ -608,15 +773,29 @@ public class CallList {
      * @param currentSub  The subscription to exclude while checking for active calls.
      */
     public boolean isAnyOtherSubActive(int currentSub) {
-        boolean result = false;
-        for (int i = 0; i < MSimTelephonyManager.getDefault().getPhoneCount(); i++) {
-            if ((i != currentSub) && existsLiveCall(i)) {
-                Log.d(this, "Live call found on another sub = " + i);
-                result = true;
-                break;
-            }
+        final int otherSubs = getOtherLiveSubscriptions(currentSub);
+        if (otherSubs != 0) {
+            Log.d(this, "Live call found on another sub = "
+                    + Integer.numberOfTrailingZeros(otherSubs));
+            return true;
         }
-        return result;
+        return false;
+    }
+
+    /**
+     * Returns the subscriptions of the phone, other than the one supplied, that have a live
+     * call, as a bitmask with bit (1 << subscription) set for each of them.
+     */
+    private int getOtherLiveSubscriptions(int currentSub) {
+        int subs = mLiveSubscriptionMask;
+        if (currentSub >= 0 && currentSub < Integer.SIZE) {
+            subs &= ~(1 << currentSub);
+        }
+        final int phoneCount = SimTopology.getInstance().phoneCount;
+        if (phoneCount < Integer.SIZE) {
+            subs &= (1 << phoneCount) - 1;
+        }
+        return subs;
     }
 
     /**
@@ -624,7 +803,7 @@ public class CallList {
      * updates the mSubscription member variable.
      */
     public void updateActiveSuscription() {
-        if (!MSimTelephonyManager.getDefault().isMultiSimEnabled()) {
+        if (!SimTopology.getInstance().isMultiSimEnabled) {
             return;
         }
         setActiveSubscription(CallCommandClient.getInstance().getActiveSubscription());
@@ -635,19 +814,8 @@ public class CallList {
      * found in the call map with the specified state.
      */
     public Call getCallWithState(int state, int positionToFind, int subscription) {
-        Call retval = null;
-        int position = 0;
-        for (Call call : mCallMap.values()) {
-            if ((call.getState() == state) && (call.getSubscription() == subscription)) {
-                if (position >= positionToFind) {
-                    retval = call;
-                    break;
-                } else {
-                    position++;
-                }
-            }
-        }
-        return retval;
+        final SubscriptionCalls calls = mSubscriptionCalls.get(subscription);
+        return calls != null ? calls.getCallWithState(state, positionToFind) : null;
     }
 
     public Call getCallWithStateAndNumber(int state, String number) {
@@ -672,4 +840,94 @@ public class CallList {
     public interface ActiveSubChangeListener {
         public void onActiveSubChanged(int subscription);
     }
+
+    /**
+     * The calls of one subscription, indexed by state so that the per-subscription queries
+     * don't have to scan all calls.
+     */
+    private static class SubscriptionCalls {
+        // Calls by state, in the order they reached that state.
+        private final SparseArray<ArrayList<Call>> mCallsByState =
+                new SparseArray<ArrayList<Call>>();
+        // The state each call is indexed under, by call id. Calls can be changed in place, so
+        // this is what their index entry is found with.
+        private final SparseIntArray mIndexedStates = new SparseIntArray();
+        private int mLiveCount;
+        private int mConnectedCount;
+
+        public void put(Call call) {
+            final int callId = call.getCallId();
+            final int state = call.getState();
+            final int index = mIndexedStates.indexOfKey(callId);
+            if (index >= 0 && mIndexedStates.valueAt(index) == state) {
+                // Same state, keep the position of the call.
+                final ArrayList<Call> calls = mCallsByState.get(state);
+                calls.set(indexOf(calls, callId), call);
+                return;
+            }
+
+            remove(callId);
+            ArrayList<Call> calls = mCallsByState.get(state);
+            if (calls == null) {
+                calls = Lists.newArrayList();
+                mCallsByState.put(state, calls);
+            }
+            calls.add(call);
+            mIndexedStates.put(callId, state);
+            updateCounts(state, 1);
+        }
+
+        public void remove(int callId) {
+            final int index = mIndexedStates.indexOfKey(callId);
+            if (index < 0) {
+                return;
+            }
+            final int state = mIndexedStates.valueAt(index);
+            mIndexedStates.removeAt(index);
+            final ArrayList<Call> calls = mCallsByState.get(state);
+            calls.remove(indexOf(calls, callId));
+            updateCounts(state, -1);
+        }
+
+        public Call getCallWithState(int state, int position) {
+            final ArrayList<Call> calls = mCallsByState.get(state);
+            return calls != null && position < calls.size() ? calls.get(position) : null;
+        }
+
+        public boolean hasLiveCall() {
+            return mLiveCount > 0;
+        }
+
+        public boolean hasConnectedCall() {
+            return mConnectedCount > 0;
+        }
+
+        public int getPresentStates() {
+            int states = 0;
+            for (int i = 0; i < mCallsByState.size(); i++) {
+                if (!mCallsByState.valueAt(i).isEmpty()) {
+                    states |= 1 << mCallsByState.keyAt(i);
+                }
+            }
+            return states;
+        }
+
+        private void updateCounts(int state, int delta) {
+            if (!isDeadState(state)) {
+                mLiveCount += delta;
+                if (state != Call.State.DISCONNECTED) {
+                    mConnectedCount += delta;
+                }
+            }
+        }
+
+        private static int indexOf(ArrayList<Call> calls, int callId) {
+            for (int i = 0; i < calls.size(); i++) {
+                if (calls.get(i).getCallId() == callId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Parcel;
+import android.text.TextUtils;
+
+import com.android.services.telephony.common.Call;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of the {@link CallList} at one point in time.
+ *
+ * While a snapshot consumer is registered, the call list builds a new snapshot on the main
+ * thread after each batch of updates and publishes it for any thread to read. Snapshots hold
+ * copies of the calls, so they can be read from any thread without locking and never change
+ * under the reader. Every snapshot has a version that increases with each new snapshot;
+ * comparing versions is a cheap way to tell whether anything changed since a snapshot was last
+ * seen.
+ */
+public final class CallListSnapshot {
+
+    static final CallListSnapshot EMPTY =
+            new CallListSnapshot(0, 0, Collections.<Call>emptyList());
+
+    private final long mVersion;
+    private final int mActiveSubscription;
+    private final List<Call> mCalls;
+
+    private CallListSnapshot(long version, int activeSubscription, List<Call> calls) {
+        mVersion = version;
+        mActiveSubscription = activeSubscription;
+        mCalls = calls;
+    }
+
+    /**
+     * Creates a snapshot of the given calls. Only called by the call list, on the main thread.
+     */
+    static CallListSnapshot create(long version, int activeSubscription, Collection<Call> calls) {
+        final ArrayList<Call> copies = new ArrayList<Call>(calls.size());
+        for (Call call : calls) {
+            copies.add(copy(call));
+        }
+        return new CallListSnapshot(version, activeSubscription,
+                Collections.unmodifiableList(copies));
+    }
+
+    /**
+     * Copies a call through its parcelable form, the same way calls reach the call list.
+     */
+    private static Call copy(Call call) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            call.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return Call.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getActiveSubscription() {
+        return mActiveSubscription;
+    }
+
+    /**
+     * @return the calls of the snapshot. The calls must not be modified.
+     */
+    public List<Call> getCalls() {
+        return mCalls;
+    }
+
+    public Call getCall(int callId) {
+        for (int i = 0; i < mCalls.size(); i++) {
+            if (mCalls.get(i).getCallId() == callId) {
+                return mCalls.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first call with the specified state. In DSDA mode, only the calls of the
+     * active subscription are considered, as in {@link CallList#getFirstCallWithState(int)}.
+     */
+    public Call getFirstCallWithState(int state) {
+        final boolean isDsda = SimTopology.getInstance().isDsda;
+        for (int i = 0; i < mCalls.size(); i++) {
+            final Call call = mCalls.get(i);
+            if (call.getState() == state
+                    && (!isDsda || call.getSubscription() == mActiveSubscription)) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    public Call getCallWithStateAndNumber(int state, String number) {
+        for (int i = 0; i < mCalls.size(); i++) {
+            final Call call = mCalls.get(i);
+            if (call.getState() == state && TextUtils.equals(call.getNumber(), number)) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    public Call getActiveCall() {
+        return getFirstCallWithState(Call.State.ACTIVE);
+    }
+
+    public boolean existsLiveCall() {
+        for (int i = 0; i < mCalls.size(); i++) {
+            final int state = mCalls.get(i).getState();
+            if (state != Call.State.IDLE && state != Call.State.INVALID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "CallListSnapshot{version=" + mVersion + ", activeSub=" + mActiveSubscription
+                + ", calls=" + mCalls.size() + "}";
+    }
+}
@@ -20,7 +20,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -30,7 +29,6 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.android.services.callrecorder.CallRecorderService;
-import com.android.services.callrecorder.CallRecordingDataStore;
 import com.android.services.callrecorder.common.CallRecording;
 import com.android.services.callrecorder.common.ICallRecorderService;
 import com.android.services.telephony.common.Call;
@@ -50,22 +48,29 @@ public class CallRecorder implements CallList.Listener {
     private static CallRecorder sInstance = null;
 
     private Context mContext;
+    private CallRecordingPersister mPersister;
     private boolean mInitialized = false;
     private ICallRecorderService mService = null;
 
+    // Local mirror of the service's active recording, so that state checks and progress
+    // updates don't need a binder call. Only changed on the main thread.
+    private CallRecording mActiveRecording = null;
+
     private HashSet<RecordingProgressListener> mProgressListeners =
             new HashSet<RecordingProgressListener>();
-    private Handler mHandler = new Handler();
 
     private ServiceConnection mConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mService = ICallRecorderService.Stub.asInterface(service);
+            // The service may still be recording from before we were (re)bound.
+            syncActiveRecording();
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             mService = null;
+            setActiveRecording(null);
         }
     };
 
@@ -86,6 +91,9 @@ public class CallRecorder implements CallList.Listener {
 
     public void setUp(Context context) {
         mContext = context.getApplicationContext();
+        if (mPersister == null) {
+            mPersister = new CallRecordingPersister(mContext);
+        }
     }
 
     private void initialize() {
@@ -110,10 +118,7 @@ public class CallRecorder implements CallList.Listener {
 
         try {
             if (mService.startRecording(phoneNumber, creationTime)) {
-                for (RecordingProgressListener l : mProgressListeners) {
-                    l.onStartRecording();
-                }
-                mUpdateRecordingProgressTask.run();
+                syncActiveRecording();
                 return true;
             } else {
                 Toast.makeText(mContext, R.string.call_recording_failed_message,
@@ -128,53 +133,76 @@ public class CallRecorder implements CallList.Listener {
     }
 
     public boolean isRecording() {
-        if (mService == null) {
-            return false;
-        }
+        return mActiveRecording != null;
+    }
 
-        try {
-            return mService.isRecording();
-        } catch (RemoteException e) {
-            Log.w(TAG, "Exception checking recording status", e);
+    public CallRecording getActiveRecording() {
+        return mActiveRecording;
+    }
+
+    /**
+     * Refreshes the local mirror of the active recording from the service. This is only needed
+     * when the recording state may have changed outside of this class.
+     */
+    private void syncActiveRecording() {
+        CallRecording active = null;
+        if (mService != null) {
+            try {
+                active = mService.getActiveRecording();
+            } catch (RemoteException e) {
+                Log.w(TAG, "Exception getting active recording", e);
+            }
         }
-        return false;
+        setActiveRecording(active);
     }
 
-    public CallRecording getActiveRecording() {
-        if (mService == null) {
-            return null;
+    private void setActiveRecording(CallRecording recording) {
+        final boolean wasRecording = mActiveRecording != null;
+        mActiveRecording = recording;
+
+        if (recording != null && !wasRecording) {
+            for (RecordingProgressListener l : mProgressListeners) {
+                l.onStartRecording();
+            }
+        } else if (recording == null && wasRecording) {
+            for (RecordingProgressListener l : mProgressListeners) {
+                l.onStopRecording();
+            }
         }
+        updateProgressTask();
+    }
 
-        try {
-            return mService.getActiveRecording();
-        } catch (RemoteException e) {
-            Log.w("Exception getting active recording", e);
+    /**
+     * Follows the shared call duration clock only while something is recorded and someone is
+     * listening.
+     */
+    private void updateProgressTask() {
+        if (mActiveRecording != null && !mProgressListeners.isEmpty()) {
+            // Listeners display elapsed time rounded to the nearest second, so shift the
+            // start time to get a tick whenever the displayed value changes.
+            CallDurationClock.getInstance().subscribe(mRecordingTimeListener,
+                    mActiveRecording.startRecordingTime - ROUNDING_OFFSET_MS);
+        } else {
+            CallDurationClock.getInstance().unsubscribe(mRecordingTimeListener);
         }
-        return null;
     }
 
     public void finishRecording() {
+        if (mService == null) {
+            setActiveRecording(null);
+            return;
+        }
+
         try {
             final CallRecording recording = mService.stopRecording();
             if (recording != null) {
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        CallRecordingDataStore dataStore = new CallRecordingDataStore();
-                        dataStore.open(mContext);
-                        dataStore.putRecording(recording);
-                        dataStore.close();
-                    }
-                }).start();
+                mPersister.persist(recording);
             }
         } catch (RemoteException e) {
             Log.w(TAG, "Failed to stop recording", e);
         }
 
-        for (RecordingProgressListener l : mProgressListeners) {
-            l.onStopRecording();
-        }
-        mHandler.removeCallbacks(mUpdateRecordingProgressTask);
+        setActiveRecording(null);
     }
 
     //
@@ -226,27 +254,44 @@ public class CallRecorder implements CallList.Listener {
         public void onRecordingTimeProgress(long elapsedTimeMs);
     }
 
+    /**
+     * Adds a listener for recording progress. Listeners should only be registered while they
+     * are visible; progress updates stop when no listener is registered. The listener is
+     * immediately told the current recording state.
+     */
     public void addRecordingProgressListener(RecordingProgressListener listener) {
-        mProgressListeners.add(listener);
+        if (!mProgressListeners.add(listener)) {
+            return;
+        }
+        if (mActiveRecording != null) {
+            listener.onStartRecording();
+            listener.onRecordingTimeProgress(
+                    System.currentTimeMillis() - mActiveRecording.startRecordingTime);
+        } else {
+            listener.onStopRecording();
+        }
+        updateProgressTask();
     }
 
     public void removeRecordingProgressListener(RecordingProgressListener listener) {
         mProgressListeners.remove(listener);
+        if (mProgressListeners.isEmpty()) {
+            updateProgressTask();
+        }
     }
 
-    private static final int UPDATE_INTERVAL = 500;
+    private static final long ROUNDING_OFFSET_MS = 500;
 
-    private Runnable mUpdateRecordingProgressTask = new Runnable() {
+    private CallDurationClock.Listener mRecordingTimeListener = new CallDurationClock.Listener() {
         @Override
-        public void run() {
-            CallRecording active = getActiveRecording();
-            if (active != null) {
-                long elapsed = System.currentTimeMillis() - active.startRecordingTime;
-                for (RecordingProgressListener l : mProgressListeners) {
-                    l.onRecordingTimeProgress(elapsed);
-                }
+        public void onElapsedTimeChanged(long elapsedSeconds) {
+            if (mActiveRecording == null) {
+                return;
+            }
+            long elapsed = System.currentTimeMillis() - mActiveRecording.startRecordingTime;
+            for (RecordingProgressListener l : mProgressListeners) {
+                l.onRecordingTimeProgress(elapsed);
             }
-            mHandler.postDelayed(mUpdateRecordingProgressTask, UPDATE_INTERVAL);
         }
     };
 }
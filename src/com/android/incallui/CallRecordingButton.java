@@ -73,9 +73,15 @@ public class CallRecordingButton extends ImageButton
     }
 
     @Override
-    protected void onAttachedToWindow() {
-        super.onAttachedToWindow();
-        CallRecorder.getInstance().addRecordingProgressListener(this);
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        // Only listen while the window is visible, so that recording progress updates
+        // can stop while the in-call UI is hidden.
+        if (visibility == View.VISIBLE) {
+            CallRecorder.getInstance().addRecordingProgressListener(this);
+        } else {
+            CallRecorder.getInstance().removeRecordingProgressListener(this);
+        }
     }
 
     @Override
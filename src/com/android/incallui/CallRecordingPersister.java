@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.services.callrecorder.CallRecordingDataStore;
+import com.android.services.callrecorder.common.CallRecording;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores finished call recordings in the {@link CallRecordingDataStore}.
+ *
+ * Recordings are first written to a journal directory, one file per recording, and then
+ * stored by a single worker thread. All recordings pending in the journal are stored with one
+ * open of the data store, and a journal entry is only deleted once its recording has been
+ * stored, so recordings finished right before a process death are stored on the next start.
+ *
+ * Journal entries use their own versioned format rather than parcel data, so that entries
+ * written by one version of the app can be read by the next. Entries are written to a
+ * temporary file and renamed when complete. Entries that still can't be read are kept aside
+ * with a different suffix instead of being deleted.
+ */
+class CallRecordingPersister {
+    private static final String TAG = "CallRecordingPersister";
+
+    private static final String JOURNAL_DIR = "pending_recordings";
+    private static final String JOURNAL_SUFFIX = ".rec";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final int JOURNAL_VERSION = 1;
+
+    private final Context mContext;
+    private final File mJournalDir;
+    private final Handler mHandler;
+
+    // Whether a flush is already queued; only accessed while holding "this".
+    private boolean mFlushPending;
+
+    public CallRecordingPersister(Context context) {
+        mContext = context;
+        mJournalDir = new File(context.getFilesDir(), JOURNAL_DIR);
+
+        HandlerThread thread = new HandlerThread("CallRecordingPersister");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        // Store anything left in the journal by a previous process.
+        scheduleFlush();
+    }
+
+    /**
+     * Journals the recording and schedules it to be stored in the data store.
+     */
+    public void persist(final CallRecording recording) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeJournalEntry(recording);
+                // Scheduled from here so that the flush always comes after the new entry.
+                scheduleFlush();
+            }
+        });
+    }
+
+    private synchronized void scheduleFlush() {
+        if (mFlushPending) {
+            return;
+        }
+        mFlushPending = true;
+        mHandler.post(mFlushTask);
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CallRecordingPersister.this) {
+                mFlushPending = false;
+            }
+            flushJournal();
+        }
+    };
+
+    private void writeJournalEntry(CallRecording recording) {
+        if (!mJournalDir.isDirectory() && !mJournalDir.mkdirs()) {
+            Log.w(TAG, "Could not create journal directory, storing recording directly");
+            storeRecordings(Arrays.asList(recording), null);
+            return;
+        }
+
+        File temp = null;
+        FileOutputStream out = null;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeRecording(new DataOutputStream(bytes), recording);
+
+            temp = File.createTempFile("recording", TEMP_SUFFIX, mJournalDir);
+            out = new FileOutputStream(temp);
+            bytes.writeTo(out);
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            final String name = temp.getName();
+            final File entry = new File(mJournalDir,
+                    name.substring(0, name.length() - TEMP_SUFFIX.length()) + JOURNAL_SUFFIX);
+            if (!temp.renameTo(entry)) {
+                throw new IOException("Could not rename " + name);
+            }
+            temp = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to journal recording, storing it directly", e);
+            storeRecordings(Arrays.asList(recording), null);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void flushJournal() {
+        final File[] entries = mJournalDir.listFiles();
+        if (entries == null || entries.length == 0) {
+            return;
+        }
+
+        final CallRecording[] recordings = new CallRecording[entries.length];
+        final File[] readEntries = new File[entries.length];
+        int count = 0;
+        for (File entry : entries) {
+            final String name = entry.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over by a process that died while writing it; the recording was
+                // stored directly or not at all.
+                entry.delete();
+                continue;
+            }
+            if (!name.endsWith(JOURNAL_SUFFIX)) {
+                continue;
+            }
+            final CallRecording recording = readJournalEntry(entry);
+            if (recording != null) {
+                recordings[count] = recording;
+                readEntries[count] = entry;
+                count++;
+            } else {
+                final File corrupt = new File(mJournalDir, name + CORRUPT_SUFFIX);
+                Log.e(TAG, "Could not read journal entry " + name + ", keeping it as "
+                        + corrupt.getName());
+                entry.renameTo(corrupt);
+            }
+        }
+
+        storeRecordings(Arrays.asList(recordings).subList(0, count),
+                Arrays.asList(readEntries).subList(0, count));
+    }
+
+    private static void writeRecording(DataOutputStream out, CallRecording recording)
+            throws IOException {
+        out.writeInt(JOURNAL_VERSION);
+        writeString(out, recording.phoneNumber);
+        out.writeLong(recording.creationTime);
+        writeString(out, recording.fileName);
+        out.writeLong(recording.startRecordingTime);
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private CallRecording readJournalEntry(File entry) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+            final int version = in.readInt();
+            if (version != JOURNAL_VERSION) {
+                Log.w(TAG, "Unsupported journal entry version " + version);
+                return null;
+            }
+            final String phoneNumber = readString(in);
+            final long creationTime = in.readLong();
+            final String fileName = readString(in);
+            final long startRecordingTime = in.readLong();
+            return new CallRecording(phoneNumber, creationTime, fileName, startRecordingTime);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read journal entry " + entry.getName(), e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the recordings with a single open of the data store. Each journal entry is
+     * deleted as soon as its recording is stored, and recordings the data store already has,
+     * because an earlier attempt failed after storing them, are not stored again.
+     *
+     * @param entries the journal entries of the recordings, or null if they aren't journaled.
+     */
+    private void storeRecordings(List<CallRecording> recordings, List<File> entries) {
+        if (recordings.isEmpty()) {
+            return;
+        }
+
+        final CallRecordingDataStore dataStore = new CallRecordingDataStore();
+        int stored = 0;
+        try {
+            dataStore.open(mContext);
+            for (CallRecording recording : recordings) {
+                if (!isStored(dataStore, recording)) {
+                    dataStore.putRecording(recording);
+                }
+                if (entries != null) {
+                    entries.get(stored).delete();
+                }
+                stored++;
+            }
+        } catch (RuntimeException e) {
+            // The remaining entries stay in the journal and are retried with the next flush.
+            Log.w(TAG, "Failed to store " + (recordings.size() - stored) + " recordings", e);
+        } finally {
+            dataStore.close();
+        }
+    }
+
+    private static boolean isStored(CallRecordingDataStore dataStore, CallRecording recording) {
+        final List<CallRecording> existing =
+                dataStore.getRecordings(recording.phoneNumber, recording.creationTime);
+        if (existing != null) {
+            for (CallRecording other : existing) {
+                if (TextUtils.equals(other.fileName, recording.fileName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
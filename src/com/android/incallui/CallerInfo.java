@@ -24,6 +24,7 @@ import android.location.Country;
 import android.location.CountryDetector;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.PhoneLookup;
@@ -143,6 +144,128 @@ public class CallerInfo {
         mIsVoiceMail = false;
     }
 
+    /**
+     * Minimal projection for PhoneLookup queries; the indexes in {@link #PHONE_LOOKUP_COLUMNS}
+     * match its order.
+     */
+    static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
+        PhoneLookup._ID,
+        PhoneLookup.DISPLAY_NAME,
+        PhoneLookup.NUMBER,
+        PhoneLookup.NORMALIZED_NUMBER,
+        PhoneLookup.TYPE,
+        PhoneLookup.LABEL,
+        PhoneLookup.CUSTOM_RINGTONE,
+        PhoneLookup.SEND_TO_VOICEMAIL,
+    };
+
+    private static final ColumnIndexes PHONE_LOOKUP_COLUMNS =
+            new ColumnIndexes(1, 2, 3, 4, 5, 0, 6, 7);
+
+    /**
+     * Minimal projection for SIP address queries on the Data table; the indexes in
+     * {@link #DATA_COLUMNS} match its order. The Data table has no number or label columns,
+     * which a full-row query didn't return either.
+     */
+    static final String[] DATA_PROJECTION = new String[] {
+        Data.CONTACT_ID,
+        Data.DISPLAY_NAME,
+        Data.CUSTOM_RINGTONE,
+        Data.SEND_TO_VOICEMAIL,
+    };
+
+    private static final ColumnIndexes DATA_COLUMNS =
+            new ColumnIndexes(1, -1, -1, -1, -1, 0, 2, 3);
+
+    /**
+     * Positions of the columns read from a caller info cursor; -1 for absent columns.
+     */
+    private static final class ColumnIndexes {
+        final int name;
+        final int number;
+        final int normalizedNumber;
+        final int type;
+        final int label;
+        final int personId;
+        final int customRingtone;
+        final int sendToVoicemail;
+
+        ColumnIndexes(int name, int number, int normalizedNumber, int type, int label,
+                int personId, int customRingtone, int sendToVoicemail) {
+            this.name = name;
+            this.number = number;
+            this.normalizedNumber = normalizedNumber;
+            this.type = type;
+            this.label = label;
+            this.personId = personId;
+            this.customRingtone = customRingtone;
+            this.sendToVoicemail = sendToVoicemail;
+        }
+
+        /**
+         * Resolves the columns of a cursor of unknown shape by name.
+         */
+        static ColumnIndexes forCursor(Uri contactRef, Cursor cursor) {
+            final int label = cursor.getColumnIndex(PhoneLookup.LABEL);
+            final int type = cursor.getColumnIndex(PhoneLookup.TYPE);
+            return new ColumnIndexes(
+                    cursor.getColumnIndex(PhoneLookup.DISPLAY_NAME),
+                    cursor.getColumnIndex(PhoneLookup.NUMBER),
+                    cursor.getColumnIndex(PhoneLookup.NORMALIZED_NUMBER),
+                    label != -1 ? type : -1,
+                    type != -1 ? label : -1,
+                    getColumnIndexForPersonId(contactRef, cursor),
+                    cursor.getColumnIndex(PhoneLookup.CUSTOM_RINGTONE),
+                    cursor.getColumnIndex(PhoneLookup.SEND_TO_VOICEMAIL));
+        }
+    }
+
+    /**
+     * Returns the minimal projection to query the given contactRef with, or null if the Uri
+     * is not one we know the columns of.
+     */
+    static String[] getProjection(Uri contactRef) {
+        final String url = contactRef.toString();
+        if (url.startsWith("content://com.android.contacts/phone_lookup")) {
+            return PHONE_LOOKUP_PROJECTION;
+        } else if (contactRef.equals(Data.CONTENT_URI)) {
+            return DATA_PROJECTION;
+        }
+        return null;
+    }
+
+    /**
+     * Queries contactRef with the minimal projection for it and builds the CallerInfo from
+     * the first row. Must not be called on the main thread.
+     */
+    static CallerInfo queryCallerInfo(Context context, Uri contactRef, String selection,
+            String[] selectionArgs) {
+        final String[] projection = getProjection(contactRef);
+        final long start = SystemClock.elapsedRealtime();
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(contactRef, projection, selection,
+                    selectionArgs, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Caller info query failed", e);
+        }
+        Log.v(TAG, "Caller info query took " + (SystemClock.elapsedRealtime() - start)
+                + "ms, projection=" + (projection != null ? projection.length : "all"));
+
+        if (cursor == null) {
+            return getCallerInfo(context, contactRef, cursor, null);
+        }
+        final ColumnIndexes columns;
+        if (projection == PHONE_LOOKUP_PROJECTION) {
+            columns = PHONE_LOOKUP_COLUMNS;
+        } else if (projection == DATA_PROJECTION) {
+            columns = DATA_COLUMNS;
+        } else {
+            columns = ColumnIndexes.forCursor(contactRef, cursor);
+        }
+        return getCallerInfo(context, contactRef, cursor, columns);
+    }
+
     /**
      * getCallerInfo given a Cursor.
      * @param context the context used to retrieve string constants
@@ -152,6 +275,12 @@ public class CallerInfo {
      * number. The returned CallerInfo is null if no number is supplied.
      */
     public static CallerInfo getCallerInfo(Context context, Uri contactRef, Cursor cursor) {
+        return getCallerInfo(context, contactRef, cursor,
+                cursor != null ? ColumnIndexes.forCursor(contactRef, cursor) : null);
+    }
+
+    private static CallerInfo getCallerInfo(Context context, Uri contactRef, Cursor cursor,
+            ColumnIndexes columns) {
         CallerInfo info = new CallerInfo();
         info.photoResource = 0;
         info.phoneLabel = null;
@@ -169,43 +298,33 @@ public class CallerInfo {
                 // care of here. Maybe we should store it in the
                 // CallerInfo object as well.
 
-                int columnIndex;
-
                 // Look for the name
-                columnIndex = cursor.getColumnIndex(PhoneLookup.DISPLAY_NAME);
-                if (columnIndex != -1) {
-                    info.name = cursor.getString(columnIndex);
+                if (columns.name != -1) {
+                    info.name = cursor.getString(columns.name);
                 }
 
                 // Look for the number
-                columnIndex = cursor.getColumnIndex(PhoneLookup.NUMBER);
-                if (columnIndex != -1) {
-                    info.phoneNumber = cursor.getString(columnIndex);
+                if (columns.number != -1) {
+                    info.phoneNumber = cursor.getString(columns.number);
                 }
 
                 // Look for the normalized number
-                columnIndex = cursor.getColumnIndex(PhoneLookup.NORMALIZED_NUMBER);
-                if (columnIndex != -1) {
-                    info.normalizedNumber = cursor.getString(columnIndex);
+                if (columns.normalizedNumber != -1) {
+                    info.normalizedNumber = cursor.getString(columns.normalizedNumber);
                 }
 
                 // Look for the label/type combo
-                columnIndex = cursor.getColumnIndex(PhoneLookup.LABEL);
-                if (columnIndex != -1) {
-                    int typeColumnIndex = cursor.getColumnIndex(PhoneLookup.TYPE);
-                    if (typeColumnIndex != -1) {
-                        info.numberType = cursor.getInt(typeColumnIndex);
-                        info.numberLabel = cursor.getString(columnIndex);
-                        info.phoneLabel = Phone.getDisplayLabel(context,
-                                info.numberType, info.numberLabel)
-                                .toString();
-                    }
+                if (columns.label != -1 && columns.type != -1) {
+                    info.numberType = cursor.getInt(columns.type);
+                    info.numberLabel = cursor.getString(columns.label);
+                    info.phoneLabel = Phone.getDisplayLabel(context,
+                            info.numberType, info.numberLabel)
+                            .toString();
                 }
 
                 // Look for the person_id.
-                columnIndex = getColumnIndexForPersonId(contactRef, cursor);
-                if (columnIndex != -1) {
-                    info.person_id = cursor.getLong(columnIndex);
+                if (columns.personId != -1) {
+                    info.person_id = cursor.getLong(columns.personId);
                     Log.v(TAG, "==> got info.person_id: " + info.person_id);
                 } else {
                     // No valid columnIndex, so we can't look up person_id.
@@ -217,18 +336,14 @@ public class CallerInfo {
 
                 // look for the custom ringtone, create from the string stored
                 // in the database.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.CUSTOM_RINGTONE);
-                if ((columnIndex != -1) && (cursor.getString(columnIndex) != null)) {
-                    info.contactRingtoneUri = Uri.parse(cursor.getString(columnIndex));
-                } else {
-                    info.contactRingtoneUri = null;
-                }
+                final String ringtone = columns.customRingtone != -1
+                        ? cursor.getString(columns.customRingtone) : null;
+                info.contactRingtoneUri = ringtone != null ? Uri.parse(ringtone) : null;
 
                 // look for the send to voicemail flag, set it to true only
                 // under certain circumstances.
-                columnIndex = cursor.getColumnIndex(PhoneLookup.SEND_TO_VOICEMAIL);
-                info.shouldSendToVoicemail = (columnIndex != -1) &&
-                        ((cursor.getInt(columnIndex)) == 1);
+                info.shouldSendToVoicemail = (columns.sendToVoicemail != -1) &&
+                        ((cursor.getInt(columns.sendToVoicemail)) == 1);
                 info.contactExists = true;
             }
             cursor.close();
@@ -250,9 +365,7 @@ public class CallerInfo {
      * number. The returned CallerInfo is null if no number is supplied.
      */
     public static CallerInfo getCallerInfo(Context context, Uri contactRef) {
-
-        return getCallerInfo(context, contactRef,
-                context.getContentResolver().query(contactRef, null, null, null, null));
+        return queryCallerInfo(context, contactRef, null, null);
     }
 
     /**
@@ -600,6 +713,37 @@ public class CallerInfo {
         return getCurrentCountryIso(context, Locale.getDefault());
     }
 
+    /**
+     * @return a shallow copy of this instance; the cached photo objects are shared.
+     */
+    CallerInfo copy() {
+        final CallerInfo info = new CallerInfo();
+        info.name = name;
+        info.phoneNumber = phoneNumber;
+        info.normalizedNumber = normalizedNumber;
+        info.forwardingNumber = forwardingNumber;
+        info.geoDescription = geoDescription;
+        info.cnapName = cnapName;
+        info.numberPresentation = numberPresentation;
+        info.namePresentation = namePresentation;
+        info.contactExists = contactExists;
+        info.phoneLabel = phoneLabel;
+        info.numberType = numberType;
+        info.numberLabel = numberLabel;
+        info.photoResource = photoResource;
+        info.person_id = person_id;
+        info.needUpdate = needUpdate;
+        info.contactRefUri = contactRefUri;
+        info.contactRingtoneUri = contactRingtoneUri;
+        info.shouldSendToVoicemail = shouldSendToVoicemail;
+        info.cachedPhoto = cachedPhoto;
+        info.cachedPhotoIcon = cachedPhotoIcon;
+        info.isCachedPhotoCurrent = isCachedPhotoCurrent;
+        info.mIsEmergency = mIsEmergency;
+        info.mIsVoiceMail = mIsVoiceMail;
+        return info;
+    }
+
     /**
      * @return a string debug representation of this instance.
      */
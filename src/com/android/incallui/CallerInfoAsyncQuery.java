@@ -16,36 +16,51 @@
 
 package com.android.incallui;
 
-import android.content.AsyncQueryHandler;
 import android.content.Context;
-import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract.CommonDataKinds.SipAddress;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
 /**
  * Helper class to make it easier to run asynchronous caller-id lookup queries.
  * @see CallerInfo
  *
+ * Queries are run by a small, fixed pool of worker threads shared by all callers. Pending
+ * queries are run in priority order, so the lookup for an incoming call is not stuck behind
+ * background lookups such as those for conference participants. Concurrent queries for the
+ * same (normalized) number or contact Uri are merged into one, and a query that nobody waits
+ * for anymore is dropped before it runs.
+ *
+ * Queries must be started and cancelled from the main thread; results are delivered there.
  */
 public class CallerInfoAsyncQuery {
     private static final boolean DBG = false;
     private static final String LOG_TAG = "CallerInfoAsyncQuery";
 
-    private static final int EVENT_NEW_QUERY = 1;
-    private static final int EVENT_ADD_LISTENER = 2;
-    private static final int EVENT_END_OF_QUEUE = 3;
-    private static final int EVENT_EMERGENCY_NUMBER = 4;
-    private static final int EVENT_VOICEMAIL_NUMBER = 5;
+    /** Priority of the lookup for a ringing or waiting call. */
+    public static final int PRIORITY_INCOMING = 0;
+    /** Priority of lookups for calls shown on the call card. */
+    public static final int PRIORITY_FOREGROUND = 1;
+    /** Priority of lookups nobody is looking at yet, e.g. conference participants. */
+    public static final int PRIORITY_BACKGROUND = 2;
 
-    private CallerInfoAsyncQueryHandler mHandler;
+    private static final int MAX_WORKERS = 2;
+
+    private static final int EVENT_NEW_QUERY = 1;
+    private static final int EVENT_EMERGENCY_NUMBER = 2;
+    private static final int EVENT_VOICEMAIL_NUMBER = 3;
 
     // If the CallerInfo query finds no contacts, should we use the
     // PhoneNumberOfflineGeocoder to look up a "geo description"?
@@ -53,8 +68,16 @@ public class CallerInfoAsyncQuery {
     // configured on a per-product basis.)
     private static final boolean ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION = true;
 
+    private static QueryEngine sEngine;
+
+    private final QueryRequest mRequest;
+    private final int mToken;
+    private final OnQueryCompleteListener mListener;
+    private final Object mCookie;
+    private boolean mCancelled;
+
     /**
-     * Interface for a CallerInfoAsyncQueryHandler result return.
+     * Interface for a CallerInfoAsyncQuery result return.
      */
     public interface OnQueryCompleteListener {
         /**
@@ -63,19 +86,6 @@ public class CallerInfoAsyncQuery {
         public void onQueryComplete(int token, Object cookie, CallerInfo ci);
     }
 
-
-    /**
-     * Wrap the cookie from the WorkerArgs with additional information needed by our
-     * classes.
-     */
-    private static final class CookieWrapper {
-        public OnQueryCompleteListener listener;
-        public Object cookie;
-        public int event;
-        public String number;
-    }
-
-
     /**
      * Simple exception used to communicate problems with the query pool.
      */
@@ -85,239 +95,45 @@ public class CallerInfoAsyncQuery {
         }
     }
 
-    /**
-     * Our own implementation of the AsyncQueryHandler.
-     */
-    private class CallerInfoAsyncQueryHandler extends AsyncQueryHandler {
-
-        /**
-         * The information relevant to each CallerInfo query.  Each query may have multiple
-         * listeners, so each AsyncCursorInfo is associated with 2 or more CookieWrapper
-         * objects in the queue (one with a new query event, and one with a end event, with
-         * 0 or more additional listeners in between).
-         */
-        private Context mQueryContext;
-        private Uri mQueryUri;
-        private CallerInfo mCallerInfo;
-
-        /**
-         * Our own query worker thread.
-         *
-         * This thread handles the messages enqueued in the looper.  The normal sequence
-         * of events is that a new query shows up in the looper queue, followed by 0 or
-         * more add listener requests, and then an end request.  Of course, these requests
-         * can be interlaced with requests from other tokens, but is irrelevant to this
-         * handler since the handler has no state.
-         *
-         * Note that we depend on the queue to keep things in order; in other words, the
-         * looper queue must be FIFO with respect to input from the synchronous startQuery
-         * calls and output to this handleMessage call.
-         *
-         * This use of the queue is required because CallerInfo objects may be accessed
-         * multiple times before the query is complete.  All accesses (listeners) must be
-         * queued up and informed in order when the query is complete.
-         */
-        protected class CallerInfoWorkerHandler extends WorkerHandler {
-            public CallerInfoWorkerHandler(Looper looper) {
-                super(looper);
-            }
-
-            @Override
-            public void handleMessage(Message msg) {
-                WorkerArgs args = (WorkerArgs) msg.obj;
-                CookieWrapper cw = (CookieWrapper) args.cookie;
-
-                if (cw == null) {
-                    // Normally, this should never be the case for calls originating
-                    // from within this code.
-                    // However, if there is any code that this Handler calls (such as in
-                    // super.handleMessage) that DOES place unexpected messages on the
-                    // queue, then we need pass these messages on.
-                    Log.d(this, "Unexpected command (CookieWrapper is null): " + msg.what +
-                            " ignored by CallerInfoWorkerHandler, passing onto parent.");
-
-                    super.handleMessage(msg);
-                } else {
-
-                    Log.d(this, "Processing event: " + cw.event + " token (arg1): " + msg.arg1 +
-                            " command: " + msg.what + " query URI: " +
-                            sanitizeUriToString(args.uri));
-
-                    switch (cw.event) {
-                        case EVENT_NEW_QUERY:
-                            //start the sql command.
-                            super.handleMessage(msg);
-                            break;
-
-                        // shortcuts to avoid query for recognized numbers.
-                        case EVENT_EMERGENCY_NUMBER:
-                        case EVENT_VOICEMAIL_NUMBER:
-
-                        case EVENT_ADD_LISTENER:
-                        case EVENT_END_OF_QUEUE:
-                            // query was already completed, so just send the reply.
-                            // passing the original token value back to the caller
-                            // on top of the event values in arg1.
-                            Message reply = args.handler.obtainMessage(msg.what);
-                            reply.obj = args;
-                            reply.arg1 = msg.arg1;
-
-                            reply.sendToTarget();
-
-                            break;
-                        default:
-                    }
-                }
-            }
-        }
-
-
-        /**
-         * Asynchronous query handler class for the contact / callerinfo object.
-         */
-        private CallerInfoAsyncQueryHandler(Context context) {
-            super(context.getContentResolver());
-        }
-
-        @Override
-        protected Handler createHandler(Looper looper) {
-            return new CallerInfoWorkerHandler(looper);
-        }
-
-        /**
-         * Overrides onQueryComplete from AsyncQueryHandler.
-         *
-         * This method takes into account the state of this class; we construct the CallerInfo
-         * object only once for each set of listeners. When the query thread has done its work
-         * and calls this method, we inform the remaining listeners in the queue, until we're
-         * out of listeners.  Once we get the message indicating that we should expect no new
-         * listeners for this CallerInfo object, we release the AsyncCursorInfo back into the
-         * pool.
-         */
-        @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-            Log.d(this, "##### onQueryComplete() #####   query complete for token: " + token);
-
-            //get the cookie and notify the listener.
-            CookieWrapper cw = (CookieWrapper) cookie;
-            if (cw == null) {
-                // Normally, this should never be the case for calls originating
-                // from within this code.
-                // However, if there is any code that calls this method, we should
-                // check the parameters to make sure they're viable.
-                Log.d(this, "Cookie is null, ignoring onQueryComplete() request.");
-                return;
-            }
-
-            if (cw.event == EVENT_END_OF_QUEUE) {
-                release();
-                return;
-            }
-
-            // check the token and if needed, create the callerinfo object.
-            if (mCallerInfo == null) {
-                if ((mQueryContext == null) || (mQueryUri == null)) {
-                    throw new QueryPoolException
-                            ("Bad context or query uri, or CallerInfoAsyncQuery already released.");
-                }
-
-                // adjust the callerInfo data as needed, and only if it was set from the
-                // initial query request.
-                // Change the callerInfo number ONLY if it is an emergency number or the
-                // voicemail number, and adjust other data (including photoResource)
-                // accordingly.
-                if (cw.event == EVENT_EMERGENCY_NUMBER) {
-                    // Note we're setting the phone number here (refer to javadoc
-                    // comments at the top of CallerInfo class).
-                    mCallerInfo = new CallerInfo().markAsEmergency(mQueryContext, cw.number);
-                } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
-                    mCallerInfo = new CallerInfo().markAsVoiceMail();
-                } else {
-                    mCallerInfo = CallerInfo.getCallerInfo(mQueryContext, mQueryUri, cursor);
-                    Log.d(this, "==> Got mCallerInfo: " + mCallerInfo);
-
-                    CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
-                            mQueryContext, cw.number, mCallerInfo);
-                    if (newCallerInfo != mCallerInfo) {
-                        mCallerInfo = newCallerInfo;
-                        Log.d(this, "#####async contact look up with numeric username"
-                                + mCallerInfo);
-                    }
-
-                    // Final step: look up the geocoded description.
-                    if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
-                        // Note we do this only if we *don't* have a valid name (i.e. if
-                        // no contacts matched the phone number of the incoming call),
-                        // since that's the only case where the incoming-call UI cares
-                        // about this field.
-                        //
-                        // (TODO: But if we ever want the UI to show the geoDescription
-                        // even when we *do* match a contact, we'll need to either call
-                        // updateGeoDescription() unconditionally here, or possibly add a
-                        // new parameter to CallerInfoAsyncQuery.startQuery() to force
-                        // the geoDescription field to be populated.)
-
-                        if (TextUtils.isEmpty(mCallerInfo.name)) {
-                            // Actually when no contacts match the incoming phone number,
-                            // the CallerInfo object is totally blank here (i.e. no name
-                            // *or* phoneNumber).  So we need to pass in cw.number as
-                            // a fallback number.
-                            mCallerInfo.updateGeoDescription(mQueryContext, cw.number);
-                        }
-                    }
-
-                    // Use the number entered by the user for display.
-                    if (!TextUtils.isEmpty(cw.number)) {
-                        mCallerInfo.phoneNumber = PhoneNumberUtils.formatNumber(cw.number,
-                                mCallerInfo.normalizedNumber,
-                                CallerInfo.getCurrentCountryIso(mQueryContext));
-                    }
-                }
-
-                Log.d(this, "constructing CallerInfo object for token: " + token);
-
-                //notify that we can clean up the queue after this.
-                CookieWrapper endMarker = new CookieWrapper();
-                endMarker.event = EVENT_END_OF_QUEUE;
-                startQuery(token, endMarker, null, null, null, null, null);
-            }
-
-            //notify the listener that the query is complete.
-            if (cw.listener != null) {
-                Log.d(this, "notifying listener: " + cw.listener.getClass().toString() +
-                        " for token: " + token + mCallerInfo);
-                cw.listener.onQueryComplete(token, cw.cookie, mCallerInfo);
-            }
-        }
+    private CallerInfoAsyncQuery(QueryRequest request, int token,
+            OnQueryCompleteListener listener, Object cookie) {
+        mRequest = request;
+        mToken = token;
+        mListener = listener;
+        mCookie = cookie;
     }
 
     /**
-     * Private constructor for factory methods.
+     * Factory method to start query with a Uri query spec
      */
-    private CallerInfoAsyncQuery() {
+    public static CallerInfoAsyncQuery startQuery(int token, Context context, Uri contactRef,
+            OnQueryCompleteListener listener, Object cookie) {
+        return startQuery(token, context, contactRef, listener, cookie, PRIORITY_FOREGROUND);
     }
 
-
     /**
      * Factory method to start query with a Uri query spec
+     *
+     * @param priority one of the PRIORITY_* constants.
      */
     public static CallerInfoAsyncQuery startQuery(int token, Context context, Uri contactRef,
-            OnQueryCompleteListener listener, Object cookie) {
-
-        CallerInfoAsyncQuery c = new CallerInfoAsyncQuery();
-        c.allocate(context, contactRef);
-
-        Log.d(LOG_TAG, "starting query for URI: " + contactRef + " handler: " + c.toString());
-
-        //create cookieWrapper, start query
-        CookieWrapper cw = new CookieWrapper();
-        cw.listener = listener;
-        cw.cookie = cookie;
-        cw.event = EVENT_NEW_QUERY;
+            OnQueryCompleteListener listener, Object cookie, int priority) {
+        if ((context == null) || (contactRef == null)) {
+            throw new QueryPoolException("Bad context or query uri.");
+        }
+        Log.d(LOG_TAG, "starting query for URI: " + sanitizeUriToString(contactRef));
 
-        c.mHandler.startQuery(token, cw, contactRef, null, null, null, null);
+        final QueryRequest request = new QueryRequest(contactRef.toString(), context,
+                contactRef, null, null, null, EVENT_NEW_QUERY);
+        return getEngine().enqueue(request, priority, token, listener, cookie);
+    }
 
-        return c;
+    /**
+     * Factory method to start the query based on a number.
+     */
+    public static CallerInfoAsyncQuery startQuery(int token, Context context, String number,
+            OnQueryCompleteListener listener, Object cookie) {
+        return startQuery(token, context, number, listener, cookie, PRIORITY_FOREGROUND);
     }
 
     /**
@@ -330,9 +146,11 @@ public class CallerInfoAsyncQuery {
      * numbers and one for SIP addresses, and then have
      * PhoneUtils.startGetCallerInfo() decide which one to call based on
      * the phone type of the incoming connection.
+     *
+     * @param priority one of the PRIORITY_* constants.
      */
     public static CallerInfoAsyncQuery startQuery(int token, Context context, String number,
-            OnQueryCompleteListener listener, Object cookie) {
+            OnQueryCompleteListener listener, Object cookie, int priority) {
         Log.d(LOG_TAG, "##### CallerInfoAsyncQuery startQuery()... #####");
         Log.d(LOG_TAG, "- number: " + /* number */"xxxxxxx");
         Log.d(LOG_TAG, "- cookie: " + cookie);
@@ -342,6 +160,7 @@ public class CallerInfoAsyncQuery {
         Uri contactRef;
         String selection;
         String[] selectionArgs;
+        String key;
 
         if (PhoneNumberUtils.isUriNumber(number)) {
             // "number" is really a SIP address.
@@ -368,12 +187,14 @@ public class CallerInfoAsyncQuery {
                     + " AND "
                     + Data.MIMETYPE + "='" + SipAddress.CONTENT_ITEM_TYPE + "'";
             selectionArgs = new String[] { number.toUpperCase() };
+            key = "sip:" + selectionArgs[0];
 
         } else {
             // "number" is a regular phone number.  Use the PhoneLookup table:
             contactRef = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
             selection = null;
             selectionArgs = null;
+            key = "tel:" + PhoneNumberUtils.normalizeNumber(number);
         }
 
         if (DBG) {
@@ -386,72 +207,307 @@ public class CallerInfoAsyncQuery {
             }
         }
 
-        CallerInfoAsyncQuery c = new CallerInfoAsyncQuery();
-        c.allocate(context, contactRef);
-
-        //create cookieWrapper, start query
-        CookieWrapper cw = new CookieWrapper();
-        cw.listener = listener;
-        cw.cookie = cookie;
-        cw.number = number;
+        if (context == null) {
+            throw new QueryPoolException("Bad context or query uri.");
+        }
 
         // check to see if these are recognized numbers, and use shortcuts if we can.
+        final int event;
         if (PhoneNumberUtils.isLocalEmergencyNumber(number, context)) {
-            cw.event = EVENT_EMERGENCY_NUMBER;
+            event = EVENT_EMERGENCY_NUMBER;
         } else if (PhoneNumberUtils.isVoiceMailNumber(number)) {
-            cw.event = EVENT_VOICEMAIL_NUMBER;
+            event = EVENT_VOICEMAIL_NUMBER;
         } else {
-            cw.event = EVENT_NEW_QUERY;
+            event = EVENT_NEW_QUERY;
         }
 
-        c.mHandler.startQuery(token,
-                              cw,  // cookie
-                              contactRef,  // uri
-                              null,  // projection
-                              selection,  // selection
-                              selectionArgs,  // selectionArgs
-                              null);  // orderBy
-        return c;
+        final QueryRequest request = new QueryRequest(key, context, contactRef, selection,
+                selectionArgs, number, event);
+        return getEngine().enqueue(request, priority, token, listener, cookie);
     }
 
     /**
-     * Method to add listeners to a currently running query
+     * Method to add listeners to a currently running query. If the query already completed,
+     * the listener is called with its result.
      */
-    public void addQueryListener(int token, OnQueryCompleteListener listener, Object cookie) {
+    public CallerInfoAsyncQuery addQueryListener(int token, OnQueryCompleteListener listener,
+            Object cookie) {
+        Log.d(this, "adding listener to query: " + sanitizeUriToString(mRequest.uri));
+
+        final CallerInfoAsyncQuery query =
+                new CallerInfoAsyncQuery(mRequest, token, listener, cookie);
+        getEngine().addListener(query);
+        return query;
+    }
 
-        Log.d(this, "adding listener to query: " + sanitizeUriToString(mHandler.mQueryUri) +
-                " handler: " + mHandler.toString());
+    /**
+     * Stops this listener from being called. The query itself is dropped if it has not started
+     * yet and no other listener is waiting for it.
+     */
+    public void cancel() {
+        if (!mCancelled) {
+            mCancelled = true;
+            getEngine().removeListener(this);
+        }
+    }
 
-        //create cookieWrapper, add query request to end of queue.
-        CookieWrapper cw = new CookieWrapper();
-        cw.listener = listener;
-        cw.cookie = cookie;
-        cw.event = EVENT_ADD_LISTENER;
+    /**
+     * Cancels all listeners that were started with the given token.
+     *
+     * @see #cancel()
+     */
+    public static void cancelOperation(int token) {
+        getEngine().cancelOperation(token);
+    }
 
-        mHandler.startQuery(token, cw, null, null, null, null, null);
+    private static synchronized QueryEngine getEngine() {
+        if (sEngine == null) {
+            sEngine = new QueryEngine();
+        }
+        return sEngine;
     }
 
     /**
-     * Method to create a new CallerInfoAsyncQueryHandler object, ensuring correct
-     * state of context and uri.
+     * A lookup, shared by all the listeners that asked for the same number or Uri while it was
+     * pending or running.
      */
-    private void allocate(Context context, Uri contactRef) {
-        if ((context == null) || (contactRef == null)){
-            throw new QueryPoolException("Bad context or query uri.");
+    private static class QueryRequest implements Comparable<QueryRequest> {
+        final String key;
+        final Context context;
+        final Uri uri;
+        final String selection;
+        final String[] selectionArgs;
+        final String number;
+        final int event;
+
+        final ArrayList<CallerInfoAsyncQuery> listeners = new ArrayList<CallerInfoAsyncQuery>();
+        int priority;
+        long sequence;
+        boolean started;
+        boolean done;
+        CallerInfo result;
+
+        QueryRequest(String key, Context context, Uri uri, String selection,
+                String[] selectionArgs, String number, int event) {
+            this.key = key;
+            this.context = context.getApplicationContext();
+            this.uri = uri;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.number = number;
+            this.event = event;
+        }
+
+        @Override
+        public int compareTo(QueryRequest other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        /**
+         * Runs the lookup. Called on a worker thread.
+         */
+        CallerInfo run() {
+            if (event == EVENT_EMERGENCY_NUMBER) {
+                // Note we're setting the phone number here (refer to javadoc
+                // comments at the top of CallerInfo class).
+                return new CallerInfo().markAsEmergency(context, number);
+            } else if (event == EVENT_VOICEMAIL_NUMBER) {
+                return new CallerInfo().markAsVoiceMail();
+            }
+
+            CallerInfo callerInfo = CallerInfo.queryCallerInfo(context, uri, selection,
+                    selectionArgs);
+            Log.d(LOG_TAG, "==> Got callerInfo: " + callerInfo);
+
+            if (number == null) {
+                return callerInfo;
+            }
+
+            CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(
+                    context, number, callerInfo);
+            if (newCallerInfo != callerInfo) {
+                callerInfo = newCallerInfo;
+                Log.d(LOG_TAG, "#####async contact look up with numeric username"
+                        + callerInfo);
+            }
+
+            // Final step: look up the geocoded description.
+            if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
+                // Note we do this only if we *don't* have a valid name (i.e. if
+                // no contacts matched the phone number of the incoming call),
+                // since that's the only case where the incoming-call UI cares
+                // about this field.
+                if (TextUtils.isEmpty(callerInfo.name)) {
+                    // Actually when no contacts match the incoming phone number,
+                    // the CallerInfo object is totally blank here (i.e. no name
+                    // *or* phoneNumber).  So we need to pass in the number as
+                    // a fallback number.
+                    callerInfo.updateGeoDescription(context, number);
+                }
+            }
+
+            // Use the number entered by the user for display.
+            if (!TextUtils.isEmpty(number)) {
+                callerInfo.phoneNumber = PhoneNumberUtils.formatNumber(number,
+                        callerInfo.normalizedNumber,
+                        CallerInfo.getCurrentCountryIso(context));
+            }
+            return callerInfo;
         }
-        mHandler = new CallerInfoAsyncQueryHandler(context);
-        mHandler.mQueryContext = context;
-        mHandler.mQueryUri = contactRef;
     }
 
     /**
-     * Releases the relevant data.
+     * Schedules queries on the worker threads and delivers their results. The pending queue
+     * and the request map are shared with the workers and guarded by the engine's lock; the
+     * listener lists are only touched on the main thread.
      */
-    private void release() {
-        mHandler.mQueryContext = null;
-        mHandler.mQueryUri = null;
-        mHandler.mCallerInfo = null;
-        mHandler = null;
+    private static class QueryEngine {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private final PriorityQueue<QueryRequest> mPending = new PriorityQueue<QueryRequest>();
+        private final HashMap<String, QueryRequest> mRequests =
+                new HashMap<String, QueryRequest>();
+        private final Handler[] mWorkers = new Handler[MAX_WORKERS];
+        private int mBusyWorkers;
+        private long mNextSequence;
+
+        CallerInfoAsyncQuery enqueue(QueryRequest request, int priority, int token,
+                OnQueryCompleteListener listener, Object cookie) {
+            synchronized (this) {
+                final QueryRequest existing = mRequests.get(request.key);
+                if (existing != null) {
+                    Log.d(LOG_TAG, "Joining in-flight query, priority=" + priority);
+                    request = existing;
+                    if (!request.started && priority < request.priority) {
+                        // Re-insert so that the queue sees the raised priority.
+                        mPending.remove(request);
+                        request.priority = priority;
+                        mPending.add(request);
+                    }
+                } else {
+                    request.priority = priority;
+                    request.sequence = mNextSequence++;
+                    mRequests.put(request.key, request);
+                    mPending.add(request);
+                    maybeStartWorker();
+                }
+            }
+
+            final CallerInfoAsyncQuery query =
+                    new CallerInfoAsyncQuery(request, token, listener, cookie);
+            request.listeners.add(query);
+            return query;
+        }
+
+        void addListener(final CallerInfoAsyncQuery query) {
+            final QueryRequest request = query.mRequest;
+            if (request.done) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(request, query);
+                    }
+                });
+            } else {
+                request.listeners.add(query);
+            }
+        }
+
+        void removeListener(CallerInfoAsyncQuery query) {
+            final QueryRequest request = query.mRequest;
+            request.listeners.remove(query);
+            if (request.listeners.isEmpty()) {
+                synchronized (this) {
+                    if (!request.started && mPending.remove(request)) {
+                        Log.d(LOG_TAG, "Dropping query nobody waits for");
+                        mRequests.remove(request.key);
+                    }
+                }
+            }
+        }
+
+        void cancelOperation(int token) {
+            final ArrayList<CallerInfoAsyncQuery> cancelled = new ArrayList<CallerInfoAsyncQuery>();
+            synchronized (this) {
+                for (QueryRequest request : mRequests.values()) {
+                    for (CallerInfoAsyncQuery query : request.listeners) {
+                        if (query.mToken == token) {
+                            cancelled.add(query);
+                        }
+                    }
+                }
+            }
+            for (CallerInfoAsyncQuery query : cancelled) {
+                query.cancel();
+            }
+        }
+
+        private void maybeStartWorker() {
+            if (mBusyWorkers >= MAX_WORKERS || mBusyWorkers >= mPending.size()) {
+                return;
+            }
+            final int index = mBusyWorkers++;
+            if (mWorkers[index] == null) {
+                final HandlerThread thread = new HandlerThread("CallerInfoWorker" + index,
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mWorkers[index] = new Handler(thread.getLooper());
+            }
+            mWorkers[index].post(mDrainQueue);
+        }
+
+        /**
+         * Runs pending queries, highest priority first, until the queue is empty.
+         */
+        private final Runnable mDrainQueue = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final QueryRequest request;
+                    synchronized (QueryEngine.this) {
+                        request = mPending.poll();
+                        if (request == null) {
+                            mBusyWorkers--;
+                            return;
+                        }
+                        request.started = true;
+                    }
+
+                    final CallerInfo result = request.run();
+
+                    synchronized (QueryEngine.this) {
+                        mRequests.remove(request.key);
+                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            request.result = result;
+                            request.done = true;
+                            // Listeners may cancel each other from their callbacks.
+                            final ArrayList<CallerInfoAsyncQuery> listeners =
+                                    new ArrayList<CallerInfoAsyncQuery>(request.listeners);
+                            request.listeners.clear();
+                            for (CallerInfoAsyncQuery query : listeners) {
+                                deliver(request, query);
+                            }
+                        }
+                    });
+                }
+            }
+        };
+
+        private void deliver(QueryRequest request, CallerInfoAsyncQuery query) {
+            if (query.mCancelled || query.mListener == null) {
+                return;
+            }
+            Log.d(LOG_TAG, "notifying listener: " + query.mListener.getClass().toString() +
+                    " for token: " + query.mToken + request.result);
+            // Listeners fill in and keep the result, so each gets its own copy.
+            final CallerInfo result = request.result != null ? request.result.copy() : null;
+            query.mListener.onQueryComplete(query.mToken, query.mCookie, result);
+        }
     }
 
     private static String sanitizeUriToString(Uri uri) {
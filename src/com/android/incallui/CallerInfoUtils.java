@@ -29,8 +29,6 @@ public class CallerInfoUtils {
     public CallerInfoUtils() {
     }
 
-    private static final int QUERY_TOKEN = -1;
-
     /**
      * This is called to get caller info for a call. This will return a CallerInfo
      * object immediately based off information in the call, but
@@ -39,6 +37,18 @@ public class CallerInfoUtils {
      */
     public static CallerInfo getCallerInfoForCall(Context context, CallIdentification call,
             CallerInfoAsyncQuery.OnQueryCompleteListener listener) {
+        return getCallerInfoForCall(context, call, listener,
+                CallerInfoAsyncQuery.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Same as {@link #getCallerInfoForCall(Context, CallIdentification,
+     * CallerInfoAsyncQuery.OnQueryCompleteListener)}, with the priority of the asynchronous
+     * query. The query uses the call id as its token, so it can be cancelled with
+     * {@link #cancelCallerInfoQuery}.
+     */
+    public static CallerInfo getCallerInfoForCall(Context context, CallIdentification call,
+            CallerInfoAsyncQuery.OnQueryCompleteListener listener, int priority) {
         CallerInfo info = buildCallerInfo(context, call);
         String number = info.phoneNumber;
 
@@ -47,11 +57,19 @@ public class CallerInfoUtils {
         if (info.numberPresentation == Call.PRESENTATION_ALLOWED) {
             // Start the query with the number provided from the call.
             Log.d(TAG, "==> Actually starting CallerInfoAsyncQuery.startQuery()...");
-            CallerInfoAsyncQuery.startQuery(QUERY_TOKEN, context, number, listener, call);
+            CallerInfoAsyncQuery.startQuery(call.getCallId(), context, number, listener, call,
+                    priority);
         }
         return info;
     }
 
+    /**
+     * Cancels the caller info query started for the call, if it is still in flight.
+     */
+    public static void cancelCallerInfoQuery(int callId) {
+        CallerInfoAsyncQuery.cancelOperation(callId);
+    }
+
     public static CallerInfo buildCallerInfo(Context context, CallIdentification identification) {
         CallerInfo info = new CallerInfo();
 
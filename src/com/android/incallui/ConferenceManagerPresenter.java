@@ -24,9 +24,13 @@ import com.android.incallui.InCallPresenter.InCallStateListener;
 import com.android.services.telephony.common.Call;
 import com.android.services.telephony.common.CallDetails;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSortedSet;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+
 /**
  * Logic for call buttons.
  */
@@ -42,6 +46,11 @@ public class ConferenceManagerPresenter
     private Context mContext;
     private static String LOG_TAG = "ConferenceManagerPresenter";
 
+    // What each row of the UI currently shows; rows are only re-bound when this changes.
+    private final ParticipantRow[] mRenderedRows = new ParticipantRow[MAX_CALLERS_IN_CONFERENCE];
+    // Child calls for which a contact lookup has already been started.
+    private final HashSet<Integer> mRequestedLookups = new HashSet<Integer>();
+
     @Override
     public void onUiReady(ConferenceManagerUi ui) {
         super.onUiReady(ui);
@@ -68,9 +77,11 @@ public class ConferenceManagerPresenter
                             String.valueOf(call.getChildCallIds().size()));
                     update(callList);
                 } else {
+                    mRequestedLookups.clear();
                     getUi().setVisible(false);
                 }
             } else {
+                mRequestedLookups.clear();
                 getUi().setVisible(false);
             }
         }
@@ -79,6 +90,10 @@ public class ConferenceManagerPresenter
     public void init(Context context, CallList callList) {
         mContext = Preconditions.checkNotNull(context);
         mContext = context;
+        // The UI may have been re-created, so don't trust what we think it shows.
+        for (int i = 0; i < MAX_CALLERS_IN_CONFERENCE; i++) {
+            mRenderedRows[i] = null;
+        }
         update(callList);
     }
 
@@ -124,65 +139,179 @@ public class ConferenceManagerPresenter
         final boolean hasHoldingCall = (callList.getBackgroundCall() != null);
         boolean canSeparate = !(hasActiveCall && hasHoldingCall);
 
+        ArrayList<Call> newParticipants = null;
         for (int i = 0; i < MAX_CALLERS_IN_CONFERENCE; i++) {
+            final ParticipantRow row;
             if (i < mNumCallersInConference) {
                 // Fill in the row in the UI for this caller.
                 if (mParticipantList == null) {
+                    final int callId = mCallerIds[i];
                     final ContactCacheEntry contactCache = ContactInfoCache.getInstance(mContext).
-                            getInfo(mCallerIds[i]);
-                    updateManageConferenceRow(i, contactCache, canSeparate);
+                            getInfo(callId);
+                    if (contactCache == null && mRequestedLookups.add(callId)) {
+                        final Call call = callList.getCall(callId);
+                        if (call != null) {
+                            if (newParticipants == null) {
+                                newParticipants = new ArrayList<Call>();
+                            }
+                            newParticipants.add(call);
+                        }
+                    }
+                    row = ParticipantRow.forCall(callId, contactCache, canSeparate);
                 } else {
-                    updateManageConferenceRow(i, mParticipantList[i]);
+                    row = ParticipantRow.forUrl(mParticipantList[i]);
                 }
             } else {
                 // Blank out this row in the UI
-                updateManageConferenceRow(i, null, false);
+                row = null;
             }
+            renderRow(i, row);
+        }
+
+        if (newParticipants != null) {
+            lookupParticipants(newParticipants);
         }
     }
 
     /**
-      * Updates a single row of the "Manage conference" UI.  (One row in this
-      * UI represents a single caller in the conference.)
-      *
-      * @param i the row to update
-      * @param contactCacheEntry the contact details corresponding to this caller.
-      *        If null, that means this is an "empty slot" in the conference,
-      *        so hide this row in the UI.
-      * @param canSeparate if true, show a "Separate" (i.e. "Private") button
-      *        on this row in the UI.
-      */
-    public void updateManageConferenceRow(final int i,
-                                          final ContactCacheEntry contactCacheEntry,
-                                          boolean canSeparate) {
-
-        if (contactCacheEntry != null) {
-            // Activate this row of the Manage conference panel:
-            getUi().setRowVisible(i, true);
+     * Starts contact lookups for participants that joined since the last update, and re-renders
+     * only the row of each participant whose lookup completes.
+     */
+    private void lookupParticipants(ArrayList<Call> participants) {
+        final ContactInfoCache cache = ContactInfoCache.getInstance(mContext);
+        final ContactInfoCache.ContactInfoCacheCallback callback =
+                new ContactInfoCache.ContactInfoCacheCallback() {
+            @Override
+            public void onContactInfoComplete(int callId, ContactCacheEntry entry) {
+                updateParticipant(callId, entry);
+            }
 
-            final String name = contactCacheEntry.name;
-            final String number = contactCacheEntry.number;
+            @Override
+            public void onImageLoadComplete(int callId, ContactCacheEntry entry) {
+                // Photos are not shown in the conference manager.
+            }
+        };
+        for (Call call : participants) {
+            cache.findInfo(call.getIdentification(), false, callback,
+                    CallerInfoAsyncQuery.PRIORITY_BACKGROUND);
+        }
+    }
 
-            if (canSeparate) {
-                getUi().setCanSeparateButtonForRow(i, canSeparate);
+    private void updateParticipant(int callId, ContactCacheEntry entry) {
+        if (getUi() == null || mCallerIds == null) {
+            return;
+        }
+        for (int i = 0; i < mNumCallersInConference && i < MAX_CALLERS_IN_CONFERENCE; i++) {
+            if (mCallerIds[i] == callId) {
+                final ParticipantRow rendered = mRenderedRows[i];
+                final boolean canSeparate = rendered != null && rendered.canSeparate;
+                renderRow(i, ParticipantRow.forCall(callId, entry, canSeparate));
+                return;
             }
-            // display the CallerInfo.
-            getUi().setupEndButtonForRow(i);
-            getUi().displayCallerInfoForConferenceRow(i, name, number, contactCacheEntry.label);
-        } else {
-            // Disable this row of the Manage conference panel:
-            getUi().setRowVisible(i, false);
         }
     }
 
-    public void updateManageConferenceRow(final int i, final String url) {
-        if (url != null) {
-            getUi().setRowVisible(i, true);
-            getUi().setupEndButtonForRowWithUrl(i, url);
-            getUi().displayCallerInfoForConferenceRow(i, "", url, "");
-        } else {
+    /**
+     * Binds a row of the UI, pushing only the parts that differ from what the row shows now.
+     *
+     * @param row the row contents, or null to hide the row.
+     */
+    private void renderRow(int i, ParticipantRow row) {
+        final ParticipantRow rendered = mRenderedRows[i];
+        if (Objects.equal(row, rendered)) {
+            return;
+        }
+        mRenderedRows[i] = row;
+
+        if (row == null) {
             // Disable this row of the Manage conference panel:
             getUi().setRowVisible(i, false);
+            return;
+        }
+
+        if (rendered == null) {
+            // Activate this row of the Manage conference panel:
+            getUi().setRowVisible(i, true);
+        }
+
+        final boolean participantChanged = rendered == null
+                || !Objects.equal(row.url, rendered.url) || row.callId != rendered.callId;
+        if (participantChanged || row.canSeparate != rendered.canSeparate) {
+            getUi().setCanSeparateButtonForRow(i, row.canSeparate);
+        }
+        if (participantChanged) {
+            if (row.url != null) {
+                getUi().setupEndButtonForRowWithUrl(i, row.url);
+            } else {
+                getUi().setupEndButtonForRow(i);
+            }
+        }
+        if (participantChanged || !Objects.equal(row.name, rendered.name)
+                || !Objects.equal(row.number, rendered.number)
+                || !Objects.equal(row.label, rendered.label)) {
+            // display the CallerInfo.
+            getUi().displayCallerInfoForConferenceRow(i, row.name, row.number, row.label);
+        }
+    }
+
+    /**
+     * Immutable contents of a single row of the "Manage conference" UI. Rows are keyed by the
+     * child call id, or by the participant url for IMS conferences.
+     */
+    private static class ParticipantRow {
+        final int callId;
+        final String url;
+        final String name;
+        final String number;
+        final String label;
+        final boolean canSeparate;
+
+        private ParticipantRow(int callId, String url, String name, String number, String label,
+                boolean canSeparate) {
+            this.callId = callId;
+            this.url = url;
+            this.name = name;
+            this.number = number;
+            this.label = label;
+            this.canSeparate = canSeparate;
+        }
+
+        /**
+         * @return the row for a child call, or null if its contact details aren't known yet,
+         * in which case the row is hidden until the lookup completes.
+         */
+        static ParticipantRow forCall(int callId, ContactCacheEntry entry, boolean canSeparate) {
+            if (entry == null) {
+                return null;
+            }
+            return new ParticipantRow(callId, null, entry.name, entry.number, entry.label,
+                    canSeparate);
+        }
+
+        static ParticipantRow forUrl(String url) {
+            if (url == null) {
+                return null;
+            }
+            return new ParticipantRow(-1, url, "", url, "", false);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ParticipantRow)) {
+                return false;
+            }
+            final ParticipantRow other = (ParticipantRow) o;
+            return callId == other.callId
+                    && canSeparate == other.canSeparate
+                    && Objects.equal(url, other.url)
+                    && Objects.equal(name, other.name)
+                    && Objects.equal(number, other.number)
+                    && Objects.equal(label, other.label);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(callId, url, name, number, label, canSeparate);
         }
     }
 
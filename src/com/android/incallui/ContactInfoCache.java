@@ -22,6 +22,7 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Handler;
 import android.os.Looper;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -42,6 +43,7 @@ import com.google.android.collect.Sets;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
@@ -57,10 +59,26 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     private static final String TAG = ContactInfoCache.class.getSimpleName();
     private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
 
+    // Remote lookup backends, as keys of the negative lookup cache.
+    private static final String BACKEND_PHONE_NUMBER_SERVICE = "PhoneNumberService";
+    private static final String BACKEND_REVERSE_LOOKUP = "ReverseLookup";
+
+    // Time each remote lookup gets to answer before the locally available info is shown;
+    // about one ring cycle. Answers that take longer update the call card when they arrive.
+    private static final long REMOTE_LOOKUP_BUDGET_MS = 4000;
+    // Time after which a remote lookup is abandoned, and late results are ignored. Unless it
+    // answered in time, its backend is then considered failing for the number.
+    private static final long REMOTE_LOOKUP_DEADLINE_MS = 30000;
+
     private final Context mContext;
     private final PhoneNumberService mPhoneNumberService;
+    private final NegativeLookupCache mNegativeLookupCache;
     private final HashMap<Integer, ContactCacheEntry> mInfoMap = Maps.newHashMap();
     private final HashMap<Integer, Set<ContactInfoCacheCallback>> mCallBacks = Maps.newHashMap();
+    // Calls whose contacts provider query hasn't completed yet.
+    private final Set<Integer> mQueryingCallIds = Sets.newHashSet();
+    private final HashMap<Integer, RemoteLookup> mRemoteLookups = Maps.newHashMap();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     private static ContactInfoCache sCache = null;
 
@@ -74,6 +92,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     private ContactInfoCache(Context context) {
         mContext = context;
         mPhoneNumberService = ServiceFactory.newPhoneNumberService(context);
+        mNegativeLookupCache = new NegativeLookupCache(context);
     }
 
     public ContactCacheEntry getInfo(int callId) {
@@ -101,6 +120,7 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
         @Override
         public void onQueryComplete(int token, Object cookie, CallerInfo callerInfo) {
             final CallIdentification identification = (CallIdentification) cookie;
+            mQueryingCallIds.remove(identification.getCallId());
             findInfoQueryComplete(identification, callerInfo, mIsIncoming, true);
         }
     }
@@ -115,6 +135,19 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
      */
     public void findInfo(final CallIdentification identification, final boolean isIncoming,
             ContactInfoCacheCallback callback) {
+        findInfo(identification, isIncoming, callback, isIncoming
+                ? CallerInfoAsyncQuery.PRIORITY_INCOMING
+                : CallerInfoAsyncQuery.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Same as {@link #findInfo(CallIdentification, boolean, ContactInfoCacheCallback)}, with
+     * the priority of the contacts provider query if one has to be started.
+     *
+     * @param priority one of the CallerInfoAsyncQuery.PRIORITY_* constants.
+     */
+    public void findInfo(final CallIdentification identification, final boolean isIncoming,
+            ContactInfoCacheCallback callback, int priority) {
         Preconditions.checkState(Looper.getMainLooper().getThread() == Thread.currentThread());
         Preconditions.checkNotNull(callback);
 
@@ -150,12 +183,71 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
          * for any data that we do not already have. Some queries, such as those for voicemail and
          * emergency call information, will not perform an additional asynchronous query.
          */
+        mQueryingCallIds.add(callId);
         final CallerInfo callerInfo = CallerInfoUtils.getCallerInfoForCall(
-                mContext, identification, new FindInfoCallback(isIncoming));
+                mContext, identification, new FindInfoCallback(isIncoming), priority);
 
         findInfoQueryComplete(identification, callerInfo, isIncoming, false);
     }
 
+    /**
+     * Starts the contact lookup for a call ahead of any UI asking for it, so that the cache entry
+     * (including photo and geocoded location) is already warm when the UI calls
+     * {@link #findInfo}. Does nothing if the call already has an entry or a lookup in flight.
+     */
+    public void prefetchInfo(CallIdentification identification, boolean isIncoming) {
+        final int callId = identification.getCallId();
+        if (mInfoMap.containsKey(callId) || mCallBacks.containsKey(callId)) {
+            return;
+        }
+        Log.d(TAG, "Prefetching contact info for call " + callId);
+        findInfo(identification, isIncoming, PREFETCH_CALLBACK);
+    }
+
+    /**
+     * Cancels the contacts provider query for a call that is gone, if it hasn't completed
+     * yet. Whatever is already cached for the call is kept; photo and remote lookups that
+     * already started are not affected.
+     */
+    public void cancelInfo(int callId) {
+        Preconditions.checkState(Looper.getMainLooper().getThread() == Thread.currentThread());
+        if (mQueryingCallIds.remove(callId)) {
+            Log.d(TAG, "Cancelling contact lookup for call " + callId);
+            CallerInfoUtils.cancelCallerInfoQuery(callId);
+            clearCallbacks(callId);
+        }
+    }
+
+    /**
+     * Cancels the lookups of calls that are no longer in the call list. Disconnected calls
+     * stay in the list, and on screen, for a while, and their lookups keep running until then.
+     */
+    public void cancelInfoForRemovedCalls(CallList callList) {
+        if (mQueryingCallIds.isEmpty()) {
+            return;
+        }
+        for (Integer callId : new ArrayList<Integer>(mQueryingCallIds)) {
+            if (callList.getCall(callId) == null) {
+                cancelInfo(callId);
+            }
+        }
+    }
+
+    /**
+     * Placeholder callback that keeps a prefetched lookup registered until a real callback
+     * joins it.
+     */
+    private static final ContactInfoCacheCallback PREFETCH_CALLBACK =
+            new ContactInfoCacheCallback() {
+        @Override
+        public void onContactInfoComplete(int callId, ContactCacheEntry entry) {
+        }
+
+        @Override
+        public void onImageLoadComplete(int callId, ContactCacheEntry entry) {
+        }
+    };
+
     private void findInfoQueryComplete(CallIdentification identification,
             CallerInfo callerInfo, boolean isIncoming, boolean didLocalLookup) {
         final int callId = identification.getCallId();
@@ -169,50 +261,191 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
 
         // Add the contact info to the cache.
         mInfoMap.put(callId, cacheEntry);
+
+        if (!didLocalLookup) {
+            sendInfoNotifications(callId, cacheEntry);
+            return;
+        }
+
+        if (!callerInfo.contactExists && cacheEntry.name == null) {
+            // The local info (geocoded location and formatted number) is held back while the
+            // remote lookup is within its budget, so that the card doesn't change twice in a
+            // row when the backend answers quickly.
+            if (!startRemoteLookup(callId, cacheEntry.number, isIncoming)) {
+                sendInfoNotifications(callId, cacheEntry);
+                clearCallbacks(callId);
+            }
+            return;
+        }
+
         sendInfoNotifications(callId, cacheEntry);
+        if (cacheEntry.personUri != null) {
+            Log.d(TAG, "Contact lookup. Local contact found, starting image load");
+            // Load the image with a callback to update the image state.
+            // When the load is finished, onImageLoadComplete() will be called.
+            ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
+                    mContext, cacheEntry.personUri, ContactInfoCache.this, callId);
+        } else {
+            if (callerInfo.contactExists) {
+                Log.d(TAG, "Contact lookup done. Local contact found, no image.");
+            } else {
+                Log.d(TAG, "Contact lookup done. Special contact type.");
+            }
+            clearCallbacks(callId);
+        }
+    }
 
-        if (didLocalLookup) {
-            if (!callerInfo.contactExists && cacheEntry.name == null) {
-                Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
-                if (mPhoneNumberService != null) {
-                    final PhoneNumberServiceListener listener =
-                            new PhoneNumberServiceListener(callId);
-                    mPhoneNumberService.getPhoneNumberInfo(cacheEntry.number, listener, listener,
-                            isIncoming);
-                } else {
-                    final ReverseLookupListener listener = new ReverseLookupListener(callId);
-                    ReverseLookupThread.performLookup(mContext, cacheEntry.number, listener);
-                }
-            } else if (cacheEntry.personUri != null) {
-                Log.d(TAG, "Contact lookup. Local contact found, starting image load");
-                // Load the image with a callback to update the image state.
-                // When the load is finished, onImageLoadComplete() will be called.
-                ContactsAsyncHelper.startObtainPhotoAsync(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE,
-                        mContext, cacheEntry.personUri, ContactInfoCache.this, callId);
+    /**
+     * Starts the remote lookup of a number that isn't a local contact.
+     *
+     * @return false if no lookup was started, because the backend recently failed to resolve
+     * the number or the lookup failed to start.
+     */
+    private boolean startRemoteLookup(int callId, String number, boolean isIncoming) {
+        final String backend = mPhoneNumberService != null
+                ? BACKEND_PHONE_NUMBER_SERVICE : BACKEND_REVERSE_LOOKUP;
+        if (mNegativeLookupCache.contains(backend, number)) {
+            Log.d(TAG, "Contact lookup done. Remote lookup recently missed, skipping.");
+            return false;
+        }
+        Log.d(TAG, "Contact lookup. Local contacts miss, checking remote");
+        try {
+            if (mPhoneNumberService != null) {
+                final PhoneNumberServiceListener listener =
+                        new PhoneNumberServiceListener(callId, number);
+                trackRemoteLookup(listener);
+                mPhoneNumberService.getPhoneNumberInfo(number, listener, listener, isIncoming);
             } else {
-                if (callerInfo.contactExists) {
-                    Log.d(TAG, "Contact lookup done. Local contact found, no image.");
-                } else if (cacheEntry.name != null) {
-                    Log.d(TAG, "Contact lookup done. Special contact type.");
-                } else {
-                    Log.d(TAG, "Contact lookup done. Local contact not found and"
-                            + " no remote lookup service available.");
-                }
-                clearCallbacks(callId);
+                final ReverseLookupListener listener = new ReverseLookupListener(callId, number);
+                trackRemoteLookup(listener);
+                ReverseLookupThread.performLookup(mContext, number, listener);
             }
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Remote lookup failed", e);
+            finishRemoteLookup(mRemoteLookups.get(callId));
+            mNegativeLookupCache.putError(backend, number);
+            return false;
         }
     }
 
-    public class ReverseLookupListener {
-        private final int mCallId;
+    /**
+     * A remote lookup in flight for a call.
+     *
+     * The lookup gets a time budget, after which the local info that was held back is shown,
+     * and a deadline, after which the lookup is abandoned so that its callbacks don't stay
+     * registered forever. Results that arrive after the budget but before the deadline still
+     * update the entry and its callbacks. A backend that is merely slow is not penalized; it
+     * is only treated as failing for the number if it hasn't answered by the deadline.
+     */
+    abstract class RemoteLookup {
+        protected final int mCallId;
+        protected final String mNumber;
+        private final String mBackend;
+        private boolean mLocalInfoSent;
+        private boolean mFound;
+
+        private final Runnable mBudgetExpired = new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Remote lookup over budget for " + mBackend
+                        + ", showing local info meanwhile");
+                sendLocalInfo();
+            }
+        };
+
+        private final Runnable mDeadlineExpired = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Remote lookup timed out for " + mBackend);
+                finishRemoteLookup(RemoteLookup.this);
+                if (!mFound) {
+                    mNegativeLookupCache.putError(mBackend, mNumber);
+                }
+                clearCallbacks(mCallId);
+            }
+        };
 
-        ReverseLookupListener(int callId) {
+        RemoteLookup(int callId, String number, String backend) {
             mCallId = callId;
+            mNumber = number;
+            mBackend = backend;
+        }
+
+        /**
+         * @return whether results for this lookup are still wanted.
+         */
+        protected boolean isCurrent() {
+            if (mRemoteLookups.get(mCallId) != this) {
+                Log.d(TAG, "Ignoring result of abandoned remote lookup for " + mBackend);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Called when the backend has answered. If it found nothing, the local info that was
+         * held back is shown now.
+         */
+        protected void onResult(boolean found) {
+            mHandler.removeCallbacks(mBudgetExpired);
+            if (found) {
+                if (mLocalInfoSent) {
+                    Log.d(TAG, "Late remote lookup result for " + mBackend
+                            + ", updating the call card");
+                }
+                mFound = true;
+                mNegativeLookupCache.remove(mBackend, mNumber);
+            } else {
+                mNegativeLookupCache.putNotFound(mBackend, mNumber);
+                sendLocalInfo();
+            }
+        }
+
+        private void sendLocalInfo() {
+            if (mLocalInfoSent) {
+                return;
+            }
+            mLocalInfoSent = true;
+            final ContactCacheEntry entry = mInfoMap.get(mCallId);
+            if (entry != null) {
+                sendInfoNotifications(mCallId, entry);
+            }
+        }
+    }
+
+    private void trackRemoteLookup(RemoteLookup lookup) {
+        finishRemoteLookup(mRemoteLookups.get(lookup.mCallId));
+        mRemoteLookups.put(lookup.mCallId, lookup);
+        mHandler.postDelayed(lookup.mBudgetExpired, REMOTE_LOOKUP_BUDGET_MS);
+        mHandler.postDelayed(lookup.mDeadlineExpired, REMOTE_LOOKUP_DEADLINE_MS);
+    }
+
+    private void finishRemoteLookup(RemoteLookup lookup) {
+        if (lookup == null) {
+            return;
+        }
+        mHandler.removeCallbacks(lookup.mBudgetExpired);
+        mHandler.removeCallbacks(lookup.mDeadlineExpired);
+        if (mRemoteLookups.get(lookup.mCallId) == lookup) {
+            mRemoteLookups.remove(lookup.mCallId);
+        }
+    }
+
+    public class ReverseLookupListener extends RemoteLookup {
+
+        ReverseLookupListener(int callId, String number) {
+            super(callId, number, BACKEND_REVERSE_LOOKUP);
         }
 
         public void onLookupComplete(final ContactInfo info) {
+            if (!isCurrent()) {
+                return;
+            }
+            onResult(info != null);
             if (info == null) {
                 Log.d(TAG, "Reverse lookup returned no result.");
+                finishRemoteLookup(this);
                 clearCallbacks(mCallId);
                 return;
             }
@@ -244,31 +477,41 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             // If there is no image then we should not expect another callback.
             if (info.photoUri == null) {
                 // We're done, so clear callbacks
+                finishRemoteLookup(this);
                 clearCallbacks(mCallId);
             }
         }
 
         public void onImageFetchComplete(Bitmap bitmap) {
+            if (!isCurrent()) {
+                return;
+            }
+            finishRemoteLookup(this);
             onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, null,
                     bitmap, (Integer) mCallId);
         }
     }
 
-    class PhoneNumberServiceListener implements PhoneNumberService.NumberLookupListener,
-                                     PhoneNumberService.ImageLookupListener {
-        private final int mCallId;
+    class PhoneNumberServiceListener extends RemoteLookup
+            implements PhoneNumberService.NumberLookupListener,
+                       PhoneNumberService.ImageLookupListener {
 
-        PhoneNumberServiceListener(int callId) {
-            mCallId = callId;
+        PhoneNumberServiceListener(int callId, String number) {
+            super(callId, number, BACKEND_PHONE_NUMBER_SERVICE);
         }
 
         @Override
         public void onPhoneNumberInfoComplete(
                 final PhoneNumberService.PhoneNumberInfo info) {
+            if (!isCurrent()) {
+                return;
+            }
+            onResult(info != null);
             // If we got a miss, this is the end of the lookup pipeline,
             // so clear the callbacks and return.
             if (info == null) {
                 Log.d(TAG, "Contact lookup done. Remote contact not found.");
+                finishRemoteLookup(this);
                 clearCallbacks(mCallId);
                 return;
             }
@@ -307,12 +550,17 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
             // If there is no image then we should not expect another callback.
             if (info.getImageUrl() == null) {
                 // We're done, so clear callbacks
+                finishRemoteLookup(this);
                 clearCallbacks(mCallId);
             }
         }
 
         @Override
         public void onImageFetchComplete(Bitmap bitmap) {
+            if (!isCurrent()) {
+                return;
+            }
+            finishRemoteLookup(this);
             onImageLoadComplete(TOKEN_UPDATE_PHOTO_FOR_CALL_STATE, null,
                     bitmap, (Integer) mCallId);
         }
@@ -364,6 +612,10 @@ public class ContactInfoCache implements ContactsAsyncHelper.OnImageLoadComplete
     public void clearCache() {
         mInfoMap.clear();
         mCallBacks.clear();
+        mQueryingCallIds.clear();
+        for (RemoteLookup lookup : new ArrayList<RemoteLookup>(mRemoteLookups.values())) {
+            finishRemoteLookup(lookup);
+        }
     }
 
     private ContactCacheEntry buildEntry(Context context, int callId,
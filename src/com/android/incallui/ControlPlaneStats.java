@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+
+import java.io.PrintWriter;
+
+/**
+ * Measures the main thread cost of the in-call control plane: the messages CallHandlerService
+ * gets from the telephony service, the call list listener fan-out they cause and the
+ * notifications they post.
+ *
+ * Measuring is off unless the debug.incallui.perf system property is set when the call service
+ * starts. The results are printed by "adb shell dumpsys activity service CallHandlerService",
+ * and every message that takes longer than a frame is logged, so that regressions show up
+ * when running the same call scenarios on a new build.
+ *
+ * This class is only used from the main thread.
+ */
+class ControlPlaneStats {
+
+    private static final String PROPERTY_ENABLED = "debug.incallui.perf";
+
+    // Messages taking longer than a frame make the in-call UI drop frames.
+    private static final long MESSAGE_BUDGET_NANOS = 16 * 1000 * 1000;
+
+    private static ControlPlaneStats sInstance;
+
+    public static synchronized ControlPlaneStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new ControlPlaneStats();
+        }
+        return sInstance;
+    }
+
+    private boolean mEnabled;
+
+    private final Metric[] mMessages;
+    private final Metric mFanOut = new Metric();
+    private int mNotificationsPosted;
+
+    private boolean mInMessage;
+    private long mMessageStartNanos;
+    private int mMessageStartAllocs;
+    private long mFanOutStartNanos;
+    private int mFanOutStartAllocs;
+    private int mFanOutDepth;
+
+    private ControlPlaneStats() {
+        mMessages = new Metric[CallHandlerService.getMessageNames().length];
+        for (int i = 0; i < mMessages.length; i++) {
+            mMessages[i] = new Metric();
+        }
+    }
+
+    /**
+     * Turns measuring on or off according to the system property, and starts over.
+     */
+    public void reset() {
+        reset(SystemProperties.getBoolean(PROPERTY_ENABLED, false));
+    }
+
+    /**
+     * Turns measuring on or off, and starts over.
+     */
+    void reset(boolean enabled) {
+        if (enabled != mEnabled) {
+            if (enabled) {
+                AllocCounter.acquire();
+            } else {
+                AllocCounter.release();
+            }
+            mEnabled = enabled;
+        }
+
+        for (Metric metric : mMessages) {
+            metric.clear();
+        }
+        mFanOut.clear();
+        mNotificationsPosted = 0;
+        mInMessage = false;
+        mFanOutDepth = 0;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void beginMessage() {
+        mInMessage = mEnabled;
+        if (mEnabled) {
+            mMessageStartAllocs = Debug.getThreadAllocCount();
+            mMessageStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    public void endMessage(int what) {
+        // The message that turned measuring on has no start.
+        if (!mInMessage || what < 0 || what >= mMessages.length) {
+            return;
+        }
+        mInMessage = false;
+        final long nanos = SystemClock.elapsedRealtimeNanos() - mMessageStartNanos;
+        final int allocs = Debug.getThreadAllocCount() - mMessageStartAllocs;
+        mMessages[what].add(nanos, allocs);
+        if (nanos > MESSAGE_BUDGET_NANOS) {
+            mMessages[what].overBudget++;
+            Log.w(this, CallHandlerService.getMessageNames()[what] + " took "
+                    + nanos / 1000 + "us, over the " + MESSAGE_BUDGET_NANOS / 1000 + "us budget");
+        }
+    }
+
+    /**
+     * Called before the call list notifies its listeners. Nested notifications are measured
+     * as part of the outermost one.
+     */
+    public void beginFanOut() {
+        if (mEnabled && mFanOutDepth++ == 0) {
+            mFanOutStartAllocs = Debug.getThreadAllocCount();
+            mFanOutStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    public void endFanOut() {
+        if (mEnabled && mFanOutDepth > 0 && --mFanOutDepth == 0) {
+            mFanOut.add(SystemClock.elapsedRealtimeNanos() - mFanOutStartNanos,
+                    Debug.getThreadAllocCount() - mFanOutStartAllocs);
+        }
+    }
+
+    public void onNotificationPosted() {
+        if (mEnabled) {
+            mNotificationsPosted++;
+        }
+    }
+
+    /**
+     * @return the number of messages measured since the last reset.
+     */
+    int getMessageCount() {
+        int count = 0;
+        for (Metric metric : mMessages) {
+            count += metric.count;
+        }
+        return count;
+    }
+
+    /**
+     * @return the average main thread time of the messages measured since the last reset.
+     */
+    long getAverageMessageNanos() {
+        final int count = getMessageCount();
+        if (count == 0) {
+            return 0;
+        }
+        long totalNanos = 0;
+        for (Metric metric : mMessages) {
+            totalNanos += metric.totalNanos;
+        }
+        return totalNanos / count;
+    }
+
+    /**
+     * @return the average number of allocations of the messages measured since the last reset.
+     */
+    long getAverageMessageAllocs() {
+        final int count = getMessageCount();
+        if (count == 0) {
+            return 0;
+        }
+        long totalAllocs = 0;
+        for (Metric metric : mMessages) {
+            totalAllocs += metric.totalAllocs;
+        }
+        return totalAllocs / count;
+    }
+
+    /**
+     * @return the number of messages since the last reset that took longer than a frame.
+     */
+    int getOverBudgetCount() {
+        int count = 0;
+        for (Metric metric : mMessages) {
+            count += metric.overBudget;
+        }
+        return count;
+    }
+
+    public void dump(PrintWriter pw) {
+        if (!mEnabled) {
+            pw.println("Control plane stats disabled; set " + PROPERTY_ENABLED
+                    + " and restart the call service to enable them.");
+            return;
+        }
+        pw.println("Control plane stats (budget " + MESSAGE_BUDGET_NANOS / 1000 + "us):");
+        final String[] names = CallHandlerService.getMessageNames();
+        for (int i = 0; i < mMessages.length; i++) {
+            if (mMessages[i].count > 0) {
+                pw.println("  " + names[i] + ": " + mMessages[i]);
+            }
+        }
+        pw.println("  listener fan-out: " + mFanOut);
+        pw.println("  notifications posted: " + mNotificationsPosted);
+    }
+
+    private static class Metric {
+        int count;
+        long totalNanos;
+        long maxNanos;
+        long totalAllocs;
+        int maxAllocs;
+        int overBudget;
+
+        void add(long nanos, int allocs) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            totalAllocs += allocs;
+            maxAllocs = Math.max(maxAllocs, allocs);
+        }
+
+        void clear() {
+            count = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+            totalAllocs = 0;
+            maxAllocs = 0;
+            overBudget = 0;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "none";
+            }
+            return count + " runs, avg " + totalNanos / count / 1000 + "us, max "
+                    + maxNanos / 1000 + "us, avg allocs " + totalAllocs / count
+                    + ", max allocs " + maxAllocs + ", over budget " + overBudget;
+        }
+    }
+}
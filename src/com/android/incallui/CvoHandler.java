@@ -29,6 +29,9 @@
 package com.android.incallui;
 
 import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.AsyncResult;
 import android.os.Handler;
@@ -64,12 +67,15 @@ public class CvoHandler extends Handler {
     private Context mContext;
     private WindowManager mWindowManager; // Used to get display rotation.
 
-    private OrientationEventListener mOrientationEventListener;
+    // Orientation is derived from the accelerometer stream shared through the sensor hub,
+    // rather than from an OrientationEventListener, which would register a second stream.
+    private InCallSensorHub mSensorHub;
+    private int mLastAngle = OrientationEventListener.ORIENTATION_UNKNOWN;
 
     public CvoHandler(Context context) {
         mContext = context;
 
-        mOrientationEventListener = createOrientationListener();
+        mSensorHub = InCallSensorHub.getInstance(context);
         startOrientationListener(false);
 
         mWindowManager = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
@@ -104,14 +110,16 @@ public class CvoHandler extends Handler {
     public void startOrientationListener(boolean start) {
         log("startOrientationListener " + start);
         if (start) {
-            if (mOrientationEventListener.canDetectOrientation()) {
+            if (mSensorHub.getSensor(Sensor.TYPE_ACCELEROMETER) != null) {
                 notifyInitialOrientation();
-                mOrientationEventListener.enable();
+                mLastAngle = OrientationEventListener.ORIENTATION_UNKNOWN;
+                mSensorHub.subscribe(Sensor.TYPE_ACCELEROMETER, mSensorListener,
+                        SensorManager.SENSOR_DELAY_NORMAL, 0);
             } else {
                 log("Cannot detect orientation");
             }
         } else {
-            mOrientationEventListener.disable();
+            mSensorHub.unsubscribe(Sensor.TYPE_ACCELEROMETER, mSensorListener);
             mCurrentOrientation = OrientationEventListener.ORIENTATION_UNKNOWN;
         }
     }
@@ -216,15 +224,36 @@ public class CvoHandler extends Handler {
         }
     }
 
-    private OrientationEventListener createOrientationListener() {
-        return new OrientationEventListener(
-                mContext, SensorManager.SENSOR_DELAY_NORMAL) {
-            @Override
-            public void onOrientationChanged(int angle) {
+    /**
+     * Computes the orientation angle the same way {@link OrientationEventListener} does.
+     */
+    private final SensorEventListener mSensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            final float x = -event.values[0];
+            final float y = -event.values[1];
+            final float z = -event.values[2];
+            int angle = OrientationEventListener.ORIENTATION_UNKNOWN;
+            // Don't trust the angle if the magnitude is small compared to the y value
+            if ((x * x + y * y) * 4 >= z * z) {
+                angle = 90 - Math.round((float) Math.toDegrees(Math.atan2(-y, x)));
+                while (angle >= 360) {
+                    angle -= 360;
+                }
+                while (angle < 0) {
+                    angle += 360;
+                }
+            }
+            if (angle != mLastAngle) {
+                mLastAngle = angle;
                 doOnOrientationChanged(angle);
             }
-        };
-    }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+    };
 
     private static void log(String msg) {
         Log.d(TAG, msg);
@@ -196,7 +196,7 @@ public class DialpadFragment extends BaseFragment<DialpadPresenter, DialpadPrese
                         Log.d(this, "DTMFKeyListener reading '" + c + "' from input.");
                         if (PhoneNumberUtils.is12Key(c)) {
                             Log.d(this, "updating display and sending dtmf tone for '" + c + "'");
-                            CallCommandClient.getInstance().playDtmfTone(c, false);
+                            getPresenter().startTone(c);
                         } else {
                             Log.d(this, "ignoring dtmf request for '" + c + "'");
                         }
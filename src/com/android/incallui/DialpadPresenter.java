@@ -18,6 +18,8 @@ package com.android.incallui;
 
 import android.telephony.PhoneNumberUtils;
 
+import com.android.services.telephony.common.Call;
+
 /**
  * Logic for call buttons.
  */
@@ -59,18 +61,37 @@ public class DialpadPresenter extends Presenter<DialpadPresenter.DialpadUi>
             // Append this key to the "digits" widget.
             getUi().appendDigitsToField(c);
             // Plays the tone through CallCommandService
-            CallCommandClient.getInstance().playDtmfTone(c, timedShortTone);
+            if (timedShortTone) {
+                CallCommandClient.getInstance().playDtmfSequence(getDtmfCallId(),
+                        String.valueOf(c));
+            } else {
+                startTone(c);
+            }
         } else {
             Log.d(this, "ignoring dtmf request for '" + c + "'");
         }
     }
 
+    /**
+     * Starts the tone for a DTMF key that is already shown in the digits field, such as a key
+     * typed on a hardware keyboard. The tone plays until {@link #stopTone()}.
+     */
+    public final void startTone(char c) {
+        CallCommandClient.getInstance().startDtmfTone(getDtmfCallId(), c);
+    }
+
     /**
      * Stops the local tone based on the phone type.
      */
     public void stopTone() {
         Log.d(this, "stopping remote tone");
-        CallCommandClient.getInstance().stopDtmfTone();
+        CallCommandClient.getInstance().releaseDtmfTone();
+    }
+
+    private static int getDtmfCallId() {
+        // Tones are played on the foreground call.
+        final Call call = CallList.getInstance().getActiveCall();
+        return call != null ? call.getCallId() : Call.INVALID_CALL_ID;
     }
 
     public interface DialpadUi extends Ui {
@@ -44,7 +44,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.provider.Settings;
-import android.telephony.MSimTelephonyManager;
 import android.util.DisplayMetrics;
 import android.view.Gravity;
 import android.view.KeyEvent;
@@ -113,8 +112,7 @@ public class InCallActivity extends Activity {
 
         super.onCreate(icicle);
 
-        if (MSimTelephonyManager.getDefault().getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA) {
+        if (SimTopology.getInstance().isDsda) {
             return;
         }
 
@@ -166,8 +164,7 @@ public class InCallActivity extends Activity {
         Log.d(this, "onStart()...");
         super.onStart();
 
-        if (MSimTelephonyManager.getDefault().getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA) {
+        if (SimTopology.getInstance().isDsda) {
             return;
         }
 
@@ -195,7 +192,7 @@ public class InCallActivity extends Activity {
 
         final Call call = CallList.getInstance().getIncomingCall();
         if (call != null) {
-            CallCommandClient.getInstance().setSystemBarNavigationEnabled(false);
+            InCallPresenter.getInstance().setSystemBarNavigationEnabled(false);
         }
     }
 
@@ -215,7 +212,7 @@ public class InCallActivity extends Activity {
 
         InCallPresenter.getInstance().onUiShowing(false);
 
-        CallCommandClient.getInstance().setSystemBarNavigationEnabled(true);
+        InCallPresenter.getInstance().setSystemBarNavigationEnabled(true);
     }
 
     @Override
@@ -260,8 +257,7 @@ public class InCallActivity extends Activity {
      */
     @Override
     public void finish() {
-        if (MSimTelephonyManager.getDefault().getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA) {
+        if (SimTopology.getInstance().isDsda) {
             super.finish();
             return;
         }
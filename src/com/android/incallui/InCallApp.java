@@ -42,6 +42,7 @@ public class InCallApp extends Application {
 
     @Override
     public void onCreate() {
+        SimTopology.getInstance().registerReceiver(this);
     }
 
     @Override
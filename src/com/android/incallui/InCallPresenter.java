@@ -20,15 +20,16 @@
 
 package com.android.incallui;
 
-import android.telephony.MSimTelephonyManager;
 
 import com.android.incallui.service.PhoneNumberService;
 import com.google.android.collect.Sets;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.ActivityNotFoundException;
+import android.telephony.PhoneNumberUtils;
 
 import com.android.services.telephony.common.Call;
 import com.android.services.telephony.common.Call.Capabilities;
@@ -36,6 +37,7 @@ import com.android.services.telephony.common.CallDetails;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -45,7 +47,7 @@ import java.util.Set;
  * are disconnected.
  * Creates and manages the in-call state and provides a listener pattern for the presenters
  * that want to listen in on the in-call state changes.
- * TODO: This class has become more of a state machine at this point.  Consider renaming.
+ * The UI side of state changes is decided by an {@link InCallStateMachine}.
  */
 public class InCallPresenter implements CallList.Listener {
 
@@ -102,6 +104,19 @@ public class InCallPresenter implements CallList.Listener {
 
     private Call.DisconnectCause mLastDisconnectCause = Call.DisconnectCause.UNKNOWN;
 
+    // Side effects of call list changes, applied only when their inputs change.
+    private final EdgeTriggeredEffect mNavigationEffect =
+            new EdgeTriggeredEffect("systemBarNavigation");
+    private final EdgeTriggeredEffect mDismissKeyguardEffect =
+            new EdgeTriggeredEffect("dismissKeyguard");
+    private final EdgeTriggeredEffect mTranslucencyEffect =
+            new EdgeTriggeredEffect("systemBarTranslucency");
+    private final EdgeTriggeredEffect mDsdaTabEffect = new EdgeTriggeredEffect("dsdaTab");
+
+    // Activity configuration, read once per activity.
+    private boolean mShouldDismissKeyguard;
+    private boolean mIsDsda;
+
     public static synchronized InCallPresenter getInstance() {
         if (sInCallPresenter == null) {
             sInCallPresenter = new InCallPresenter();
@@ -142,9 +157,17 @@ public class InCallPresenter implements CallList.Listener {
 
         mCallList = callList;
 
+        // Start contact lookups for outgoing calls as soon as the call list sees them, so that
+        // the call card can bind from a warm cache.
+        mCallList.addNewOutgoingCallListener(mOutgoingCallPrefetcher);
+
         // This only gets called by the service so this is okay.
         mServiceConnected = true;
 
+        // A new service connection starts with the telephony side in its default state.
+        mNavigationEffect.reset();
+        mIsDsda = SimTopology.getInstance().isDsda;
+
         // The final thing we do in this set up is add ourselves as a listener to CallList.  This
         // will kick off an update and the whole process can start.
         mCallList.addListener(this);
@@ -157,6 +180,17 @@ public class InCallPresenter implements CallList.Listener {
         Log.d(this, "Finished InCallPresenter.setUp");
     }
 
+    /**
+     * Replaces the notifier created by {@link #setUp}. Used by tests that drive the call handling
+     * without posting real notifications.
+     */
+    void setStatusBarNotifier(StatusBarNotifier notifier) {
+        Preconditions.checkNotNull(notifier);
+        removeListener(mStatusBarNotifier);
+        mStatusBarNotifier = notifier;
+        addListener(notifier);
+    }
+
     /**
      * Called when the telephony service has disconnected from us.  This will happen when there are
      * no more active calls. However, we may still want to continue showing the UI for
@@ -273,6 +307,11 @@ public class InCallPresenter implements CallList.Listener {
                 // this happens (like going to/from background) so we do not set updateListeners.
             }
 
+            if (mInCallActivity != inCallActivity) {
+                resetActivityEffects();
+                mShouldDismissKeyguard = inCallActivity.getResources().getBoolean(
+                        R.bool.config_incall_dismiss_keyguard);
+            }
             mInCallActivity = inCallActivity;
 
             // By the time the UI finally comes up, the call may already be disconnected.
@@ -296,6 +335,7 @@ public class InCallPresenter implements CallList.Listener {
             Log.i(this, "UI Destroyed)");
             updateListeners = true;
             mInCallActivity = null;
+            resetActivityEffects();
 
             // We attempt cleanup for the destroy case but only after we recalculate the state
             // to see if we need to come back up or stay shut down. This is why we do the cleanup
@@ -335,16 +375,25 @@ public class InCallPresenter implements CallList.Listener {
      */
     @Override
     public void onCallListChange(CallList callList) {
+        onCallListChange(InCallStateMachine.Event.CALL_LIST_CHANGE, callList);
+    }
+
+    private void onCallListChange(InCallStateMachine.Event event, CallList callList) {
         if (callList == null) {
             return;
         }
-        InCallState newState = getPotentialStateFromCallList(callList);
-        newState = startOrFinishUi(newState);
+        InCallState newState = startOrFinishUi(event, callList);
+
+        // Drop the contact lookups of calls that ended and were removed before the lookup
+        // completed.
+        if (mContactInfoCache != null) {
+            mContactInfoCache.cancelInfoForRemovedCalls(callList);
+        }
 
         // Renable notification shade and soft navigation buttons, if we are no longer in the
         // incoming call screen
         if (!newState.isIncoming()) {
-            CallCommandClient.getInstance().setSystemBarNavigationEnabled(true);
+            setSystemBarNavigationEnabled(true);
         }
 
         onPhoneStateChange(newState, mInCallState);
@@ -360,26 +409,64 @@ public class InCallPresenter implements CallList.Listener {
         }
 
         if (isActivityStarted()) {
-            MSimTelephonyManager tm = MSimTelephonyManager.getDefault();
-
-            if (tm.getMultiSimConfiguration() == MSimTelephonyManager.MultiSimVariants.DSDA) {
-                mInCallActivity.updateDsdaTab();
-            }
-            if (newState != InCallState.DISCONNECTING) {
+            maybeUpdateDsdaTab(callList);
+            // The activity reads the rest of its translucency inputs itself, and updates
+            // the flags when those change.
+            if (newState != InCallState.DISCONNECTING && mTranslucencyEffect.shouldApply(
+                    newState == InCallState.INCOMING)) {
                 mInCallActivity.updateSystemBarTranslucency();
             }
-        }
 
-        // Get the config whether we need to dismiss the keyguard screen, Google design is true.
-        boolean shouldDismissKeyguard = (mInCallActivity != null &&
-                mInCallActivity.getResources().getBoolean(R.bool.config_incall_dismiss_keyguard));
-        if (isActivityStarted() && shouldDismissKeyguard) {
             final boolean hasCall = callList.getActiveOrBackgroundCall() != null ||
                     callList.getOutgoingCall() != null;
-            mInCallActivity.dismissKeyguard(hasCall);
+            maybeDismissKeyguard(hasCall);
+        }
+    }
+
+    /**
+     * Enables or disables the notification shade and soft navigation buttons, unless they
+     * are already in that state.
+     */
+    public void setSystemBarNavigationEnabled(boolean enable) {
+        if (mNavigationEffect.shouldApply(enable)) {
+            CallCommandClient.getInstance().setSystemBarNavigationEnabled(enable);
+        }
+    }
+
+    private void maybeDismissKeyguard(boolean dismiss) {
+        // The config says whether we need to dismiss the keyguard screen, Google design is true.
+        if (isActivityStarted() && mShouldDismissKeyguard
+                && mDismissKeyguardEffect.shouldApply(dismiss)) {
+            mInCallActivity.dismissKeyguard(dismiss);
+        }
+    }
+
+    private void maybeUpdateDsdaTab(CallList callList) {
+        if (!mIsDsda || mInCallActivity == null) {
+            return;
+        }
+        // The tabs show which subscriptions have live calls, and select the active one.
+        final int phoneCount = SimTopology.getInstance().phoneCount;
+        int tabState = (callList.getActiveSubscription() + 1) << phoneCount;
+        for (int i = 0; i < phoneCount; i++) {
+            if (callList.existsLiveCall(i)) {
+                tabState |= 1 << i;
+            }
+        }
+        if (mDsdaTabEffect.shouldApply(tabState)) {
+            mInCallActivity.updateDsdaTab();
         }
     }
 
+    /**
+     * Forgets the applied state of the effects that live in the activity's window.
+     */
+    private void resetActivityEffects() {
+        mDismissKeyguardEffect.reset();
+        mTranslucencyEffect.reset();
+        mDsdaTabEffect.reset();
+    }
+
     /**
      * Called when there is a new incoming call.
      *
@@ -387,7 +474,8 @@ public class InCallPresenter implements CallList.Listener {
      */
     @Override
     public void onIncomingCall(Call call) {
-        InCallState newState = startOrFinishUi(InCallState.INCOMING);
+        InCallState newState = startOrFinishUi(InCallStateMachine.Event.INCOMING_CALL,
+                mCallList);
 
         onPhoneStateChange(newState, mInCallState);
 
@@ -396,16 +484,15 @@ public class InCallPresenter implements CallList.Listener {
 
         // Disable notification shade and soft navigation buttons
         if (newState.isIncoming()) {
-            CallCommandClient.getInstance().setSystemBarNavigationEnabled(false);
+            setSystemBarNavigationEnabled(false);
         }
 
         for (IncomingCallListener listener : mIncomingCallListeners) {
             listener.onIncomingCall(mInCallState, call);
         }
 
-        if (MSimTelephonyManager.getDefault().getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA && (mInCallActivity != null)) {
-            mInCallActivity.updateDsdaTab();
+        if (mCallList != null) {
+            maybeUpdateDsdaTab(mCallList);
         }
     }
 
@@ -421,14 +508,9 @@ public class InCallPresenter implements CallList.Listener {
         maybeShowErrorDialogOnDisconnect(call);
 
         // We need to do the run the same code as onCallListChange.
-        onCallListChange(CallList.getInstance());
+        onCallListChange(InCallStateMachine.Event.DISCONNECT, CallList.getInstance());
 
-        // Get the config whether we need to dismiss the keyguard screen, Google design is true.
-        boolean shouldDismissKeyguard = (mInCallActivity != null &&
-                mInCallActivity.getResources().getBoolean(R.bool.config_incall_dismiss_keyguard));
-        if (isActivityStarted() && shouldDismissKeyguard) {
-            mInCallActivity.dismissKeyguard(false);
-        }
+        maybeDismissKeyguard(false);
     }
 
     /**
@@ -441,21 +523,29 @@ public class InCallPresenter implements CallList.Listener {
         if (callList == null) {
             return newState;
         }
-        if (callList.getIncomingCall() != null) {
+        // Find all the call states with one pass over the calls.
+        final int states = callList.getPresentCallStates();
+        if (hasCallState(states, Call.State.INCOMING)
+                || hasCallState(states, Call.State.CALL_WAITING)) {
             newState = InCallState.INCOMING;
-        } else if (callList.getOutgoingCall() != null) {
+        } else if (hasCallState(states, Call.State.DIALING)
+                || hasCallState(states, Call.State.REDIALING)) {
             newState = InCallState.OUTGOING;
-        } else if (callList.getActiveCall() != null ||
-                callList.getBackgroundCall() != null) {
+        } else if (hasCallState(states, Call.State.ACTIVE)
+                || hasCallState(states, Call.State.ONHOLD)) {
             newState = InCallState.INCALL;
-        } else if (callList.getDisconnectedCall() != null ||
-                callList.getDisconnectingCall() != null) {
+        } else if (hasCallState(states, Call.State.DISCONNECTED)
+                || hasCallState(states, Call.State.DISCONNECTING)) {
             newState = InCallState.DISCONNECTING;
         }
 
         return newState;
     }
 
+    private static boolean hasCallState(int states, int state) {
+        return (states & (1 << state)) != 0;
+    }
+
     public void addIncomingCallListener(IncomingCallListener listener) {
         Preconditions.checkNotNull(listener);
         mIncomingCallListeners.add(listener);
@@ -553,6 +643,8 @@ public class InCallPresenter implements CallList.Listener {
             mIsActivityPreviouslyStarted = true;
         }
 
+        CallDurationClock.getInstance().setUiShowing(showing);
+
         mVideoCallManager.getVideoPauseController().onUiShowing(showing);
     }
 
@@ -576,6 +668,33 @@ public class InCallPresenter implements CallList.Listener {
         }
     }
 
+    /**
+     * Sends the post-dial string that was held at a wait character, once the user accepted it.
+     *
+     * Instead of letting telephony send the string one character at a time, its post-dial is
+     * cancelled and the digits up to the next wait are queued as one DTMF sequence. The user is
+     * asked again for the rest of the string after that wait.
+     */
+    public void continuePostDial(int callId, String chars) {
+        final CallCommandClient client = CallCommandClient.getInstance();
+        client.postDialCancel(callId);
+
+        final int wait = chars.indexOf(PhoneNumberUtils.WAIT);
+        final String burst = wait >= 0 ? chars.substring(0, wait) : chars;
+        final StringBuilder digits = new StringBuilder(burst.length());
+        for (int i = 0; i < burst.length(); i++) {
+            final char c = burst.charAt(i);
+            if (PhoneNumberUtils.is12Key(c) || c == PhoneNumberUtils.PAUSE) {
+                digits.append(c);
+            }
+        }
+        client.playDtmfSequence(callId, digits.toString());
+
+        if (wait >= 0) {
+            onPostDialCharWait(callId, chars.substring(wait + 1));
+        }
+    }
+
     /**
      * Handles the green CALL key while in-call.
      * @return true if we consumed the event.
@@ -703,93 +822,87 @@ public class InCallPresenter implements CallList.Listener {
     }
 
     /**
-     * When the state of in-call changes, this is the first method to get called. It determines if
-     * the UI needs to be started or finished depending on the new state and does it.
+     * When a call event comes in, this is the first method to get called. It determines the new
+     * state, and if the UI needs to be started or finished for it, does it.
      */
-    private InCallState startOrFinishUi(InCallState newState) {
-        Log.d(this, "startOrFinishUi: " + mInCallState + " -> " + newState);
+    private InCallState startOrFinishUi(InCallStateMachine.Event event, CallList callList) {
+        Log.d(this, "startOrFinishUi: " + mInCallState + ", " + event);
+        return mStateMachine.onEvent(event, mInCallState, callList);
+    }
 
-        // If there is a CS call in sub2, and there is a SIP call in sub1
-        // disconnected, INCALL state will be got in non-dsda, so need switch
-        // active sub
-        if (newState == InCallState.INCALL) {
-            switchActiveSubIfNeed();
-        }
-        // TODO: Consider a proper state machine implementation
+    /**
+     * @return the most recent in-call state transitions, oldest first.
+     */
+    public List<InCallStateMachine.Transition> getStateTransitionLog() {
+        return mStateMachine.getTransitionLog();
+    }
 
-        // If the state isn't changing, we have already done any starting/stopping of
-        // activities in a previous pass...so lets cut out early
-        if (newState == mInCallState) {
-            return newState;
+    private final InCallStateMachine mStateMachine = new InCallStateMachine(
+            new InCallStateMachine.Hooks() {
+        @Override
+        public boolean isUiFinishing() {
+            // The only time that we have an instance of mInCallActivity and it isn't started
+            // is when it is being destroyed.
+            return mInCallActivity != null && !isActivityStarted();
         }
 
-        // A new Incoming call means that the user needs to be notified of the the call (since
-        // it wasn't them who initiated it).  We do this through full screen notifications and
-        // happens indirectly through {@link StatusBarListener}.
-        //
-        // The process for incoming calls is as follows:
-        //
-        // 1) CallList          - Announces existence of new INCOMING call
-        // 2) InCallPresenter   - Gets announcement and calculates that the new InCallState
-        //                      - should be set to INCOMING.
-        // 3) InCallPresenter   - This method is called to see if we need to start or finish
-        //                        the app given the new state.
-        // 4) StatusBarNotifier - Listens to InCallState changes. InCallPresenter calls
-        //                        StatusBarNotifier explicitly to issue a FullScreen Notification
-        //                        that will either start the InCallActivity or show the user a
-        //                        top-level notification dialog if the user is in an immersive app.
-        //                        That notification can also start the InCallActivity.
-        // 5) InCallActivity    - Main activity starts up and at the end of its onCreate will
-        //                        call InCallPresenter::setActivity() to let the presenter
-        //                        know that start-up is complete.
-        //
-        //          [ AND NOW YOU'RE IN THE CALL. voila! ]
-        //
-        // Our app is started using a fullScreen notification.  We need to do this whenever
-        // we get an incoming call.
-        final boolean startStartupSequence = (InCallState.INCOMING == newState);
+        @Override
+        public void prepareInCall() {
+            // If there is a CS call in sub2, and there is a SIP call in sub1
+            // disconnected, INCALL state will be got in non-dsda, so need switch
+            // active sub
+            switchActiveSubIfNeed();
+        }
 
-        // A new outgoing call indicates that the user just now dialed a number and when that
-        // happens we need to display the screen immediateley.
-        //
-        // This is different from the incoming call sequence because we do not need to shock the
-        // user with a top-level notification.  Just show the call UI normally.
-        final boolean showCallUi = (InCallState.OUTGOING == newState);
-
-        // TODO: Can we be suddenly in a call without it having been in the outgoing or incoming
-        // state?  I havent seen that but if it can happen, the code below should be enabled.
-        // showCallUi |= (InCallState.INCALL && !isActivityStarted());
-
-        // The only time that we have an instance of mInCallActivity and it isn't started is
-        // when it is being destroyed.  In that case, lets avoid bringing up another instance of
-        // the activity.  When it is finally destroyed, we double check if we should bring it back
-        // up so we aren't going to lose anything by avoiding a second startup here.
-        boolean activityIsFinishing = mInCallActivity != null && !isActivityStarted();
-        if (activityIsFinishing) {
-            Log.i(this, "Undo the state change: " + newState + " -> " + mInCallState);
-            return mInCallState;
-        }
-
-        if (showCallUi) {
-            Log.i(this, "Start in call UI");
+        @Override
+        public void showCallUi() {
+            // A new outgoing call indicates that the user just now dialed a number and when
+            // that happens we need to display the screen immediately.
+            //
+            // This is different from the incoming call sequence because we do not need to
+            // shock the user with a top-level notification.  Just show the call UI normally.
             showInCall(false);
-        } else if (startStartupSequence) {
-            Log.i(this, "Start Full Screen in call UI");
+        }
+
+        @Override
+        public void startIncomingUi(InCallState state) {
+            // A new Incoming call means that the user needs to be notified of the the call
+            // (since it wasn't them who initiated it).  We do this through full screen
+            // notifications and happens indirectly through {@link StatusBarListener}.
+            //
+            // The process for incoming calls is as follows:
+            //
+            // 1) CallList          - Announces existence of new INCOMING call
+            // 2) InCallPresenter   - Gets announcement and calculates that the new InCallState
+            //                      - should be set to INCOMING.
+            // 3) InCallStateMachine - Finds that the UI needs to be started for the new state.
+            // 4) StatusBarNotifier - Listens to InCallState changes. InCallPresenter calls
+            //                        StatusBarNotifier explicitly to issue a FullScreen
+            //                        Notification that will either start the InCallActivity or
+            //                        show the user a top-level notification dialog if the user
+            //                        is in an immersive app. That notification can also start
+            //                        the InCallActivity.
+            // 5) InCallActivity    - Main activity starts up and at the end of its onCreate
+            //                        will call InCallPresenter::setActivity() to let the
+            //                        presenter know that start-up is complete.
+            //
+            //          [ AND NOW YOU'RE IN THE CALL. voila! ]
 
             // We're about the bring up the in-call UI for an incoming call. If we still have
             // dialogs up, we need to clear them out before showing incoming screen.
             if (isActivityStarted()) {
                 mInCallActivity.dismissPendingDialogs();
             }
-            startUi(newState);
-        } else if (newState == InCallState.NO_CALLS) {
+            startUi(state);
+        }
+
+        @Override
+        public void finishUi() {
             // The new state is the no calls state.  Tear everything down.
             attemptFinishActivity();
             attemptCleanup();
         }
-
-        return newState;
-    }
+    });
 
     private void startUi(InCallState inCallState) {
         final Call incomingCall = mCallList.getIncomingCall();
@@ -819,6 +932,16 @@ public class InCallPresenter implements CallList.Listener {
         mStatusBarNotifier.updateNotificationAndLaunchIncomingCallUi(inCallState, mCallList);
     }
 
+    private final CallList.NewOutgoingCallListener mOutgoingCallPrefetcher =
+            new CallList.NewOutgoingCallListener() {
+        @Override
+        public void onNewOutgoingCall(Call call) {
+            if (mContactInfoCache != null && !call.isConferenceCall()) {
+                mContactInfoCache.prefetchInfo(call.getIdentification(), false);
+            }
+        }
+    };
+
     /**
      * Checks to see if both the UI is gone and the service is disconnected. If so, tear it all
      * down.
@@ -853,6 +976,7 @@ public class InCallPresenter implements CallList.Listener {
 
             if (mCallList != null) {
                 mCallList.removeListener(this);
+                mCallList.removeNewOutgoingCallListener(mOutgoingCallPrefetcher);
             }
             mCallList = null;
 
@@ -862,6 +986,8 @@ public class InCallPresenter implements CallList.Listener {
             mListeners.clear();
             mIncomingCallListeners.clear();
 
+            Log.d(this, "Side effects: " + mNavigationEffect + ", " + mDismissKeyguardEffect
+                    + ", " + mTranslucencyEffect + ", " + mDsdaTabEffect);
             Log.d(this, "Finished InCallPresenter.CleanUp");
         }
     }
@@ -875,8 +1001,7 @@ public class InCallPresenter implements CallList.Listener {
         intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS
                 | Intent.FLAG_ACTIVITY_NO_USER_ACTION);
-        if (MSimTelephonyManager.getDefault().getMultiSimConfiguration()
-                == MSimTelephonyManager.MultiSimVariants.DSDA) {
+        if (SimTopology.getInstance().isDsda) {
             intent.setClass(mContext, MSimInCallActivity.class);
         } else {
             intent.setClass(mContext, InCallActivity.class);
@@ -993,4 +1118,48 @@ public class InCallPresenter implements CallList.Listener {
     private void loge(String msg) {
         Log.e(this, msg);
     }
+
+    /**
+     * Remembers the last value a side effect was applied with, so that it is only applied again
+     * when the value changes. Counts applied and suppressed applications.
+     */
+    private static class EdgeTriggeredEffect {
+        private final String mName;
+        private Object mLastValue;
+        private boolean mHasValue;
+        private int mAppliedCount;
+        private int mSuppressedCount;
+
+        EdgeTriggeredEffect(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return whether the effect needs to be applied for the value; if so, the value is
+         * remembered as applied.
+         */
+        boolean shouldApply(Object value) {
+            if (mHasValue && Objects.equal(mLastValue, value)) {
+                mSuppressedCount++;
+                return false;
+            }
+            mLastValue = value;
+            mHasValue = true;
+            mAppliedCount++;
+            return true;
+        }
+
+        /**
+         * Forgets the applied value, e.g. because whatever the effect was applied to is gone.
+         */
+        void reset() {
+            mLastValue = null;
+            mHasValue = false;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " applied=" + mAppliedCount + " suppressed=" + mSuppressedCount;
+        }
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Shares sensors between the in-call components that need them.
+ *
+ * Each sensor is registered with the {@link SensorManager} at most once, at the fastest rate and
+ * lowest report latency requested by any subscriber, and its events are fanned out to all
+ * subscribers. A sensor is only registered while it has at least one subscriber. Sensors with a
+ * hardware FIFO are registered with a max report latency so that their events can be batched.
+ *
+ * A subscriber that joins a sensor that is already registered gets the last reading right away.
+ * On-change sensors like the proximity sensor only report when their value changes, so
+ * otherwise it wouldn't learn the current state until the next change.
+ *
+ * This class is only used from the main thread.
+ */
+public class InCallSensorHub {
+
+    private static InCallSensorHub sInstance;
+
+    public static synchronized InCallSensorHub getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new InCallSensorHub(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final SensorManager mSensorManager;
+    private final SparseArray<SensorChannel> mChannels = new SparseArray<SensorChannel>();
+
+    private InCallSensorHub(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    }
+
+    /**
+     * @return the default sensor of the given type, or null if there is none.
+     */
+    public Sensor getSensor(int type) {
+        return mSensorManager.getDefaultSensor(type);
+    }
+
+    /**
+     * Subscribes to the default sensor of the given type. Subscribing an already subscribed
+     * listener updates its requested rate and latency.
+     *
+     * @param rate one of the SensorManager.SENSOR_DELAY_* constants, or a sampling period in
+     * microseconds.
+     * @param maxReportLatencyUs how long events may be batched before being delivered; 0 for
+     * no batching.
+     * @return false if the device has no such sensor.
+     */
+    public boolean subscribe(int type, SensorEventListener listener, int rate,
+            int maxReportLatencyUs) {
+        SensorChannel channel = mChannels.get(type);
+        if (channel == null) {
+            final Sensor sensor = getSensor(type);
+            if (sensor == null) {
+                Log.w(this, "No sensor of type " + type);
+                return false;
+            }
+            channel = new SensorChannel(sensor);
+            mChannels.put(type, channel);
+        }
+        channel.add(listener, toSamplingPeriodUs(rate), maxReportLatencyUs);
+        return true;
+    }
+
+    public void unsubscribe(int type, SensorEventListener listener) {
+        final SensorChannel channel = mChannels.get(type);
+        if (channel != null) {
+            channel.remove(listener);
+        }
+    }
+
+    private static int toSamplingPeriodUs(int rate) {
+        switch (rate) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                return 0;
+            case SensorManager.SENSOR_DELAY_GAME:
+                return 20000;
+            case SensorManager.SENSOR_DELAY_UI:
+                return 66667;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                return 200000;
+            default:
+                return rate;
+        }
+    }
+
+    private static class Subscription {
+        final SensorEventListener listener;
+        int samplingPeriodUs;
+        int maxReportLatencyUs;
+
+        Subscription(SensorEventListener listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The single registration of one sensor, and its subscribers.
+     */
+    private class SensorChannel implements SensorEventListener {
+        private final Sensor mSensor;
+        private final ArrayList<Subscription> mSubscriptions = new ArrayList<Subscription>();
+        private boolean mRegistered;
+        private int mSamplingPeriodUs;
+        private int mMaxReportLatencyUs;
+        // The last event delivered while registered. The sensor manager reuses its event
+        // objects, but only fills them in on this thread right before delivering them, so this
+        // always holds the last reading.
+        private SensorEvent mLastEvent;
+
+        SensorChannel(Sensor sensor) {
+            mSensor = sensor;
+        }
+
+        void add(SensorEventListener listener, int samplingPeriodUs, int maxReportLatencyUs) {
+            Subscription subscription = find(listener);
+            final boolean isNew = subscription == null;
+            if (isNew) {
+                subscription = new Subscription(listener);
+                mSubscriptions.add(subscription);
+            }
+            subscription.samplingPeriodUs = samplingPeriodUs;
+            subscription.maxReportLatencyUs = maxReportLatencyUs;
+            updateRegistration();
+            if (isNew && mRegistered && mLastEvent != null) {
+                listener.onSensorChanged(mLastEvent);
+            }
+        }
+
+        void remove(SensorEventListener listener) {
+            final Subscription subscription = find(listener);
+            if (subscription != null) {
+                mSubscriptions.remove(subscription);
+                updateRegistration();
+            }
+        }
+
+        private Subscription find(SensorEventListener listener) {
+            for (int i = 0; i < mSubscriptions.size(); i++) {
+                if (mSubscriptions.get(i).listener == listener) {
+                    return mSubscriptions.get(i);
+                }
+            }
+            return null;
+        }
+
+        private void updateRegistration() {
+            if (mSubscriptions.isEmpty()) {
+                if (mRegistered) {
+                    Log.d(InCallSensorHub.this, "Unregistering " + mSensor.getName());
+                    mSensorManager.unregisterListener(this);
+                    mRegistered = false;
+                }
+                // The reading goes stale while nobody listens.
+                mLastEvent = null;
+                return;
+            }
+
+            int samplingPeriodUs = Integer.MAX_VALUE;
+            int maxReportLatencyUs = Integer.MAX_VALUE;
+            for (int i = 0; i < mSubscriptions.size(); i++) {
+                final Subscription subscription = mSubscriptions.get(i);
+                samplingPeriodUs = Math.min(samplingPeriodUs, subscription.samplingPeriodUs);
+                maxReportLatencyUs = Math.min(maxReportLatencyUs,
+                        subscription.maxReportLatencyUs);
+            }
+            if (mSensor.getFifoMaxEventCount() == 0) {
+                // No hardware FIFO, so the sensor can't batch.
+                maxReportLatencyUs = 0;
+            }
+
+            if (mRegistered && samplingPeriodUs == mSamplingPeriodUs
+                    && maxReportLatencyUs == mMaxReportLatencyUs) {
+                return;
+            }
+            if (mRegistered) {
+                mSensorManager.unregisterListener(this);
+            }
+            Log.d(InCallSensorHub.this, "Registering " + mSensor.getName() + " period="
+                    + samplingPeriodUs + "us latency=" + maxReportLatencyUs + "us");
+            mRegistered = mSensorManager.registerListener(this, mSensor, samplingPeriodUs,
+                    maxReportLatencyUs);
+            mSamplingPeriodUs = samplingPeriodUs;
+            mMaxReportLatencyUs = maxReportLatencyUs;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            mLastEvent = event;
+            // Iterate backwards so that subscribers may unsubscribe from their callback.
+            for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+                if (i < mSubscriptions.size()) {
+                    mSubscriptions.get(i).listener.onSensorChanged(event);
+                }
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+                if (i < mSubscriptions.size()) {
+                    mSubscriptions.get(i).listener.onAccuracyChanged(sensor, accuracy);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.SystemClock;
+
+import com.android.incallui.InCallPresenter.InCallState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the in-call UI between {@link InCallState}s as call {@link Event}s come in, and runs
+ * the UI side of each transition through {@link Hooks}.
+ *
+ * Each event decides the state to move to: a new incoming call always leads to INCOMING,
+ * without looking at the call list; other events move to the state the call list calls for.
+ * The UI action of every (from, to) pair of states is precomputed in a transition table:
+ * the UI is started when moving to OUTGOING or INCOMING, and finished when moving to
+ * NO_CALLS. Staying in the same state never does anything. Every transition is recorded in a
+ * bounded log, which can be replayed against other hooks, e.g. in tests.
+ *
+ * This class is only used from the main thread.
+ */
+class InCallStateMachine {
+
+    /**
+     * The call events that drive the state machine.
+     */
+    public enum Event {
+        // The calls changed; the state follows from the call list.
+        CALL_LIST_CHANGE,
+        // A new incoming call; the state is INCOMING.
+        INCOMING_CALL,
+        // A call disconnected; the state follows from the calls that are left.
+        DISCONNECT,
+    }
+
+    /**
+     * What the UI has to do for a transition.
+     */
+    public enum Action {
+        NONE,
+        // Show the in-call UI right away, for a call the user just dialed.
+        SHOW_CALL_UI,
+        // Start the incoming call sequence through a full screen notification.
+        START_INCOMING_UI,
+        // Finish the in-call UI and tear everything down.
+        FINISH_UI,
+    }
+
+    /**
+     * The UI operations run by the transitions.
+     */
+    public interface Hooks {
+        /**
+         * @return whether the UI is being destroyed; transitions are put off until it is gone.
+         */
+        public boolean isUiFinishing();
+
+        /**
+         * Called for every event that leads to INCALL, before the transition, including the
+         * events that keep the UI in INCALL.
+         */
+        public void prepareInCall();
+
+        public void showCallUi();
+
+        public void startIncomingUi(InCallState state);
+
+        public void finishUi();
+    }
+
+    /**
+     * One entry of the transition log.
+     */
+    public static final class Transition {
+        public final Event event;
+        public final InCallState from;
+        public final InCallState to;
+        public final Action action;
+        public final long uptimeMillis;
+
+        Transition(Event event, InCallState from, InCallState to, Action action,
+                long uptimeMillis) {
+            this.event = event;
+            this.from = from;
+            this.to = to;
+            this.action = action;
+            this.uptimeMillis = uptimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return uptimeMillis + " " + event + ": " + from + " -> " + to + " [" + action + "]";
+        }
+    }
+
+    private static final int MAX_LOGGED_TRANSITIONS = 32;
+
+    private static final Action[][] TRANSITIONS = buildTransitionTable();
+
+    private static Action[][] buildTransitionTable() {
+        final InCallState[] states = InCallState.values();
+        final Action[][] table = new Action[states.length][states.length];
+        for (InCallState from : states) {
+            for (InCallState to : states) {
+                final Action action;
+                if (from == to) {
+                    action = Action.NONE;
+                } else if (to == InCallState.OUTGOING) {
+                    action = Action.SHOW_CALL_UI;
+                } else if (to == InCallState.INCOMING) {
+                    action = Action.START_INCOMING_UI;
+                } else if (to == InCallState.NO_CALLS) {
+                    action = Action.FINISH_UI;
+                } else {
+                    // INCALL and DISCONNECTING are reached with the UI already up.
+                    action = Action.NONE;
+                }
+                table[from.ordinal()][to.ordinal()] = action;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return the state an event leads to.
+     */
+    public static InCallState getTargetState(Event event, CallList callList) {
+        switch (event) {
+            case INCOMING_CALL:
+                return InCallState.INCOMING;
+            default:
+                return InCallPresenter.getPotentialStateFromCallList(callList);
+        }
+    }
+
+    public static Action getAction(InCallState from, InCallState to) {
+        return TRANSITIONS[from.ordinal()][to.ordinal()];
+    }
+
+    private final Hooks mHooks;
+    private final Transition[] mLog = new Transition[MAX_LOGGED_TRANSITIONS];
+    private int mLogStart;
+    private int mLogSize;
+
+    public InCallStateMachine(Hooks hooks) {
+        mHooks = hooks;
+    }
+
+    /**
+     * Runs the transition for an event.
+     *
+     * @param current the state the UI is in.
+     * @param callList the calls; not used for incoming call events.
+     * @return the state the UI is in after the transition; this is the current state if the
+     * transition had to be put off.
+     */
+    public InCallState onEvent(Event event, InCallState current, CallList callList) {
+        final InCallState target = getTargetState(event, callList);
+        if (target == InCallState.INCALL) {
+            mHooks.prepareInCall();
+        }
+        if (current == target) {
+            return current;
+        }
+
+        // The only time the UI is up but not started is when it is being destroyed. In that
+        // case, avoid bringing up another instance; once it is destroyed the state is
+        // recomputed, so nothing is lost.
+        if (mHooks.isUiFinishing()) {
+            Log.i(this, "Undo the state change: " + target + " -> " + current);
+            return current;
+        }
+
+        final Action action = getAction(current, target);
+        log(new Transition(event, current, target, action, SystemClock.uptimeMillis()));
+        run(mHooks, action, target);
+        return target;
+    }
+
+    /**
+     * @return the logged transitions, oldest first.
+     */
+    public List<Transition> getTransitionLog() {
+        final ArrayList<Transition> transitions = new ArrayList<Transition>(mLogSize);
+        for (int i = 0; i < mLogSize; i++) {
+            transitions.add(mLog[(mLogStart + i) % MAX_LOGGED_TRANSITIONS]);
+        }
+        return transitions;
+    }
+
+    /**
+     * Runs the actions of logged transitions again, against the given hooks.
+     */
+    public static void replay(List<Transition> transitions, Hooks hooks) {
+        for (Transition transition : transitions) {
+            run(hooks, getAction(transition.from, transition.to), transition.to);
+        }
+    }
+
+    private static void run(Hooks hooks, Action action, InCallState target) {
+        switch (action) {
+            case SHOW_CALL_UI:
+                Log.i(InCallStateMachine.class.getSimpleName(), "Start in call UI");
+                hooks.showCallUi();
+                break;
+            case START_INCOMING_UI:
+                Log.i(InCallStateMachine.class.getSimpleName(), "Start Full Screen in call UI");
+                hooks.startIncomingUi(target);
+                break;
+            case FINISH_UI:
+                hooks.finishUi();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void log(Transition transition) {
+        if (mLogSize < MAX_LOGGED_TRANSITIONS) {
+            mLog[(mLogStart + mLogSize) % MAX_LOGGED_TRANSITIONS] = transition;
+            mLogSize++;
+        } else {
+            mLog[mLogStart] = transition;
+            mLogStart = (mLogStart + 1) % MAX_LOGGED_TRANSITIONS;
+        }
+        Log.d(this, "Transition " + transition);
+    }
+}
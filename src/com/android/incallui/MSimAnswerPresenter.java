@@ -19,7 +19,6 @@
 
 package com.android.incallui;
 
-import android.telephony.MSimTelephonyManager;
 import com.android.services.telephony.common.Call;
 
 import java.util.ArrayList;
@@ -41,7 +40,7 @@ public class MSimAnswerPresenter extends Presenter<MSimAnswerPresenter.AnswerUi>
         super.onUiReady(ui);
 
         final CallList calls = CallList.getInstance();
-        for (int i = 0; i < MSimTelephonyManager.getDefault().getPhoneCount(); i++) {
+        for (int i = 0; i < SimTopology.getInstance().phoneCount; i++) {
             Call call = calls.getCallWithState(Call.State.INCOMING, 0, i);
             if (call == null) {
                 call = calls.getCallWithState(Call.State.CALL_WAITING, 0, i);
@@ -65,7 +64,7 @@ public class MSimAnswerPresenter extends Presenter<MSimAnswerPresenter.AnswerUi>
 
         // This is necessary because the activity can be destroyed while an incoming call exists.
         // This happens when back button is pressed while incoming call is still being shown.
-        for (int i = 0; i < MSimTelephonyManager.getDefault().getPhoneCount(); i++) {
+        for (int i = 0; i < SimTopology.getInstance().phoneCount; i++) {
             if (mCallId[i] != Call.INVALID_CALL_ID) {
                 CallList.getInstance().removeCallUpdateListener(mCallId[i], this);
             }
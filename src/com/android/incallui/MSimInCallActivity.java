@@ -25,8 +25,6 @@ import android.app.ActionBar.Tab;
 import android.content.res.TypedArray;
 import android.os.Bundle;
 import android.provider.Settings;
-import android.telephony.MSimTelephonyManager;
-import android.telephony.TelephonyManager;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -135,7 +133,7 @@ public class MSimInCallActivity extends InCallActivity {
     }
 
     private void initializeDsdaSwitchTab() {
-        int phoneCount = MSimTelephonyManager.getDefault().getPhoneCount();
+        int phoneCount = SimTopology.getInstance().phoneCount;
         ActionBar bar = getActionBar();
         View[] mDsdaTabLayout = new View[phoneCount];
         TypedArray icons = getResources().obtainTypedArray(R.array.sim_icons);
@@ -144,8 +142,7 @@ public class MSimInCallActivity extends InCallActivity {
         for (int i = 0; i < phoneCount; i++) {
             mDsdaTabLayout[i] = getLayoutInflater()
                     .inflate(R.layout.msim_tab_sub_info, null);
-            if (MSimTelephonyManager.getDefault().getSimState(i)
-                    == TelephonyManager.SIM_STATE_ABSENT) {
+            if (!SimTopology.getInstance().isSimPresent(i)) {
                 ((ImageView)mDsdaTabLayout[i].findViewById(R.id.tabSubIcon))
                     .setVisibility(View.INVISIBLE);
                 ((TextView)mDsdaTabLayout[i].findViewById(R.id.tabSubText))
@@ -164,7 +161,7 @@ public class MSimInCallActivity extends InCallActivity {
 
     @Override
     public void updateDsdaTab() {
-        int phoneCount = MSimTelephonyManager.getDefault().getPhoneCount();
+        int phoneCount = SimTopology.getInstance().phoneCount;
         ActionBar bar = getActionBar();
 
         for (int i = 0; i < phoneCount; i++) {
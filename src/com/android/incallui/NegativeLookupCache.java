@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers numbers that a remote lookup backend recently failed to resolve, so that repeat
+ * unknown callers (typically spam and robocalls) don't pay for a remote lookup on every call.
+ *
+ * Entries are keyed by backend and E.164 number. A "not found" answer is kept much longer than
+ * an error, since errors are usually transient. The cache lives in memory only and is bounded;
+ * the least recently used entries are evicted first.
+ *
+ * This class is only used from the main thread.
+ */
+class NegativeLookupCache {
+    private static final String TAG = NegativeLookupCache.class.getSimpleName();
+
+    private static final long NOT_FOUND_TTL_MS = 6 * 60 * 60 * 1000;
+    private static final long ERROR_TTL_MS = 5 * 60 * 1000;
+    private static final int MAX_ENTRIES = 128;
+
+    private final Context mContext;
+    private final LinkedHashMap<String, Long> mExpiryTimes =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public NegativeLookupCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return whether the backend recently failed to resolve the number.
+     */
+    public boolean contains(String backend, String number) {
+        final String key = getKey(backend, number);
+        if (key == null) {
+            return false;
+        }
+        final Long expiry = mExpiryTimes.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry <= SystemClock.elapsedRealtime()) {
+            mExpiryTimes.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that the backend has no information about the number.
+     */
+    public void putNotFound(String backend, String number) {
+        put(backend, number, NOT_FOUND_TTL_MS);
+    }
+
+    /**
+     * Records that the backend failed to look up the number.
+     */
+    public void putError(String backend, String number) {
+        put(backend, number, ERROR_TTL_MS);
+    }
+
+    /**
+     * Forgets about the number, e.g. because the backend resolved it after all.
+     */
+    public void remove(String backend, String number) {
+        final String key = getKey(backend, number);
+        if (key != null) {
+            mExpiryTimes.remove(key);
+        }
+    }
+
+    private void put(String backend, String number, long ttlMs) {
+        final String key = getKey(backend, number);
+        if (key != null) {
+            Log.d(TAG, "Caching lookup miss for " + backend + ", ttl=" + ttlMs + "ms");
+            mExpiryTimes.put(key, SystemClock.elapsedRealtime() + ttlMs);
+        }
+    }
+
+    private String getKey(String backend, String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        String normalized = PhoneNumberUtils.formatNumberToE164(number,
+                CallerInfo.getCurrentCountryIso(mContext));
+        if (normalized == null) {
+            normalized = PhoneNumberUtils.normalizeNumber(number);
+        }
+        return backend + ":" + normalized;
+    }
+}
@@ -22,6 +22,7 @@ package com.android.incallui;
 public abstract class Presenter<U extends Ui> {
 
     private U mUi;
+    private final UiBindMemo mBinds = new UiBindMemo();
 
     /**
      * Called after the UI view has been created.  That is when fragment.onViewCreated() is called.
@@ -30,6 +31,7 @@ public abstract class Presenter<U extends Ui> {
      */
     public void onUiReady(U ui) {
         mUi = ui;
+        mBinds.reset();
     }
 
     /**
@@ -38,6 +40,8 @@ public abstract class Presenter<U extends Ui> {
     public final void onUiDestroy(U ui) {
         onUiUnready(ui);
         mUi = null;
+        mBinds.reset();
+        Log.d(this, "Ui binds: " + mBinds);
     }
 
     /**
@@ -50,4 +54,20 @@ public abstract class Presenter<U extends Ui> {
     public U getUi() {
         return mUi;
     }
+
+    /**
+     * Returns whether a Ui setter has to be called, i.e. it was not called with the same values
+     * since the Ui became ready. See {@link UiBindMemo}.
+     */
+    protected boolean shouldBind(String bind, Object... values) {
+        return mBinds.shouldBind(bind, values);
+    }
+
+    /**
+     * Makes the next call of the given Ui setters go through, e.g. because another setter
+     * overrode what they had set.
+     */
+    protected void invalidateBinds(String... binds) {
+        mBinds.invalidate(binds);
+    }
 }
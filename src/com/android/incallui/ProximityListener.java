@@ -35,24 +35,30 @@ public final class ProximityListener {
     private long mLastProximityEventTime;
     private boolean mActive;
 
-    private SensorManager mSensorManager;
+    private InCallSensorHub mSensorHub;
     private Sensor mSensor;
+    private ActiveListener mListener;
 
+    public interface ActiveListener {
+        public void onProximityActiveChanged(boolean active);
+    }
 
-    public ProximityListener(Context context) {
+    public ProximityListener(Context context, ActiveListener listener) {
         mActive = false;
-        mSensorManager = (SensorManager)context.getSystemService(Context.SENSOR_SERVICE);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+        mListener = listener;
+        mSensorHub = InCallSensorHub.getInstance(context);
+        mSensor = mSensorHub.getSensor(Sensor.TYPE_PROXIMITY);
     }
 
     public void enable(boolean enable) {
         if (DEBUG) Log.d(TAG, "enable(" + enable + ")");
         synchronized (this) {
-            mActive = false;
+            setActive(false);
             if (enable) {
-                mSensorManager.registerListener(mSensorListener, mSensor, SensorManager.SENSOR_DELAY_NORMAL);
+                mSensorHub.subscribe(Sensor.TYPE_PROXIMITY, mSensorListener,
+                        SensorManager.SENSOR_DELAY_NORMAL, 0);
             } else {
-                mSensorManager.unregisterListener(mSensorListener);
+                mSensorHub.unsubscribe(Sensor.TYPE_PROXIMITY, mSensorListener);
             }
         }
     }
@@ -61,12 +67,19 @@ public final class ProximityListener {
         return mActive;
     }
 
+    private void setActive(boolean active) {
+        if (mActive != active) {
+            mActive = active;
+            mListener.onProximityActiveChanged(active);
+        }
+    }
+
     SensorEventListener mSensorListener = new SensorEventListener() {
         public void onSensorChanged(SensorEvent event) {
             synchronized (this) {
                 float distance = event.values[0];
                 // compare against getMaximumRange to support sensors that only return 0 or 1
-                mActive = (distance >= 0.0 && distance < PROXIMITY_THRESHOLD &&
+                setActive(distance >= 0.0 && distance < PROXIMITY_THRESHOLD &&
                            distance < mSensor.getMaximumRange());
 
                 if (VDEBUG) Log.d(TAG, "mProximityListener.onSensorChanged active: " + mActive);
@@ -43,11 +43,20 @@ import com.google.common.base.Objects;
  * public methods.
  */
 public class ProximitySensor implements AccelerometerListener.OrientationListener,
-        InCallStateListener, AudioModeListener, SensorEventListener {
+        ProximityListener.ActiveListener, InCallStateListener, AudioModeListener,
+        SensorEventListener {
     private static final String TAG = ProximitySensor.class.getSimpleName();
 
+    // How long a proximity state has to be stable before the audio route follows it.
+    private static final long PROX_SPEAKER_DEBOUNCE_MS = 300;
+
+    // Distances below this, or below the sensor's range if that is shorter, are near; only the
+    // full range is far. Readings in between keep the current state, so that a sensor reading
+    // around a single threshold doesn't flip between near and far.
+    private static final float PROX_NEAR_THRESHOLD_CM = 5.0f;
+
     private final PowerManager mPowerManager;
-    private SensorManager mSensor;
+    private InCallSensorHub mSensorHub;
     private Sensor mProxSensor;
     private PowerManager.WakeLock mProximityWakeLock;
     private final AudioModeProvider mAudioModeProvider;
@@ -61,6 +70,22 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
     private boolean mDialpadVisible;
     private Context mContext;
 
+    // Snapshot of the auto speaker settings, kept up to date by settingsObserver.
+    private boolean mAutoSpeakerEnabled;
+    private boolean mAutoSpeakerInCallOnly;
+
+    // Last proximity state, applied to the audio route once it has been stable for
+    // PROX_SPEAKER_DEBOUNCE_MS.
+    private boolean mProximityFar;
+    private boolean mProximityKnown;
+    private final Handler mHandler = new Handler();
+    private final Runnable mApplyProxSpeakerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            setProxSpeaker(mProximityFar);
+        }
+    };
+
     // True if the keyboard is currently *not* hidden
     // Gets updated whenever there is a Configuration change
     private boolean mIsHardKeyboardOpen;
@@ -69,6 +94,7 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
         @Override
         public void onChange(boolean selfChange) {
             updateProximitySensorBySetting();
+            updateAutoSpeakerSettings();
         }
     };
 
@@ -77,11 +103,12 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
         mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
 
         mAccelerometerListener = new AccelerometerListener(context, this);
-        mProximityListener = new ProximityListener(context);
+        mProximityListener = new ProximityListener(context, this);
         mAudioModeProvider = audioModeProvider;
         context.getContentResolver().registerContentObserver(Settings.System.CONTENT_URI, true,
                 settingsObserver);
         updateProximitySensorBySetting();
+        updateAutoSpeakerSettings();
         Log.d(this, "onCreate: mProximityWakeLock: ", mProximityWakeLock);
         mAudioModeProvider.addListener(this);
     }
@@ -96,20 +123,31 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
             mProximityWakeLock = mPowerManager.newWakeLock(
                     PowerManager.PROXIMITY_SCREEN_OFF_WAKE_LOCK, TAG);
             updateProximitySensorMode();
-            mSensor = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
-            mProxSensor = mSensor.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+            mSensorHub = InCallSensorHub.getInstance(mContext);
+            mProxSensor = mSensorHub.getSensor(Sensor.TYPE_PROXIMITY);
         } else if (!featureEnabled && mProximityWakeLock != null) {
             if (mProximityWakeLock.isHeld()) {
                 mProximityWakeLock.release();
             }
+            if (mSensorHub != null) {
+                mSensorHub.unsubscribe(Sensor.TYPE_PROXIMITY, this);
+            }
             mProximityWakeLock = null;
             mProxSensor = null;
-            mSensor = null;
+            mSensorHub = null;
         }
     }
 
+    private void updateAutoSpeakerSettings() {
+        mAutoSpeakerEnabled = Settings.System.getInt(mContext.getContentResolver(),
+                Settings.System.PROXIMITY_AUTO_SPEAKER, 0) == 1;
+        mAutoSpeakerInCallOnly = Settings.System.getInt(mContext.getContentResolver(),
+                Settings.System.PROXIMITY_AUTO_SPEAKER_INCALL_ONLY, 0) == 1;
+    }
+
     public void tearDown() {
         mAudioModeProvider.removeListener(this);
+        mHandler.removeCallbacks(mApplyProxSpeakerRunnable);
 
         mAccelerometerListener.enable(false);
         mProximityListener.enable(false);
@@ -118,8 +156,8 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
             mProximityWakeLock.release();
         }
 
-        if (mSensor != null) {
-            mSensor.unregisterListener(this);
+        if (mSensorHub != null) {
+            mSensorHub.unsubscribe(Sensor.TYPE_PROXIMITY, this);
         }
     }
 
@@ -132,6 +170,23 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
         updateProximitySensorMode();
     }
 
+    /**
+     * Called when an object starts or stops covering the proximity sensor.
+     */
+    @Override
+    public void onProximityActiveChanged(boolean active) {
+        updateDisplayCovered();
+    }
+
+    /**
+     * Pauses elapsed time displays while the display is turned off by the proximity sensor.
+     */
+    private void updateDisplayCovered() {
+        final boolean covered = mProximityListener.isActive() && mProximityWakeLock != null
+                && mProximityWakeLock.isHeld();
+        CallDurationClock.getInstance().setDisplayCovered(covered);
+    }
+
     /**
      * Called to keep track of the overall UI state.
      */
@@ -181,11 +236,29 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
      */
     @Override 
     public void onSensorChanged(SensorEvent event) {
-        if (event.values[0] != mProxSensor.getMaximumRange()) {
-            setProxSpeaker(false);
+        if (!mAutoSpeakerEnabled) {
+            mProximityKnown = false;
+            return;
+        }
+        final float distance = event.values[0];
+        final float maxRange = mProxSensor.getMaximumRange();
+        final boolean far;
+        if (distance >= maxRange) {
+            far = true;
+        } else if (distance < Math.min(PROX_NEAR_THRESHOLD_CM, maxRange)) {
+            far = false;
         } else {
-            setProxSpeaker(true);
-        }  
+            // Between the thresholds; the state stays what it was.
+            return;
+        }
+        // Restart the debounce window on every transition, so that the audio route only
+        // follows a state that held for the whole window.
+        if (!mProximityKnown || far != mProximityFar) {
+            mProximityKnown = true;
+            mProximityFar = far;
+            mHandler.removeCallbacks(mApplyProxSpeakerRunnable);
+            mHandler.postDelayed(mApplyProxSpeakerRunnable, PROX_SPEAKER_DEBOUNCE_MS);
+        }
     }
 
     @Override
@@ -330,34 +403,32 @@ public class ProximitySensor implements AccelerometerListener.OrientationListene
                 }
             }
         }
+        updateDisplayCovered();
     }
 
     private void updateProxSpeaker() {  
-        if (mSensor != null && mProxSensor != null) {   
+        if (mSensorHub != null && mProxSensor != null) {   
             if (mIsPhoneOffhook) {  
-                mSensor.registerListener(this, mProxSensor, 
-                        SensorManager.SENSOR_DELAY_NORMAL); 
+                mProximityKnown = false;
+                mSensorHub.subscribe(Sensor.TYPE_PROXIMITY, this,
+                        SensorManager.SENSOR_DELAY_NORMAL, 0);
             } else {    
-                mSensor.unregisterListener(this);   
+                mSensorHub.unsubscribe(Sensor.TYPE_PROXIMITY, this);
+                mHandler.removeCallbacks(mApplyProxSpeakerRunnable);
             }   
         }   
     }   
 
     private void setProxSpeaker(final boolean speaker) {    
         final int audioMode = mAudioModeProvider.getAudioMode();    
-        if (mIsPhoneOffhook && Settings.System.getInt(mContext.getContentResolver(),    
-                Settings.System.PROXIMITY_AUTO_SPEAKER, 0) == 1 
+        if (mIsPhoneOffhook && mAutoSpeakerEnabled
                 && audioMode != AudioMode.WIRED_HEADSET 
                 && audioMode != AudioMode.BLUETOOTH) {  
             if (speaker && audioMode != AudioMode.SPEAKER) { 
-                if (Settings.System.getInt(mContext.getContentResolver(),   
-                        Settings.System.PROXIMITY_AUTO_SPEAKER_INCALL_ONLY, 0) == 0 
-                        || (Settings.System.getInt(mContext.getContentResolver(),   
-                        Settings.System.PROXIMITY_AUTO_SPEAKER_INCALL_ONLY, 0) == 1 
-                        && !mIsPhoneOutgoing)) {   
+                if (!mAutoSpeakerInCallOnly || !mIsPhoneOutgoing) {
                     CallCommandClient.getInstance().setAudioMode(AudioMode.SPEAKER);    
                 }
-            } else if (!speaker) {  
+            } else if (!speaker && audioMode != AudioMode.EARPIECE) {  
                 CallCommandClient.getInstance().setAudioMode(AudioMode.EARPIECE);   
                 updateProximitySensorMode();    
             }   
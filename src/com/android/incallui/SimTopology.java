@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.MSimTelephonyManager;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.telephony.TelephonyIntents;
+
+/**
+ * Cached view of the device's SIM topology: whether it is multi-SIM, DSDA or DSDS, how many
+ * phones it has and which of them have a SIM.
+ *
+ * The multi-SIM configuration comes from a system property that only changes across
+ * reboots, so it is read once. SIM presence is refreshed on SIM state change broadcasts once
+ * {@link #registerReceiver} was called. Reads are plain field accesses, so this can be used on
+ * hot paths such as call lookups.
+ */
+public class SimTopology {
+
+    private static SimTopology sInstance;
+
+    public static synchronized SimTopology getInstance() {
+        if (sInstance == null) {
+            sInstance = new SimTopology();
+        }
+        return sInstance;
+    }
+
+    public final boolean isMultiSimEnabled;
+    public final boolean isDsda;
+    public final boolean isDsds;
+    public final int phoneCount;
+
+    // Bit (1 << subscription) is set for every subscription with a SIM.
+    private volatile int mSimPresentMask;
+    private boolean mReceiverRegistered;
+
+    private final BroadcastReceiver mSimStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateSimPresence();
+        }
+    };
+
+    private SimTopology() {
+        final MSimTelephonyManager tm = MSimTelephonyManager.getDefault();
+        final MSimTelephonyManager.MultiSimVariants config = tm.getMultiSimConfiguration();
+        isMultiSimEnabled = tm.isMultiSimEnabled();
+        isDsda = config == MSimTelephonyManager.MultiSimVariants.DSDA;
+        isDsds = config == MSimTelephonyManager.MultiSimVariants.DSDS;
+        phoneCount = tm.getPhoneCount();
+        updateSimPresence();
+        Log.d(this, "multiSim=" + isMultiSimEnabled + " dsda=" + isDsda + " dsds=" + isDsds
+                + " phoneCount=" + phoneCount);
+    }
+
+    /**
+     * Starts refreshing SIM presence on SIM state changes.
+     */
+    public synchronized void registerReceiver(Context context) {
+        if (!mReceiverRegistered) {
+            context.getApplicationContext().registerReceiver(mSimStateReceiver,
+                    new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+            mReceiverRegistered = true;
+        }
+    }
+
+    /**
+     * @return whether the subscription has a SIM.
+     */
+    public boolean isSimPresent(int subscription) {
+        return subscription >= 0 && (mSimPresentMask & (1 << subscription)) != 0;
+    }
+
+    private void updateSimPresence() {
+        final MSimTelephonyManager tm = MSimTelephonyManager.getDefault();
+        int mask = 0;
+        for (int i = 0; i < phoneCount; i++) {
+            if (tm.getSimState(i) != TelephonyManager.SIM_STATE_ABSENT) {
+                mask |= 1 << i;
+            }
+        }
+        mSimPresentMask = mask;
+    }
+}
@@ -360,6 +360,7 @@ public class StatusBarNotifier implements InCallPresenter.InCallStateListener {
         Notification notification = builder.build();
         Log.d(this, "Notifying IN_CALL_NOTIFICATION: " + notification);
         mNotificationManager.notify(IN_CALL_NOTIFICATION, notification);
+        ControlPlaneStats.getInstance().onNotificationPosted();
         mIsShowingNotification = true;
     }
 
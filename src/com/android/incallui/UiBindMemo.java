@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import com.google.android.collect.Maps;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Remembers the arguments of the last call of each Ui setter a presenter made, so that
+ * setters called again with the same arguments can be skipped. Presenters push every field on
+ * each state change, and most of the time nothing changed; skipping those binds avoids
+ * redundant text updates, layout passes and animations.
+ *
+ * Arguments are compared with equals(), so drawables and other view objects compare by
+ * identity. Only setters whose effect depends on nothing but their arguments may be memoized;
+ * when a bind is overridden by another setter, or by the view itself, it must be invalidated.
+ *
+ * This class is only used from the main thread.
+ */
+class UiBindMemo {
+
+    private final HashMap<String, Object[]> mLastBinds = Maps.newHashMap();
+    private int mForwardedCount;
+    private int mSkippedCount;
+
+    /**
+     * @return whether the bind has to be forwarded to the Ui, i.e. it was never made or was
+     * last made with different values.
+     */
+    public boolean shouldBind(String bind, Object... values) {
+        final Object[] lastValues = mLastBinds.get(bind);
+        if (lastValues != null && Arrays.equals(lastValues, values)) {
+            mSkippedCount++;
+            return false;
+        }
+        mLastBinds.put(bind, values);
+        mForwardedCount++;
+        return true;
+    }
+
+    /**
+     * Forgets the last values of binds, so that they are forwarded next time.
+     */
+    public void invalidate(String... binds) {
+        for (String bind : binds) {
+            mLastBinds.remove(bind);
+        }
+    }
+
+    /**
+     * Forgets all binds, e.g. because the Ui changed.
+     */
+    public void reset() {
+        mLastBinds.clear();
+    }
+
+    public int getForwardedCount() {
+        return mForwardedCount;
+    }
+
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "UiBindMemo{forwarded=" + mForwardedCount + ", skipped=" + mSkippedCount + "}";
+    }
+}
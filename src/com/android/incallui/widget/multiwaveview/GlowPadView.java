@@ -1175,6 +1175,20 @@ public class GlowPadView extends View {
         mHandleDrawable.draw(canvas);
     }
 
+    /**
+     * @return whether the handle is being dragged. Used by the rendering tests.
+     */
+    boolean isDragging() {
+        return mDragging;
+    }
+
+    /**
+     * @return the target the handle is over, or -1. Used by the rendering tests.
+     */
+    int getActiveTarget() {
+        return mActiveTarget;
+    }
+
     public void setOnTriggerListener(OnTriggerListener listener) {
         mOnTriggerListener = listener;
     }
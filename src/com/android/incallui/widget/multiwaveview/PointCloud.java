@@ -23,14 +23,21 @@ import android.graphics.drawable.Drawable;
 import android.util.FloatMath;
 import android.util.Log;
 
-import java.util.ArrayList;
-
 public class PointCloud {
     private static final float MIN_POINT_SIZE = 2.0f;
     private static final float MAX_POINT_SIZE = 4.0f;
     private static final int INNER_POINTS = 8;
     private static final String TAG = "PointCloud";
-    private ArrayList<Point> mPointCloud = new ArrayList<Point>();
+
+    // Points are stored as parallel arrays, grouped into rings of equal radius. Rings are
+    // generated from the inside out, so ring radii are sorted in increasing order and the
+    // points of ring r occupy [mRingStart[r], mRingStart[r + 1]).
+    private float[] mPointX = new float[0];
+    private float[] mPointY = new float[0];
+    private float[] mRingRadius = new float[0];
+    private float[] mRingPointSize = new float[0];
+    private int[] mRingStart = new int[1];
+    private int mRingCount;
     private Drawable mDrawable;
     private float mCenterX;
     private float mCenterY;
@@ -103,18 +110,6 @@ public class PointCloud {
         }
     }
 
-    class Point {
-        float x;
-        float y;
-        float radius;
-
-        public Point(float x2, float y2, float r) {
-            x = (float) x2;
-            y = (float) y2;
-            radius = r;
-        }
-    }
-
     public PointCloud(Drawable drawable) {
         mPaint = new Paint();
         mPaint.setFilterBitmap(true);
@@ -139,24 +134,43 @@ public class PointCloud {
             return;
         }
         mOuterRadius = outerRadius;
-        mPointCloud.clear();
         final float pointAreaRadius =  (outerRadius - innerRadius);
         final float ds = (2.0f * PI * innerRadius / INNER_POINTS);
         final int bands = (int) Math.round(pointAreaRadius / ds);
         final float dr = pointAreaRadius / bands;
+
+        // First pass: size the arrays so the second pass doesn't need to grow them.
+        int totalPoints = 0;
         float r = innerRadius;
+        for (int b = 0; b <= bands; b++, r += dr) {
+            totalPoints += (int) (2.0f * PI * r / ds);
+        }
+
+        mPointX = new float[totalPoints];
+        mPointY = new float[totalPoints];
+        mRingRadius = new float[bands + 1];
+        mRingPointSize = new float[bands + 1];
+        mRingStart = new int[bands + 2];
+        mRingCount = bands + 1;
+
+        int index = 0;
+        r = innerRadius;
         for (int b = 0; b <= bands; b++, r += dr) {
             float circumference = 2.0f * PI * r;
             final int pointsInBand = (int) (circumference / ds);
             float eta = PI/2.0f;
             float dEta = 2.0f * PI / pointsInBand;
+            mRingStart[b] = index;
+            mRingRadius[b] = r;
+            mRingPointSize[b] = interp(MAX_POINT_SIZE, MIN_POINT_SIZE, r / mOuterRadius);
             for (int i = 0; i < pointsInBand; i++) {
-                float x = r * FloatMath.cos(eta);
-                float y = r * FloatMath.sin(eta);
+                mPointX[index] = r * FloatMath.cos(eta);
+                mPointY[index] = r * FloatMath.sin(eta);
                 eta += dEta;
-                mPointCloud.add(new Point(x, y, r));
+                index++;
             }
         }
+        mRingStart[bands + 1] = index;
     }
 
     public void setScale(float scale) {
@@ -175,26 +189,26 @@ public class PointCloud {
         return a > b ? a : b;
     }
 
-    public int getAlphaForPoint(Point point) {
-        // Contribution from positional glow
-        float glowDistance = hypot(glowManager.x - point.x, glowManager.y - point.y);
-        float glowAlpha = 0.0f;
-
-        if (glowDistance < glowManager.radius) {
-            float cosf = FloatMath.cos(PI * 0.25f * glowDistance / glowManager.radius);
-            glowAlpha = glowManager.alpha * max(0.0f, (float) Math.pow(cosf, 10.0f));
-        }
-
-        // Compute contribution from Wave
-        float radius = hypot(point.x, point.y);
-        float distanceToWaveRing = (radius - waveManager.radius);
-        float waveAlpha = 0.0f;
+    /**
+     * Returns the contribution of the wave to every point of a ring with the given radius.
+     * Points in a ring share a radius, so this only needs to be computed once per ring.
+     */
+    private float getWaveAlphaForRing(float ringRadius) {
+        float distanceToWaveRing = (ringRadius - waveManager.radius);
         if (distanceToWaveRing < waveManager.width * 0.5f && distanceToWaveRing < 0.0f) {
             float cosf = FloatMath.cos(PI * 0.25f * distanceToWaveRing / waveManager.width);
-            waveAlpha = waveManager.alpha * max(0.0f, (float) Math.pow(cosf, 20.0f));
+            return waveManager.alpha * max(0.0f, (float) Math.pow(cosf, 20.0f));
         }
+        return 0.0f;
+    }
 
-        return (int) (max(glowAlpha, waveAlpha) * 255);
+    private float getGlowAlphaForPoint(float x, float y) {
+        float glowDistance = hypot(glowManager.x - x, glowManager.y - y);
+        if (glowDistance < glowManager.radius) {
+            float cosf = FloatMath.cos(PI * 0.25f * glowDistance / glowManager.radius);
+            return glowManager.alpha * max(0.0f, (float) Math.pow(cosf, 10.0f));
+        }
+        return 0.0f;
     }
 
     private float interp(float min, float max, float f) {
@@ -202,32 +216,63 @@ public class PointCloud {
     }
 
     public void draw(Canvas canvas) {
-        ArrayList<Point> points = mPointCloud;
+        final float[] pointX = mPointX;
+        final float[] pointY = mPointY;
+        final int[] ringStart = mRingStart;
+
+        // Only rings inside the wave radius, or within the glow radius of the glow center,
+        // can have a non-zero alpha. Everything else is skipped a whole ring at a time.
+        final boolean waveVisible = waveManager.alpha > 0.0f;
+        final boolean glowVisible = glowManager.alpha > 0.0f && glowManager.radius > 0.0f;
+        final float glowCenterDistance = hypot(glowManager.x, glowManager.y);
+        final float glowMinRadius = glowCenterDistance - glowManager.radius;
+        final float glowMaxRadius = glowCenterDistance + glowManager.radius;
+        if (!waveVisible && !glowVisible) {
+            return;
+        }
+        final float maxVisibleRadius = max(waveVisible ? waveManager.radius : 0.0f,
+                glowVisible ? glowMaxRadius : 0.0f);
+
         canvas.save(Canvas.MATRIX_SAVE_FLAG);
         canvas.scale(mScale, mScale, mCenterX, mCenterY);
-        for (int i = 0; i < points.size(); i++) {
-            Point point = points.get(i);
-            final float pointSize = interp(MAX_POINT_SIZE, MIN_POINT_SIZE,
-                    point.radius / mOuterRadius);
-            final float px = point.x + mCenterX;
-            final float py = point.y + mCenterY;
-            int alpha = getAlphaForPoint(point);
-
-            if (alpha == 0) continue;
-
-            if (mDrawable != null) {
-                canvas.save(Canvas.MATRIX_SAVE_FLAG);
-                final float cx = mDrawable.getIntrinsicWidth() * 0.5f;
-                final float cy = mDrawable.getIntrinsicHeight() * 0.5f;
-                final float s = pointSize / MAX_POINT_SIZE;
-                canvas.scale(s, s, px, py);
-                canvas.translate(px - cx, py - cy);
-                mDrawable.setAlpha(alpha);
-                mDrawable.draw(canvas);
-                canvas.restore();
-            } else {
-                mPaint.setAlpha(alpha);
-                canvas.drawCircle(px, py, pointSize, mPaint);
+        for (int ring = 0; ring < mRingCount; ring++) {
+            final float ringRadius = mRingRadius[ring];
+            if (ringRadius >= maxVisibleRadius) {
+                // Rings are sorted by radius, so no later ring can be visible either.
+                break;
+            }
+            final boolean ringInWave = waveVisible && ringRadius < waveManager.radius;
+            final boolean ringInGlow = glowVisible
+                    && ringRadius > glowMinRadius && ringRadius < glowMaxRadius;
+            if (!ringInWave && !ringInGlow) {
+                continue;
+            }
+
+            final float waveAlpha = ringInWave ? getWaveAlphaForRing(ringRadius) : 0.0f;
+            final float pointSize = mRingPointSize[ring];
+            for (int i = ringStart[ring], end = ringStart[ring + 1]; i < end; i++) {
+                final float glowAlpha = ringInGlow
+                        ? getGlowAlphaForPoint(pointX[i], pointY[i]) : 0.0f;
+                final int alpha = (int) (max(glowAlpha, waveAlpha) * 255);
+
+                if (alpha == 0) continue;
+
+                final float px = pointX[i] + mCenterX;
+                final float py = pointY[i] + mCenterY;
+                if (mDrawable != null) {
+                    canvas.save(Canvas.MATRIX_SAVE_FLAG);
+                    final float cx = mDrawable.getIntrinsicWidth() * 0.5f;
+                    final float cy = mDrawable.getIntrinsicHeight() * 0.5f;
+                    final float s = pointSize / MAX_POINT_SIZE;
+                    canvas.scale(s, s, px, py);
+                    canvas.translate(px - cx, py - cy);
+                    mDrawable.setAlpha(alpha);
+                    mDrawable.draw(canvas);
+                    canvas.restore();
+                } else {
+                    mPaint.setAlpha(alpha);
+                    canvas.drawCircle(px, py, pointSize, mPaint);
+                }
             }
         }
         canvas.restore();
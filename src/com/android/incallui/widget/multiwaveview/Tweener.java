@@ -25,32 +25,55 @@ import android.animation.TimeInterpolator;
 import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
 class Tweener {
     private static final String TAG = "Tweener";
     private static final boolean DEBUG = false;
 
+    // Upper bound on the number of idle tweeners kept around for reuse.
+    private static final int MAX_RECYCLED_TWEENS = 32;
+
     ObjectAnimator animator;
+
+    // Property holders owned by this tweener, reused across calls to to() for the same target.
+    private final HashMap<String, PropertyValuesHolder> mFloatHolders =
+            new HashMap<String, PropertyValuesHolder>();
+    private final HashMap<String, PropertyValuesHolder> mIntHolders =
+            new HashMap<String, PropertyValuesHolder>();
+
+    // Tweeners with a pending or running animation, keyed by target.
     private static HashMap<Object, Tweener> sTweens = new HashMap<Object, Tweener>();
+    // Reverse index of sTweens, so finished animators can be removed without a scan.
+    private static HashMap<Animator, Object> sAnimatorKeys = new HashMap<Animator, Object>();
+    // Finished tweeners, kept so the next animation of the same target reuses its animator.
+    private static LinkedHashMap<Object, Tweener> sRecycledTweens =
+            new LinkedHashMap<Object, Tweener>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Entry<Object, Tweener> eldest) {
+                    return size() > MAX_RECYCLED_TWEENS;
+                }
+            };
+
+    // Scratch state for parsing arguments in to(); only ever used on the UI thread.
+    private static final String[] sScratchKeys = new String[8];
+    private static final Object[] sScratchValues = new Object[8];
 
     public Tweener(ObjectAnimator anim) {
         animator = anim;
     }
 
     private static void remove(Animator animator) {
-        Iterator<Entry<Object, Tweener>> iter = sTweens.entrySet().iterator();
-        while (iter.hasNext()) {
-            Entry<Object, Tweener> entry = iter.next();
-            if (entry.getValue().animator == animator) {
-                if (DEBUG) Log.v(TAG, "Removing tweener " + sTweens.get(entry.getKey())
-                        + " sTweens.size() = " + sTweens.size());
-                iter.remove();
-                break; // an animator can only be attached to one object
-            }
+        final Object key = sAnimatorKeys.remove(animator);
+        if (key == null) {
+            return;
+        }
+        final Tweener tween = sTweens.remove(key);
+        if (DEBUG) Log.v(TAG, "Removing tweener " + tween + " sTweens.size() = " + sTweens.size());
+        if (tween != null) {
+            sRecycledTweens.put(key, tween);
         }
     }
 
@@ -61,7 +84,10 @@ class Tweener {
         TimeInterpolator interpolator = null;
 
         // Iterate through arguments and discover properties to animate
-        ArrayList<PropertyValuesHolder> props = new ArrayList<PropertyValuesHolder>(vars.length/2);
+        final String[] keys = vars.length / 2 <= sScratchKeys.length
+                ? sScratchKeys : new String[vars.length / 2];
+        final Object[] values = keys == sScratchKeys ? sScratchValues : new Object[keys.length];
+        int propCount = 0;
         for (int i = 0; i < vars.length; i+=2) {
             if (!(vars[i] instanceof String)) {
                 throw new IllegalArgumentException("Key must be a string: " + vars[i]);
@@ -81,15 +107,11 @@ class Tweener {
                 delay = ((Number) value).longValue();
             } else if ("syncWith".equals(key)) {
                 // TODO
-            } else if (value instanceof float[]) {
-                props.add(PropertyValuesHolder.ofFloat(key,
-                        ((float[])value)[0], ((float[])value)[1]));
-            } else if (value instanceof int[]) {
-                props.add(PropertyValuesHolder.ofInt(key,
-                        ((int[])value)[0], ((int[])value)[1]));
-            } else if (value instanceof Number) {
-                float floatValue = ((Number)value).floatValue();
-                props.add(PropertyValuesHolder.ofFloat(key, floatValue));
+            } else if (value instanceof float[] || value instanceof int[]
+                    || value instanceof Number) {
+                keys[propCount] = key;
+                values[propCount] = value;
+                propCount++;
             } else {
                 throw new IllegalArgumentException(
                         "Bad argument for key \"" + key + "\" with value " + value.getClass());
@@ -98,18 +120,26 @@ class Tweener {
 
         // Re-use existing tween, if present
         Tweener tween = sTweens.get(object);
-        ObjectAnimator anim = null;
-        if (tween == null) {
-            anim = ObjectAnimator.ofPropertyValuesHolder(object,
-                    props.toArray(new PropertyValuesHolder[props.size()]));
-            tween = new Tweener(anim);
-            sTweens.put(object, tween);
-            if (DEBUG) Log.v(TAG, "Added new Tweener " + tween);
+        if (tween != null) {
+            // Cancel the running animation without recycling the tweener we're about to reuse.
+            tween.animator.removeListener(sCleanupListener);
+            tween.animator.cancel();
         } else {
-            anim = sTweens.get(object).animator;
-            replace(props, object); // Cancel all animators for given object
+            tween = sRecycledTweens.remove(object);
+            if (tween == null) {
+                tween = new Tweener(new ObjectAnimator());
+                tween.animator.setTarget(object);
+                if (DEBUG) Log.v(TAG, "Added new Tweener " + tween);
+            }
+            sTweens.put(object, tween);
+            sAnimatorKeys.put(tween.animator, object);
+        }
+        tween.setValues(object, keys, values, propCount);
+        for (int i = 0; i < propCount; i++) {
+            values[i] = null;
         }
 
+        final ObjectAnimator anim = tween.animator;
         if (interpolator != null) {
             anim.setInterpolator(interpolator);
         }
@@ -117,19 +147,79 @@ class Tweener {
         // Update animation with properties discovered in loop above
         anim.setStartDelay(delay);
         anim.setDuration(duration);
+        // Reused and recycled animators still carry the listeners of their previous
+        // animation; drop them so they don't fire again for this one.
+        anim.removeAllUpdateListeners();
+        anim.removeAllListeners();
         if (updateListener != null) {
-            anim.removeAllUpdateListeners(); // There should be only one
             anim.addUpdateListener(updateListener);
         }
         if (listener != null) {
-            anim.removeAllListeners(); // There should be only one.
             anim.addListener(listener);
         }
-        anim.addListener(mCleanupListener);
+        anim.addListener(sCleanupListener);
 
         return tween;
     }
 
+    private void setValues(Object object, String[] keys, Object[] values, int count) {
+        // Reuse the current holder array when the animated properties are unchanged.
+        PropertyValuesHolder[] holders = animator.getValues();
+        boolean sameProperties = holders != null && holders.length == count;
+        for (int i = 0; sameProperties && i < count; i++) {
+            sameProperties = holders[i].getPropertyName().equals(keys[i])
+                    && holders[i] == getHolder(keys[i], values[i] instanceof int[]);
+        }
+        if (!sameProperties) {
+            holders = new PropertyValuesHolder[count];
+        }
+
+        for (int i = 0; i < count; i++) {
+            final Object value = values[i];
+            final boolean isInt = value instanceof int[];
+            PropertyValuesHolder holder = getHolder(keys[i], isInt);
+            if (isInt) {
+                final int[] intValues = (int[]) value;
+                if (holder == null) {
+                    holder = PropertyValuesHolder.ofInt(keys[i], intValues[0], intValues[1]);
+                    mIntHolders.put(keys[i], holder);
+                } else {
+                    holder.setIntValues(intValues[0], intValues[1]);
+                }
+            } else if (value instanceof float[]) {
+                final float[] floatValues = (float[]) value;
+                if (holder == null) {
+                    holder = PropertyValuesHolder.ofFloat(keys[i], floatValues[0], floatValues[1]);
+                    mFloatHolders.put(keys[i], holder);
+                } else {
+                    holder.setFloatValues(floatValues[0], floatValues[1]);
+                }
+            } else {
+                final float floatValue = ((Number) value).floatValue();
+                if (holder == null) {
+                    holder = PropertyValuesHolder.ofFloat(keys[i], floatValue);
+                    mFloatHolders.put(keys[i], holder);
+                } else {
+                    holder.setFloatValues(floatValue);
+                }
+            }
+            holders[i] = holder;
+        }
+
+        if (!sameProperties) {
+            animator.setValues(holders);
+        } else {
+            // The holders were updated in place; force the animator to re-read start values
+            // from the target the next time it starts.
+            animator.setTarget(null);
+            animator.setTarget(object);
+        }
+    }
+
+    private PropertyValuesHolder getHolder(String key, boolean isInt) {
+        return isInt ? mIntHolders.get(key) : mFloatHolders.get(key);
+    }
+
     Tweener from(Object object, long duration, Object... vars) {
         // TODO:  for v of vars
         //            toVars[v] = object[v]
@@ -138,7 +228,7 @@ class Tweener {
     }
 
     // Listener to watch for completed animations and remove them.
-    private static AnimatorListener mCleanupListener = new AnimatorListenerAdapter() {
+    private static AnimatorListener sCleanupListener = new AnimatorListenerAdapter() {
 
         @Override
         public void onAnimationEnd(Animator animation) {
@@ -159,20 +249,7 @@ class Tweener {
             }
         }
         sTweens.clear();
-    }
-
-    private static void replace(ArrayList<PropertyValuesHolder> props, Object... args) {
-        for (final Object killobject : args) {
-            Tweener tween = sTweens.get(killobject);
-            if (tween != null) {
-                tween.animator.cancel();
-                if (props != null) {
-                    tween.animator.setValues(
-                            props.toArray(new PropertyValuesHolder[props.size()]));
-                } else {
-                    sTweens.remove(tween);
-                }
-            }
-        }
+        sAnimatorKeys.clear();
+        sRecycledTweens.clear();
     }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.Choreographer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that {@link CallDurationClock} keeps showing the right time on long calls: ticks land
+ * on the first frame after each second boundary of the call, no second is skipped or shown
+ * twice, and the time is right again as soon as the display is uncovered.
+ *
+ * The clock runs on simulated time and display frames, so that hours of a call, dropped frames
+ * and stalls take no real time. The calls are made to have started hours ago, so that a clock
+ * that counted its own ticks instead of measuring from the start time would be off.
+ */
+@SmallTest
+public class CallDurationClockTest extends TestCase {
+
+    private static final long SECOND_MILLIS = 1000;
+    private static final long MINUTE_MILLIS = 60 * SECOND_MILLIS;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+    private FakeTiming mTiming;
+    private CallDurationClock mClock;
+    private RecordingListener mListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTiming = new FakeTiming();
+        mClock = new CallDurationClock(mTiming);
+        mListener = new RecordingListener(mTiming);
+        mClock.setDisplayCovered(false);
+        mClock.setUiShowing(true);
+    }
+
+    public void testNoDriftOverLongCall() {
+        // Start half way through a second, ten hours ago.
+        final long startTime = mTiming.now - 10 * HOUR_MILLIS - 500;
+        mClock.subscribe(mListener, startTime);
+        mTiming.advance(3 * HOUR_MILLIS);
+
+        final ArrayList<Tick> ticks = mListener.ticks;
+        assertEquals(3 * HOUR_MILLIS / SECOND_MILLIS + 1, ticks.size());
+        assertTicks(startTime, 0, FakeTiming.FRAME_MILLIS);
+    }
+
+    public void testSkippedFrames() {
+        final long startTime = mTiming.now - HOUR_MILLIS;
+        mTiming.maxSkippedFrames = 10;
+        mClock.subscribe(mListener, startTime);
+        mTiming.advance(HOUR_MILLIS);
+
+        assertTrue("No frames were skipped", mTiming.skippedFrames > 0);
+        assertTicks(startTime, 0, (mTiming.maxSkippedFrames + 1) * FakeTiming.FRAME_MILLIS);
+    }
+
+    public void testStall() {
+        final long startTime = mTiming.now - HOUR_MILLIS;
+        mClock.subscribe(mListener, startTime);
+        mTiming.advance(10 * SECOND_MILLIS);
+
+        // The main thread hangs for two and a half seconds.
+        final int before = mListener.ticks.size();
+        mTiming.stall(2500);
+        mTiming.advance(10 * SECOND_MILLIS);
+
+        final ArrayList<Tick> ticks = mListener.ticks;
+        final Tick last = ticks.get(before - 1);
+        final Tick afterStall = ticks.get(before);
+        assertEquals((afterStall.time - startTime) / SECOND_MILLIS, afterStall.elapsedSeconds);
+        assertTrue("Seconds not skipped over the stall",
+                afterStall.elapsedSeconds > last.elapsedSeconds + 1);
+        // Every other tick is on time and shows the next second.
+        assertTicks(startTime, before, FakeTiming.FRAME_MILLIS);
+    }
+
+    public void testRefreshesWhenDisplayUncovered() {
+        final long startTime = mTiming.now - HOUR_MILLIS;
+        mClock.subscribe(mListener, startTime);
+        mTiming.advance(30 * SECOND_MILLIS);
+
+        mClock.setDisplayCovered(true);
+        final int ticksBeforeCovered = mListener.ticks.size();
+        assertFalse("Tick scheduled while the display is covered", mTiming.hasCallback());
+        mTiming.advance(20 * MINUTE_MILLIS + 300);
+        assertEquals("Ticked while the display was covered",
+                ticksBeforeCovered, mListener.ticks.size());
+
+        mClock.setDisplayCovered(false);
+        final ArrayList<Tick> ticks = mListener.ticks;
+        assertEquals("No refresh when the display was uncovered",
+                ticksBeforeCovered + 1, ticks.size());
+        final Tick refresh = ticks.get(ticks.size() - 1);
+        assertEquals(mTiming.now, refresh.time);
+        assertEquals((refresh.time - startTime) / SECOND_MILLIS, refresh.elapsedSeconds);
+
+        mTiming.advance(MINUTE_MILLIS);
+        assertTicks(startTime, ticksBeforeCovered + 1, FakeTiming.FRAME_MILLIS);
+    }
+
+    public void testStopsWhileUiHidden() {
+        final long startTime = mTiming.now - HOUR_MILLIS;
+        mClock.subscribe(mListener, startTime);
+        mTiming.advance(5 * SECOND_MILLIS);
+
+        mClock.setUiShowing(false);
+        final int ticksBeforeHidden = mListener.ticks.size();
+        mTiming.advance(HOUR_MILLIS);
+        assertEquals(ticksBeforeHidden, mListener.ticks.size());
+        assertFalse(mTiming.hasCallback());
+
+        mClock.setUiShowing(true);
+        assertEquals(ticksBeforeHidden + 1, mListener.ticks.size());
+        mClock.unsubscribe(mListener);
+        assertFalse(mTiming.hasCallback());
+    }
+
+    /**
+     * Checks that every tick from the given one on shows the right time, runs at most
+     * maxLatenessMillis after the second changed, and shows the second after the tick before.
+     */
+    private void assertTicks(long startTime, int first, long maxLatenessMillis) {
+        final ArrayList<Tick> ticks = mListener.ticks;
+        for (int i = first; i < ticks.size(); i++) {
+            final Tick tick = ticks.get(i);
+            assertEquals("Tick " + i + " shows the wrong time",
+                    (tick.time - startTime) / SECOND_MILLIS, tick.elapsedSeconds);
+            if (i > first) {
+                assertEquals("Tick " + i + " skipped or repeated a second",
+                        ticks.get(i - 1).elapsedSeconds + 1, tick.elapsedSeconds);
+                final long lateness = (tick.time - startTime) % SECOND_MILLIS;
+                assertTrue("Tick " + i + " ran " + lateness + "ms after the second changed",
+                        lateness <= maxLatenessMillis);
+            }
+        }
+    }
+
+    /**
+     * Simulated wall clock and display frames. Frames come every FRAME_MILLIS; a callback runs
+     * on the first frame at or after the time it is due, like with the Choreographer, unless
+     * frames are being skipped.
+     */
+    private static class FakeTiming implements CallDurationClock.Timing {
+        static final long FRAME_MILLIS = 16;
+
+        long now = 1400000000000L;
+        // Up to this many frames are dropped before a callback runs, chosen at random.
+        int maxSkippedFrames;
+        int skippedFrames;
+
+        private final Random mRandom = new Random(0);
+        private Choreographer.FrameCallback mCallback;
+        private long mDueTime;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void postFrameCallbackDelayed(Choreographer.FrameCallback callback,
+                long delayMillis) {
+            assertNull("More than one tick scheduled", mCallback);
+            mCallback = callback;
+            mDueTime = now + delayMillis;
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            if (mCallback == callback) {
+                mCallback = null;
+            }
+        }
+
+        boolean hasCallback() {
+            return mCallback != null;
+        }
+
+        /**
+         * Moves the clock forward, running the callbacks that come due on the way.
+         */
+        void advance(long millis) {
+            final long end = now + millis;
+            while (mCallback != null) {
+                long frame = (mDueTime + FRAME_MILLIS - 1) / FRAME_MILLIS * FRAME_MILLIS;
+                if (maxSkippedFrames > 0 && mRandom.nextInt(10) == 0) {
+                    final int skipped = 1 + mRandom.nextInt(maxSkippedFrames);
+                    skippedFrames += skipped;
+                    frame += skipped * FRAME_MILLIS;
+                }
+                if (frame > end) {
+                    break;
+                }
+                now = frame;
+                final Choreographer.FrameCallback callback = mCallback;
+                mCallback = null;
+                callback.doFrame(frame * 1000 * 1000);
+            }
+            now = end;
+        }
+
+        /**
+         * Blocks the frames for the given time; a callback that comes due meanwhile runs on
+         * the first frame after.
+         */
+        void stall(long millis) {
+            final long end = now + millis;
+            if (mCallback != null && mDueTime < end) {
+                mDueTime = end;
+            }
+            advance(millis);
+        }
+    }
+
+    private static class Tick {
+        final long elapsedSeconds;
+        final long time;
+
+        Tick(long elapsedSeconds, long time) {
+            this.elapsedSeconds = elapsedSeconds;
+            this.time = time;
+        }
+    }
+
+    private static class RecordingListener implements CallDurationClock.Listener {
+        final ArrayList<Tick> ticks = new ArrayList<Tick>();
+        private final FakeTiming mTiming;
+
+        RecordingListener(FakeTiming timing) {
+            mTiming = timing;
+        }
+
+        @Override
+        public void onElapsedTimeChanged(long elapsedSeconds) {
+            ticks.add(new Tick(elapsedSeconds, mTiming.now));
+        }
+    }
+}
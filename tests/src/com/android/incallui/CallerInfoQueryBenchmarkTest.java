@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.PhoneLookup;
+import android.provider.ContactsContract.RawContacts;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Compares caller info lookups with the minimal PhoneLookup projection and precomputed column
+ * indexes against full-row lookups with columns resolved by name, as they were done before,
+ * on the device's contacts provider.
+ *
+ * The caller is a contact added to a test account for the duration of each test, and removed
+ * again with the account's raw contacts afterwards. Both kinds of lookup must produce the same
+ * caller info, and the minimal one must not be slower; the times of both are logged.
+ */
+@LargeTest
+public class CallerInfoQueryBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "CallerInfoQueryBenchmarkTest";
+
+    private static final String ACCOUNT_TYPE = "com.android.incallui.tests";
+    private static final String ACCOUNT_NAME = "CallerInfoQueryBenchmarkTest";
+
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    // The minimal lookup may be this much slower than the full row lookup, for noise.
+    private static final float MAX_SLOWDOWN = 1.1f;
+
+    private static final String NAME = "Caller Info Benchmark";
+    private static final String NUMBER = "6505550142";
+
+    private Context mContext;
+    private ContentResolver mResolver;
+    private Uri mLookupUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getTargetContext();
+        mResolver = mContext.getContentResolver();
+        mLookupUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(NUMBER));
+
+        // Left over if an earlier run was killed before its tear down.
+        deleteTestContacts();
+        insertTestContact();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTestContacts();
+        super.tearDown();
+    }
+
+    public void testSameCallerInfo() {
+        final CallerInfo minimal = CallerInfo.queryCallerInfo(mContext, mLookupUri, null, null);
+        final CallerInfo full = queryFullRow();
+
+        assertTrue(minimal.contactExists);
+        assertEquals(NAME, minimal.name);
+        assertEquals(full.name, minimal.name);
+        assertEquals(full.phoneNumber, minimal.phoneNumber);
+        assertEquals(full.normalizedNumber, minimal.normalizedNumber);
+        assertEquals(full.numberType, minimal.numberType);
+        assertEquals(full.numberLabel, minimal.numberLabel);
+        assertEquals(full.person_id, minimal.person_id);
+        assertEquals(full.contactRingtoneUri, minimal.contactRingtoneUri);
+        assertEquals(full.shouldSendToVoicemail, minimal.shouldSendToVoicemail);
+    }
+
+    public void testProjectionCost() {
+        assertEquals(CallerInfo.PHONE_LOOKUP_PROJECTION.length,
+                getColumnCount(CallerInfo.PHONE_LOOKUP_PROJECTION));
+        final int fullColumns = getColumnCount(null);
+        assertTrue(fullColumns > CallerInfo.PHONE_LOOKUP_PROJECTION.length);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            CallerInfo.queryCallerInfo(mContext, mLookupUri, null, null);
+            queryFullRow();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            CallerInfo.queryCallerInfo(mContext, mLookupUri, null, null);
+        }
+        final long minimalNanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            queryFullRow();
+        }
+        final long fullNanos = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+
+        Log.i(TAG, "Minimal projection: avg " + minimalNanos / 1000 + "us, "
+                + CallerInfo.PHONE_LOOKUP_PROJECTION.length + " columns");
+        Log.i(TAG, "Full row: avg " + fullNanos / 1000 + "us, " + fullColumns + " columns");
+
+        assertTrue("Minimal lookups take " + minimalNanos / 1000 + "us, full row lookups "
+                + fullNanos / 1000 + "us", minimalNanos <= fullNanos * MAX_SLOWDOWN);
+    }
+
+    /**
+     * Looks up the caller info the way it was done before the minimal projection: every column
+     * of the row, with the column indexes resolved by name. The cursor is closed by
+     * getCallerInfo().
+     */
+    private CallerInfo queryFullRow() {
+        final Cursor cursor = mResolver.query(mLookupUri, null, null, null, null);
+        return CallerInfo.getCallerInfo(mContext, mLookupUri, cursor);
+    }
+
+    private int getColumnCount(String[] projection) {
+        final Cursor cursor = mResolver.query(mLookupUri, projection, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getColumnCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertTestContact() throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                .withValue(RawContacts.ACCOUNT_TYPE, ACCOUNT_TYPE)
+                .withValue(RawContacts.ACCOUNT_NAME, ACCOUNT_NAME)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, 0)
+                .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                .withValue(StructuredName.DISPLAY_NAME, NAME)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValueBackReference(Data.RAW_CONTACT_ID, 0)
+                .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                .withValue(Phone.NUMBER, NUMBER)
+                .withValue(Phone.TYPE, Phone.TYPE_MOBILE)
+                .build());
+        mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+    }
+
+    private void deleteTestContacts() {
+        // As a sync adapter, so that the raw contacts are removed instead of marked deleted.
+        final Uri uri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+        mResolver.delete(uri, RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.ACCOUNT_NAME
+                + "=?", new String[] { ACCOUNT_TYPE, ACCOUNT_NAME });
+    }
+}
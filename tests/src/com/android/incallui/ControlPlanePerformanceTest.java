@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.services.telephony.common.AudioMode;
+import com.android.services.telephony.common.Call;
+import com.android.services.telephony.common.ICallHandlerService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives CallHandlerService and the CallList behind it with synthetic telephony traffic, and
+ * measures the main thread cost of each message with {@link ControlPlaneStats}.
+ *
+ * Commands the UI sends go to a {@link StubCallCommandService}, and caller info lookups to a
+ * {@link StubContactsContext}, so no real call is placed and no lookup leaves the device. The
+ * in-call activity is never started and no notification is posted, so that only the call
+ * handling itself is measured and not the inflation and binder calls of the UI around it.
+ *
+ * Every scenario ends with the regression gates below. They are set a little above the numbers
+ * measured on a quiet device; when a change moves the baseline on purpose, measure again and
+ * update them.
+ */
+@LargeTest
+public class ControlPlanePerformanceTest extends ServiceTestCase<CallHandlerService> {
+    private static final String TAG = "ControlPlanePerformanceTest";
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 20;
+    private static final long WAIT_TIMEOUT_SECONDS = 10;
+
+    // Regression gates. With the UI stubbed out no message should take a frame; one is allowed
+    // per scenario for a garbage collection landing in it.
+    private static final long MAX_AVERAGE_MESSAGE_NANOS = 2 * 1000 * 1000;
+    private static final int MAX_OVER_BUDGET_MESSAGES = 1;
+    private static final long MAX_AVERAGE_MESSAGE_ALLOCS = 400;
+
+    private static final String NUMBER = "6505550100";
+
+    private StubUiContext mContext;
+    private StubCallCommandService mCommandService;
+    private ICallHandlerService mCallHandler;
+    private ControlPlaneStats mStats;
+
+    /**
+     * One run of a scenario, which must end with all its calls gone.
+     */
+    private interface Scenario {
+        void run(int firstCallId) throws Exception;
+    }
+
+    public ControlPlanePerformanceTest() {
+        super(CallHandlerService.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new StubUiContext(getContext());
+        setContext(mContext);
+
+        mCommandService = new StubCallCommandService();
+        mCallHandler = ICallHandlerService.Stub.asInterface(
+                bindService(new Intent(mContext, CallHandlerService.class)));
+        mCallHandler.startCallService(mCommandService.getService());
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                InCallPresenter.getInstance().setStatusBarNotifier(
+                        new StubStatusBarNotifier(mContext));
+            }
+        });
+        mStats = ControlPlaneStats.getInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mStats.reset(false);
+            }
+        });
+        super.tearDown();
+        waitForMainThread();
+    }
+
+    public void testSingleCall() throws Exception {
+        runScenario("single call", new Scenario() {
+            @Override
+            public void run(int id) throws Exception {
+                mCallHandler.onIncoming(call(id, Call.State.INCOMING, 0),
+                        new ArrayList<String>());
+                update(call(id, Call.State.ACTIVE, 0));
+                mCallHandler.onAudioModeChange(AudioMode.EARPIECE, false);
+                waitForMainThread();
+                assertNotNull(CallList.getInstance().getActiveCall());
+
+                mCallHandler.onDisconnect(disconnected(id, 0, Call.DisconnectCause.LOCAL));
+                update(call(id, Call.State.IDLE, 0));
+            }
+        });
+    }
+
+    public void testCallWaiting() throws Exception {
+        runScenario("call waiting", new Scenario() {
+            @Override
+            public void run(int id) throws Exception {
+                final int waiting = id + 1;
+                update(call(id, Call.State.DIALING, 0));
+                update(call(id, Call.State.ACTIVE, 0));
+                mCallHandler.onIncoming(call(waiting, Call.State.CALL_WAITING, 0),
+                        new ArrayList<String>());
+                update(call(id, Call.State.ONHOLD, 0), call(waiting, Call.State.ACTIVE, 0));
+                waitForMainThread();
+                assertEquals(waiting, CallList.getInstance().getActiveCall().getCallId());
+                assertNotNull(CallList.getInstance().getBackgroundCall());
+
+                mCallHandler.onDisconnect(
+                        disconnected(waiting, 0, Call.DisconnectCause.NORMAL));
+                update(call(id, Call.State.ACTIVE, 0), call(waiting, Call.State.IDLE, 0));
+                mCallHandler.onDisconnect(disconnected(id, 0, Call.DisconnectCause.LOCAL));
+                update(call(id, Call.State.IDLE, 0));
+            }
+        });
+    }
+
+    public void testFiveWayConference() throws Exception {
+        runScenario("5-way conference", new Scenario() {
+            @Override
+            public void run(int id) throws Exception {
+                // Participants are id + 1 to id + 5, the conference itself is id.
+                update(call(id + 1, Call.State.DIALING, 0));
+                update(call(id + 1, Call.State.ACTIVE, 0));
+                for (int i = 2; i <= 5; i++) {
+                    final Call held = i == 2
+                            ? call(id + 1, Call.State.ONHOLD, 0)
+                            : conference(id, Call.State.ONHOLD, i - 1);
+                    update(held, call(id + i, Call.State.DIALING, 0));
+                    update(call(id + i, Call.State.ACTIVE, 0));
+                    update(conferenceWithParticipants(id, i));
+                }
+                waitForMainThread();
+                assertEquals(5, CallList.getInstance().getActiveCall().getChildCallIds().size());
+
+                for (int i = 5; i >= 2; i--) {
+                    mCallHandler.onDisconnect(
+                            disconnected(id + i, 0, Call.DisconnectCause.NORMAL));
+                    update(conference(id, Call.State.ACTIVE, i - 1),
+                            call(id + i, Call.State.IDLE, 0));
+                }
+                mCallHandler.onDisconnect(disconnected(id, 0, Call.DisconnectCause.LOCAL));
+                update(call(id, Call.State.IDLE, 0), call(id + 1, Call.State.IDLE, 0));
+            }
+        });
+    }
+
+    public void testSrvcc() throws Exception {
+        runScenario("SRVCC", new Scenario() {
+            @Override
+            public void run(int id) throws Exception {
+                // An active and a held packet switched call are handed over to the circuit
+                // switched network, where they come back with new ids.
+                final int active = id;
+                final int held = id + 1;
+                update(call(held, Call.State.ONHOLD, 0), call(active, Call.State.ACTIVE, 0));
+                mCallHandler.onDisconnect(
+                        disconnected(active, 0, Call.DisconnectCause.SRVCC_CALL_DROP));
+                mCallHandler.onDisconnect(
+                        disconnected(held, 0, Call.DisconnectCause.SRVCC_CALL_DROP));
+                update(call(held + 1, Call.State.ONHOLD, 0),
+                        call(held + 2, Call.State.ACTIVE, 0));
+                waitForMainThread();
+                assertNull(CallList.getInstance().getCall(active));
+                assertEquals(held + 2, CallList.getInstance().getActiveCall().getCallId());
+
+                mCallHandler.onDisconnect(
+                        disconnected(held + 2, 0, Call.DisconnectCause.LOCAL));
+                update(call(held + 1, Call.State.ACTIVE, 0), call(held + 2, Call.State.IDLE, 0));
+                mCallHandler.onDisconnect(
+                        disconnected(held + 1, 0, Call.DisconnectCause.LOCAL));
+                update(call(held + 1, Call.State.IDLE, 0));
+            }
+        });
+    }
+
+    public void testDsdaSwap() throws Exception {
+        runScenario("DSDA swap", new Scenario() {
+            @Override
+            public void run(int id) throws Exception {
+                // One call on each subscription, with the user switching between them.
+                update(call(id, Call.State.ACTIVE, 0));
+                update(call(id, Call.State.ACTIVE, 0), call(id + 1, Call.State.ACTIVE, 1));
+                for (int i = 0; i < 5; i++) {
+                    mCallHandler.onActiveSubChanged(1);
+                    mCallHandler.onActiveSubChanged(0);
+                }
+                waitForMainThread();
+                assertEquals(0, CallList.getInstance().getActiveSubscription());
+
+                mCallHandler.onDisconnect(disconnected(id + 1, 1, Call.DisconnectCause.LOCAL));
+                update(call(id + 1, Call.State.IDLE, 1));
+                mCallHandler.onDisconnect(disconnected(id, 0, Call.DisconnectCause.LOCAL));
+                update(call(id, Call.State.IDLE, 0));
+            }
+        });
+    }
+
+    /**
+     * Runs a few unmeasured iterations of the scenario, then measured ones, and checks the
+     * regression gates.
+     */
+    private void runScenario(String name, Scenario scenario) throws Exception {
+        int nextCallId = 1;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(scenario, nextCallId);
+            nextCallId += 10;
+        }
+
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mStats.reset(true);
+            }
+        });
+        for (int i = 0; i < ITERATIONS; i++) {
+            runIteration(scenario, nextCallId);
+            nextCallId += 10;
+        }
+
+        final long[] results = new long[4];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = mStats.getMessageCount();
+                results[1] = mStats.getAverageMessageNanos();
+                results[2] = mStats.getAverageMessageAllocs();
+                results[3] = mStats.getOverBudgetCount();
+            }
+        });
+        final long messages = results[0];
+        final long averageNanos = results[1];
+        final long averageAllocs = results[2];
+        final long overBudget = results[3];
+        Log.i(TAG, name + ": " + messages + " messages, avg " + averageNanos / 1000
+                + "us, avg allocs " + averageAllocs + ", over budget " + overBudget);
+
+        assertTrue(name + ": no messages measured", messages > 0);
+        assertTrue(name + ": average message took " + averageNanos / 1000 + "us",
+                averageNanos <= MAX_AVERAGE_MESSAGE_NANOS);
+        assertTrue(name + ": " + overBudget + " of " + messages + " messages over budget",
+                overBudget <= MAX_OVER_BUDGET_MESSAGES);
+        assertTrue(name + ": average message allocated " + averageAllocs + " objects",
+                averageAllocs <= MAX_AVERAGE_MESSAGE_ALLOCS);
+    }
+
+    private void runIteration(Scenario scenario, int firstCallId) throws Exception {
+        scenario.run(firstCallId);
+        waitForMainThread();
+        assertFalse("Calls left over", CallList.getInstance().existsLiveCall());
+    }
+
+    private void update(Call... calls) throws RemoteException {
+        mCallHandler.onUpdate(Arrays.asList(calls));
+    }
+
+    private static Call call(int callId, int state, int subscription) {
+        final Call call = new Call(callId);
+        call.setState(state);
+        call.setNumber(NUMBER + callId % 10);
+        call.setSubscription(subscription);
+        return call;
+    }
+
+    private static Call disconnected(int callId, int subscription,
+            Call.DisconnectCause cause) {
+        final Call call = call(callId, Call.State.DISCONNECTED, subscription);
+        call.setDisconnectCause(cause);
+        return call;
+    }
+
+    private static Call conference(int callId, int state, int participants) {
+        final Call call = new Call(callId);
+        call.setState(state);
+        for (int i = 1; i <= participants; i++) {
+            call.addChildId(callId + i);
+        }
+        return call;
+    }
+
+    /**
+     * @return the conference and its participants, as sent when a participant joins.
+     */
+    private static Call[] conferenceWithParticipants(int callId, int participants) {
+        final Call[] calls = new Call[participants + 1];
+        calls[0] = conference(callId, Call.State.ACTIVE, participants);
+        for (int i = 1; i <= participants; i++) {
+            calls[i] = call(callId + i, Call.State.CONFERENCED, 0);
+        }
+        return calls;
+    }
+
+    /**
+     * Swallows the activity starts of the in-call UI.
+     */
+    private static class StubUiContext extends StubContactsContext {
+        StubUiContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public void startActivity(Intent intent) {
+            Log.d(TAG, "Not starting " + intent);
+        }
+
+        @Override
+        public void startActivity(Intent intent, Bundle options) {
+            Log.d(TAG, "Not starting " + intent);
+        }
+    }
+
+    /**
+     * Counts the notifications the call handling asks for without posting them, so that the
+     * system doesn't launch the in-call UI through a full screen intent.
+     */
+    private static class StubStatusBarNotifier extends StatusBarNotifier {
+        StubStatusBarNotifier(Context context) {
+            super(context, ContactInfoCache.getInstance(context));
+        }
+
+        @Override
+        public void updateNotification(InCallPresenter.InCallState state, CallList callList) {
+            ControlPlaneStats.getInstance().onNotificationPosted();
+        }
+
+        @Override
+        public void updateNotificationAndLaunchIncomingCallUi(InCallPresenter.InCallState state,
+                CallList callList) {
+            ControlPlaneStats.getInstance().onNotificationPosted();
+        }
+    }
+
+    private static void waitForMainThread() throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * Runs the runnable on the main thread once the messages queued before it are handled,
+     * and waits for it.
+     */
+    private static void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                latch.countDown();
+            }
+        });
+        assertTrue("Main thread busy", latch.await(WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
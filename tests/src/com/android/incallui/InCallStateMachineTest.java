@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.incallui.InCallPresenter.InCallState;
+import com.android.incallui.InCallStateMachine.Action;
+import com.android.incallui.InCallStateMachine.Event;
+import com.android.incallui.InCallStateMachine.Transition;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drives {@link InCallStateMachine} with call events against fake hooks, and replays its
+ * transition log against other fake hooks.
+ *
+ * Events that look at the calls are given no call list, which stands for no calls at all.
+ */
+@SmallTest
+public class InCallStateMachineTest extends TestCase {
+
+    private FakeHooks mHooks;
+    private InCallStateMachine mStateMachine;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHooks = new FakeHooks();
+        mStateMachine = new InCallStateMachine(mHooks);
+    }
+
+    public void testTransitionTable() {
+        for (InCallState state : InCallState.values()) {
+            assertEquals(Action.NONE, InCallStateMachine.getAction(state, state));
+        }
+        assertEquals(Action.SHOW_CALL_UI,
+                InCallStateMachine.getAction(InCallState.NO_CALLS, InCallState.OUTGOING));
+        assertEquals(Action.START_INCOMING_UI,
+                InCallStateMachine.getAction(InCallState.INCALL, InCallState.INCOMING));
+        assertEquals(Action.FINISH_UI,
+                InCallStateMachine.getAction(InCallState.DISCONNECTING, InCallState.NO_CALLS));
+        assertEquals(Action.NONE,
+                InCallStateMachine.getAction(InCallState.INCOMING, InCallState.INCALL));
+    }
+
+    public void testEventsDecideTargetState() {
+        assertEquals(InCallState.INCOMING,
+                InCallStateMachine.getTargetState(Event.INCOMING_CALL, null));
+        assertEquals(InCallState.NO_CALLS,
+                InCallStateMachine.getTargetState(Event.CALL_LIST_CHANGE, null));
+        assertEquals(InCallState.NO_CALLS,
+                InCallStateMachine.getTargetState(Event.DISCONNECT, null));
+    }
+
+    public void testIncomingCallThenDisconnect() {
+        InCallState state = mStateMachine.onEvent(Event.INCOMING_CALL, InCallState.NO_CALLS,
+                null);
+        assertEquals(InCallState.INCOMING, state);
+
+        // A second incoming call event doesn't start the UI again.
+        state = mStateMachine.onEvent(Event.INCOMING_CALL, state, null);
+        assertEquals(InCallState.INCOMING, state);
+
+        state = mStateMachine.onEvent(Event.DISCONNECT, state, null);
+        assertEquals(InCallState.NO_CALLS, state);
+
+        assertEquals(Arrays.asList("startIncomingUi INCOMING", "finishUi"), mHooks.calls);
+
+        final List<Transition> log = mStateMachine.getTransitionLog();
+        assertEquals(2, log.size());
+        assertTransition(log.get(0), Event.INCOMING_CALL, InCallState.NO_CALLS,
+                InCallState.INCOMING, Action.START_INCOMING_UI);
+        assertTransition(log.get(1), Event.DISCONNECT, InCallState.INCOMING,
+                InCallState.NO_CALLS, Action.FINISH_UI);
+    }
+
+    public void testTransitionPutOffWhileUiFinishing() {
+        mHooks.uiFinishing = true;
+        final InCallState state = mStateMachine.onEvent(Event.INCOMING_CALL,
+                InCallState.NO_CALLS, null);
+
+        assertEquals(InCallState.NO_CALLS, state);
+        assertTrue(mHooks.calls.isEmpty());
+        assertTrue(mStateMachine.getTransitionLog().isEmpty());
+    }
+
+    public void testReplay() {
+        InCallState state = InCallState.NO_CALLS;
+        for (int i = 0; i < 3; i++) {
+            state = mStateMachine.onEvent(Event.INCOMING_CALL, state, null);
+            state = mStateMachine.onEvent(Event.CALL_LIST_CHANGE, state, null);
+        }
+
+        final FakeHooks replayHooks = new FakeHooks();
+        InCallStateMachine.replay(mStateMachine.getTransitionLog(), replayHooks);
+        assertEquals(6, mHooks.calls.size());
+        assertEquals(mHooks.calls, replayHooks.calls);
+    }
+
+    public void testTransitionLogIsBounded() {
+        InCallState state = InCallState.NO_CALLS;
+        for (int i = 0; i < 50; i++) {
+            state = mStateMachine.onEvent(Event.INCOMING_CALL, state, null);
+            state = mStateMachine.onEvent(Event.DISCONNECT, state, null);
+        }
+
+        final List<Transition> log = mStateMachine.getTransitionLog();
+        assertEquals(32, log.size());
+        // Oldest first, and still alternating after wrapping around.
+        for (int i = 1; i < log.size(); i++) {
+            assertEquals(log.get(i - 1).to, log.get(i).from);
+            assertTrue(log.get(i - 1).uptimeMillis <= log.get(i).uptimeMillis);
+        }
+        assertEquals(Event.DISCONNECT, log.get(log.size() - 1).event);
+    }
+
+    private static void assertTransition(Transition transition, Event event, InCallState from,
+            InCallState to, Action action) {
+        assertEquals(event, transition.event);
+        assertEquals(from, transition.from);
+        assertEquals(to, transition.to);
+        assertEquals(action, transition.action);
+    }
+
+    private static class FakeHooks implements InCallStateMachine.Hooks {
+        final ArrayList<String> calls = new ArrayList<String>();
+        boolean uiFinishing;
+
+        @Override
+        public boolean isUiFinishing() {
+            return uiFinishing;
+        }
+
+        @Override
+        public void prepareInCall() {
+            calls.add("prepareInCall");
+        }
+
+        @Override
+        public void showCallUi() {
+            calls.add("showCallUi");
+        }
+
+        @Override
+        public void startIncomingUi(InCallState state) {
+            calls.add("startIncomingUi " + state);
+        }
+
+        @Override
+        public void finishUi() {
+            calls.add("finishUi");
+        }
+    }
+}
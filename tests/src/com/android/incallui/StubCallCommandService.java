@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import com.android.services.telephony.common.ICallCommandService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stands in for the telephony service's {@link ICallCommandService}: records the names of the
+ * commands the UI sends, and answers queries with defaults. Only the active subscription is
+ * tracked, since the UI reads it back.
+ *
+ * The service is a dynamic proxy, so it doesn't need to follow changes to the interface.
+ */
+class StubCallCommandService implements InvocationHandler {
+
+    private final ICallCommandService mService;
+    private final ArrayList<String> mCommands = new ArrayList<String>();
+    private volatile int mActiveSubscription;
+
+    StubCallCommandService() {
+        mService = (ICallCommandService) Proxy.newProxyInstance(
+                ICallCommandService.class.getClassLoader(),
+                new Class<?>[] { ICallCommandService.class }, this);
+    }
+
+    public ICallCommandService getService() {
+        return mService;
+    }
+
+    /**
+     * @return the names of the commands received so far, in order.
+     */
+    public synchronized List<String> getCommands() {
+        return new ArrayList<String>(mCommands);
+    }
+
+    public synchronized void clearCommands() {
+        mCommands.clear();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            return "StubCallCommandService";
+        }
+        if ("asBinder".equals(name)) {
+            return null;
+        }
+        if ("getActiveSubscription".equals(name)) {
+            return mActiveSubscription;
+        }
+        if ("setActiveSubscription".equals(name) || "setActiveAndConversationSub".equals(name)) {
+            mActiveSubscription = (Integer) args[0];
+        }
+
+        synchronized (this) {
+            mCommands.add(name);
+        }
+        return getDefaultValue(method.getReturnType());
+    }
+
+    private static Object getDefaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        }
+        return null;
+    }
+}
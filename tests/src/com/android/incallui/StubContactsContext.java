@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+/**
+ * A context whose contacts provider knows every number, so that caller info lookups complete
+ * quickly and locally and never go to a remote lookup backend. Everything else is delegated to
+ * the real context.
+ *
+ * The stub answers with the requested columns only, or with all its columns when no
+ * projection is given.
+ */
+class StubContactsContext extends ContextWrapper {
+
+    // Columns returned for queries without a projection, like a full row of the real
+    // PhoneLookup table.
+    private static final String[] ALL_COLUMNS = new String[] {
+        PhoneLookup._ID,
+        PhoneLookup.LOOKUP_KEY,
+        PhoneLookup.DISPLAY_NAME,
+        PhoneLookup.LAST_TIME_CONTACTED,
+        PhoneLookup.TIMES_CONTACTED,
+        PhoneLookup.STARRED,
+        PhoneLookup.IN_VISIBLE_GROUP,
+        PhoneLookup.HAS_PHONE_NUMBER,
+        PhoneLookup.NUMBER,
+        PhoneLookup.NORMALIZED_NUMBER,
+        PhoneLookup.TYPE,
+        PhoneLookup.LABEL,
+        PhoneLookup.CUSTOM_RINGTONE,
+        PhoneLookup.SEND_TO_VOICEMAIL,
+        PhoneLookup.PHOTO_ID,
+        PhoneLookup.PHOTO_URI,
+        PhoneLookup.PHOTO_THUMBNAIL_URI,
+    };
+
+    private final MockContentResolver mResolver = new MockContentResolver();
+    private final StubContactsProvider mProvider = new StubContactsProvider();
+
+    StubContactsContext(Context base) {
+        super(base);
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        // Code that holds on to the application context must see the stub as well.
+        return this;
+    }
+
+    private static class StubContactsProvider extends MockContentProvider {
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            final String[] columns = projection != null ? projection : ALL_COLUMNS;
+            final String number = uri.getLastPathSegment();
+            final Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = getValue(columns[i], number);
+            }
+
+            final MatrixCursor cursor = new MatrixCursor(columns, 1);
+            cursor.addRow(row);
+            return cursor;
+        }
+
+        private static Object getValue(String column, String number) {
+            if (PhoneLookup.DISPLAY_NAME.equals(column)) {
+                return "Contact " + number;
+            } else if (PhoneLookup.NUMBER.equals(column)
+                    || PhoneLookup.NORMALIZED_NUMBER.equals(column)) {
+                return number;
+            } else if (PhoneLookup.TYPE.equals(column)) {
+                return Phone.TYPE_MOBILE;
+            } else if (PhoneLookup.LOOKUP_KEY.equals(column)) {
+                return "lookup-" + number;
+            } else if (PhoneLookup.HAS_PHONE_NUMBER.equals(column)
+                    || PhoneLookup.IN_VISIBLE_GROUP.equals(column)) {
+                return 1;
+            } else if (PhoneLookup.LABEL.equals(column)
+                    || PhoneLookup.CUSTOM_RINGTONE.equals(column)
+                    || PhoneLookup.PHOTO_URI.equals(column)
+                    || PhoneLookup.PHOTO_THUMBNAIL_URI.equals(column)) {
+                return null;
+            }
+            // Ids of 0 make the UI skip the photo load, which the stub can't serve.
+            return 0;
+        }
+    }
+}
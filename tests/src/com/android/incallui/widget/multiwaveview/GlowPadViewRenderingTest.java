@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui.widget.multiwaveview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.android.incallui.AllocCounter;
+import com.android.incallui.R;
+
+/**
+ * Draws the incoming call {@link GlowPadView} into an offscreen canvas while stepping it through
+ * what it shows while ringing: idle, the ping wave, grabbed, and hovering over a target. Each
+ * phase checks that the view really is in that state before its frames are measured. Frames
+ * are drawn on the main thread at roughly the display frame rate, so that the widget's
+ * animations advance between frames as they would on screen.
+ *
+ * The gates are loose enough to only catch frames that no longer fit the frame budget or that
+ * start allocating again; compare the logged numbers between builds for smaller changes.
+ */
+@LargeTest
+public class GlowPadViewRenderingTest extends InstrumentationTestCase {
+    private static final String TAG = "GlowPadViewRenderingTest";
+
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final int IDLE_FRAMES = 30;
+    private static final int WAVE_FRAMES = 90;
+    private static final int GRABBED_FRAMES = 60;
+    private static final int HOVER_FRAMES = 60;
+
+    // Regression gates.
+    private static final long MAX_AVERAGE_FRAME_NANOS = 16 * 1000 * 1000;
+    private static final long MAX_AVERAGE_FRAME_ALLOCS = 8;
+
+    private GlowPadView mView;
+    private Canvas mCanvas;
+    private float mCenterX;
+    private float mCenterY;
+    private float mOuterRadius;
+    private long mDownTime;
+
+    // Written on the main thread, read on the test thread after runOnMainSync() returns.
+    private long mFrameNanos;
+    private long mFrameAllocs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        AllocCounter.acquire();
+
+        final Context context = getInstrumentation().getTargetContext();
+        mOuterRadius = context.getResources().getDimension(
+                R.dimen.glowpadview_target_placement_radius);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView = (GlowPadView) LayoutInflater.from(context).inflate(
+                        R.layout.answer_fragment, null);
+                mView.setVisibility(View.VISIBLE);
+
+                // Lay the view out at its own minimum size, so that it isn't scaled down.
+                final int unspecified = View.MeasureSpec.makeMeasureSpec(0,
+                        View.MeasureSpec.UNSPECIFIED);
+                mView.measure(unspecified, unspecified);
+                mView.layout(0, 0, mView.getMeasuredWidth(), mView.getMeasuredHeight());
+                mCenterX = mView.getWidth() / 2f;
+                mCenterY = mView.getHeight() / 2f;
+
+                mCanvas = new Canvas(Bitmap.createBitmap(mView.getWidth(), mView.getHeight(),
+                        Bitmap.Config.ARGB_8888));
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView.reset(false);
+            }
+        });
+        mView = null;
+        mCanvas = null;
+        AllocCounter.release();
+        super.tearDown();
+    }
+
+    public void testRendering() throws Exception {
+        // Warm up the drawables and the canvas before measuring anything.
+        drawFrames("warm-up", IDLE_FRAMES, null);
+
+        assertFrames("idle", drawFrames("idle", IDLE_FRAMES, null));
+
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mView.ping();
+            }
+        });
+        assertFrames("wave", drawFrames("wave", WAVE_FRAMES, null));
+
+        mDownTime = SystemClock.uptimeMillis();
+        touch(MotionEvent.ACTION_DOWN, mCenterX, mCenterY);
+        assertGrabbed(false);
+        assertFrames("grabbed", drawFrames("grabbed", GRABBED_FRAMES, new Step() {
+            @Override
+            public void onFrame(int frame) {
+                // Small moves around the handle, without reaching a target.
+                touch(MotionEvent.ACTION_MOVE, mCenterX + (frame % 8), mCenterY);
+            }
+        }));
+        assertGrabbed(false);
+
+        touch(MotionEvent.ACTION_MOVE, mCenterX + mOuterRadius, mCenterY);
+        assertGrabbed(true);
+        assertFrames("target hover", drawFrames("target hover", HOVER_FRAMES, new Step() {
+            @Override
+            public void onFrame(int frame) {
+                touch(MotionEvent.ACTION_MOVE, mCenterX + mOuterRadius + (frame % 4), mCenterY);
+            }
+        }));
+        assertGrabbed(true);
+
+        // Cancel instead of lifting the finger, so that the hovered target isn't triggered.
+        touch(MotionEvent.ACTION_CANCEL, mCenterX + mOuterRadius, mCenterY);
+    }
+
+    private interface Step {
+        void onFrame(int frame);
+    }
+
+    /**
+     * Draws the given number of frames, running the step before each one.
+     *
+     * @return the average time and allocations per frame.
+     */
+    private long[] drawFrames(String phase, int frames, final Step step) throws Exception {
+        long totalNanos = 0;
+        long maxNanos = 0;
+        long totalAllocs = 0;
+        for (int i = 0; i < frames; i++) {
+            final int frame = i;
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    if (step != null) {
+                        step.onFrame(frame);
+                    }
+                    final int startAllocs = Debug.getThreadAllocCount();
+                    final long startNanos = SystemClock.elapsedRealtimeNanos();
+                    mView.draw(mCanvas);
+                    mFrameNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+                    mFrameAllocs = Debug.getThreadAllocCount() - startAllocs;
+                }
+            });
+            totalNanos += mFrameNanos;
+            maxNanos = Math.max(maxNanos, mFrameNanos);
+            totalAllocs += mFrameAllocs;
+            Thread.sleep(FRAME_INTERVAL_MS);
+        }
+
+        final long[] averages = { totalNanos / frames, totalAllocs / frames };
+        Log.i(TAG, phase + ": " + frames + " frames, avg " + averages[0] / 1000 + "us, max "
+                + maxNanos / 1000 + "us, avg allocs " + averages[1]);
+        return averages;
+    }
+
+    private void assertFrames(String phase, long[] averages) {
+        assertTrue(phase + " frames take " + averages[0] / 1000 + "us on average",
+                averages[0] <= MAX_AVERAGE_FRAME_NANOS);
+        assertTrue(phase + " frames allocate " + averages[1] + " objects on average",
+                averages[1] <= MAX_AVERAGE_FRAME_ALLOCS);
+    }
+
+    /**
+     * Checks that the handle is being dragged, and whether it is over a target.
+     */
+    private void assertGrabbed(final boolean overTarget) {
+        final int[] state = new int[2];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                state[0] = mView.isDragging() ? 1 : 0;
+                state[1] = mView.getActiveTarget();
+            }
+        });
+        assertEquals("Handle not grabbed", 1, state[0]);
+        assertEquals("Handle over target " + state[1], overTarget, state[1] != -1);
+    }
+
+    /**
+     * Sends a touch event to the view, on the main thread.
+     */
+    private void touch(final int action, final float x, final float y) {
+        final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                final MotionEvent event = MotionEvent.obtain(mDownTime,
+                        SystemClock.uptimeMillis(), action, x, y, 0);
+                mView.onTouchEvent(event);
+                event.recycle();
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            dispatch.run();
+        } else {
+            getInstrumentation().runOnMainSync(dispatch);
+        }
+    }
+
+    private void runOnMainThread(Runnable runnable) {
+        getInstrumentation().runOnMainSync(runnable);
+    }
+}
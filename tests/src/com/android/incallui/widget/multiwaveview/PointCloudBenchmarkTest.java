@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui.widget.multiwaveview;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.incallui.AllocCounter;
+import com.android.incallui.R;
+
+/**
+ * Measures the cost of drawing a {@link PointCloud} per frame at different point densities,
+ * while a wave sweeps out from the center and while the glow follows a finger around the ring.
+ *
+ * The density is changed through the inner radius, which sets the spacing between points; the
+ * default density is the one the incoming call widget uses.
+ */
+@LargeTest
+public class PointCloudBenchmarkTest extends InstrumentationTestCase {
+    private static final String TAG = "PointCloudBenchmarkTest";
+
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FRAMES = 200;
+
+    // Inner radius multipliers; a smaller inner radius packs the points closer together.
+    private static final float[] DENSITIES = { 2.0f, 1.0f, 0.5f };
+    private static final String[] DENSITY_NAMES = { "sparse", "default", "dense" };
+
+    // Regression gates, applied at every density.
+    private static final long MAX_AVERAGE_FRAME_NANOS = 8 * 1000 * 1000;
+    private static final long MAX_AVERAGE_FRAME_ALLOCS = 2;
+
+    private Resources mResources;
+    private float mInnerRadius;
+    private float mOuterRadius;
+    private float mGlowRadius;
+    private Canvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        AllocCounter.acquire();
+
+        mResources = getInstrumentation().getTargetContext().getResources();
+        mInnerRadius = mResources.getDimension(R.dimen.glowpadview_inner_radius);
+        mOuterRadius = mResources.getDimension(R.dimen.glowpadview_target_placement_radius);
+        mGlowRadius = mResources.getDimension(R.dimen.glowpadview_glow_radius);
+
+        final int size = (int) (2 * mOuterRadius);
+        mCanvas = new Canvas(Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCanvas = null;
+        AllocCounter.release();
+        super.tearDown();
+    }
+
+    public void testWave() {
+        for (int i = 0; i < DENSITIES.length; i++) {
+            final PointCloud cloud = makePointCloud(DENSITIES[i]);
+            cloud.waveManager.setAlpha(1.0f);
+            final long[] averages = drawFrames(cloud, new Step() {
+                @Override
+                public void onFrame(PointCloud cloud, float progress) {
+                    cloud.waveManager.setRadius(progress * mOuterRadius * 1.5f);
+                }
+            });
+            report("wave", i, averages);
+        }
+    }
+
+    public void testGlow() {
+        for (int i = 0; i < DENSITIES.length; i++) {
+            final PointCloud cloud = makePointCloud(DENSITIES[i]);
+            cloud.glowManager.setAlpha(1.0f);
+            cloud.glowManager.setRadius(mGlowRadius);
+            final long[] averages = drawFrames(cloud, new Step() {
+                @Override
+                public void onFrame(PointCloud cloud, float progress) {
+                    final double angle = 2 * Math.PI * progress;
+                    cloud.glowManager.setX((float) (mOuterRadius * Math.cos(angle)));
+                    cloud.glowManager.setY((float) (mOuterRadius * Math.sin(angle)));
+                }
+            });
+            report("glow", i, averages);
+        }
+    }
+
+    private interface Step {
+        /**
+         * @param progress how far through the run the frame is, from 0 to 1.
+         */
+        void onFrame(PointCloud cloud, float progress);
+    }
+
+    private PointCloud makePointCloud(float density) {
+        final PointCloud cloud = new PointCloud(
+                mResources.getDrawable(R.drawable.ic_lockscreen_glowdot));
+        cloud.makePointCloud(mInnerRadius * density, mOuterRadius);
+        cloud.setCenter(mOuterRadius, mOuterRadius);
+        return cloud;
+    }
+
+    /**
+     * @return the average time and allocations per frame, not counting the warm-up frames.
+     */
+    private long[] drawFrames(PointCloud cloud, Step step) {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            step.onFrame(cloud, (float) i / WARMUP_FRAMES);
+            cloud.draw(mCanvas);
+        }
+
+        long totalNanos = 0;
+        long totalAllocs = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            step.onFrame(cloud, (float) i / FRAMES);
+            final int startAllocs = Debug.getThreadAllocCount();
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            cloud.draw(mCanvas);
+            totalNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+            totalAllocs += Debug.getThreadAllocCount() - startAllocs;
+        }
+        return new long[] { totalNanos / FRAMES, totalAllocs / FRAMES };
+    }
+
+    private void report(String animation, int density, long[] averages) {
+        Log.i(TAG, animation + ", " + DENSITY_NAMES[density] + " points: avg "
+                + averages[0] / 1000 + "us, avg allocs " + averages[1]);
+        assertTrue(animation + " frames take " + averages[0] / 1000 + "us on average",
+                averages[0] <= MAX_AVERAGE_FRAME_NANOS);
+        assertTrue(animation + " frames allocate " + averages[1] + " objects on average",
+                averages[1] <= MAX_AVERAGE_FRAME_ALLOCS);
+    }
+}